@@ -1,9 +1,18 @@
 package wepayu;
 
 import easyaccept.EasyAccept;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import wepayu.service.Persistence;
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         String facade = "wepayu.facade.PayrollFacade";
         EasyAccept.main(new String[]{facade, "tests/us1.txt"});
@@ -24,5 +33,41 @@ public class Main {
 //        EasyAccept.main(new String[]{facade, "tests/us9_1.txt"});
 //        EasyAccept.main(new String[]{facade, "tests/us10.txt"});
 //        EasyAccept.main(new String[]{facade, "tests/us10_1.txt"});
+        EasyAccept.main(new String[]{facade, "tests/us11.txt"});
+        EasyAccept.main(new String[]{facade, "tests/us12.txt"});
+        EasyAccept.main(new String[]{facade, "tests/us13.txt"});
+        EasyAccept.main(new String[]{facade, "tests/us14.txt"});
+        EasyAccept.main(new String[]{facade, "tests/us15.txt"});
+
+        // us16: persistencia ligada num diretorio temporario. Entre os scripts o processo "cai" sem
+        // checkpoint (Persistence.release) e o fim do journal eh estragado: uma entrada com o CRC errado
+        // antes de us16_1, uma entrada pela metade antes de us16_2
+        Persistence.release();
+        Persistence.setDataDir(Files.createTempDirectory("wepayu-us16"));
+        Persistence.setEnabled(true);
+        EasyAccept.main(new String[]{facade, "tests/us16.txt"});
+        Persistence.release();
+        estragaUltimoByte(ultimoJournal());
+        EasyAccept.main(new String[]{facade, "tests/us16_1.txt"});
+        Persistence.release();
+        Files.write(ultimoJournal(), new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5, 6}, StandardOpenOption.APPEND);
+        EasyAccept.main(new String[]{facade, "tests/us16_2.txt"});
+        Persistence.release();
+        Persistence.setEnabled(false);
+    }
+
+    private static Path ultimoJournal() throws IOException {
+        List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Persistence.getDataDir(), "journal-*.log")) {
+            for (Path p : ds) journals.add(p);
+        }
+        return Collections.max(journals);
+    }
+
+    // Troca o ultimo byte do arquivo: a ultima entrada do journal deixa de bater com o seu CRC
+    private static void estragaUltimoByte(Path arquivo) throws IOException {
+        byte[] bytes = Files.readAllBytes(arquivo);
+        bytes[bytes.length - 1] ^= 0x5A;
+        Files.write(arquivo, bytes);
     }
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+package wepayu.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Minimal micro-benchmark runner: untimed setup, warmup iterations, measured iterations, and for each
+ * benchmark the time per operation and the bytes allocated per operation by the calling thread.
+ * Results of every operation go to a sink so the JIT cannot drop the measured code.
+ */
+public class BenchmarkHarness {
+
+    // One measured operation; i is the index of the call within the iteration
+    @FunctionalInterface
+    public interface Operation {
+        Object run(int i) throws Exception;
+    }
+
+    // State preparation that is not measured (runs before every iteration)
+    @FunctionalInterface
+    public interface Setup {
+        void run() throws Exception;
+    }
+
+    private static volatile int sink;
+
+    private final int warmupIterations;
+    private final int measureIterations;
+    private final String filter;
+    private final com.sun.management.ThreadMXBean threads;
+
+    public BenchmarkHarness(int warmupIterations, int measureIterations, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.measureIterations = measureIterations;
+        this.filter = filter;
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+            this.threads = (com.sun.management.ThreadMXBean) mx;
+            this.threads.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            this.threads = null;
+        }
+    }
+
+    public static void printHeader() {
+        System.out.printf(Locale.ROOT, "%-40s %-28s %14s %14s %14s%n", "benchmark", "params", "ns/op", "min ns/op", "B/op");
+    }
+
+    // True unless the benchmark is excluded by the name filter
+    public boolean accepts(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    // Runs one benchmark unless it is excluded by the name filter
+    public void run(String name, String params, int opsPerIteration, Setup setup, Operation op) throws Exception {
+        if (!accepts(name)) return;
+        for (int it = 0; it < warmupIterations; it++) {
+            if (setup != null) setup.run();
+            iterate(opsPerIteration, op);
+        }
+        long totalNanos = 0;
+        long minNanos = Long.MAX_VALUE;
+        long totalBytes = 0;
+        for (int it = 0; it < measureIterations; it++) {
+            if (setup != null) setup.run();
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            iterate(opsPerIteration, op);
+            long elapsed = System.nanoTime() - start;
+            long bytes = allocatedBytes() - bytesBefore;
+            totalNanos += elapsed;
+            totalBytes += bytes;
+            minNanos = Math.min(minNanos, elapsed);
+        }
+        long ops = (long) opsPerIteration * measureIterations;
+        String bytesPerOp = threads == null ? "n/a" : String.format(Locale.ROOT, "%.1f", (double) totalBytes / ops);
+        System.out.printf(Locale.ROOT, "%-40s %-28s %14.1f %14.1f %14s%n", name, params,
+                (double) totalNanos / ops, (double) minNanos / opsPerIteration, bytesPerOp);
+    }
+
+    private static void iterate(int ops, Operation op) throws Exception {
+        int acc = 0;
+        for (int i = 0; i < ops; i++) {
+            Object r = op.run(i);
+            if (r != null) acc += r.hashCode();
+        }
+        sink += acc;
+    }
+
+    // Bytes allocated so far by the calling thread (work on other threads is not counted)
+    private long allocatedBytes() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
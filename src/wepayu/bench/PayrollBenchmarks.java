@@ -0,0 +1,111 @@
+package wepayu.bench;
+
+import java.time.LocalDate;
+import java.util.List;
+import wepayu.facade.PayrollFacade;
+import wepayu.service.Diagnostics;
+import wepayu.service.PayrollService;
+import wepayu.service.Persistence;
+import wepayu.service.ScheduleRegistry;
+import wepayu.util.CompiledSchedule;
+import wepayu.util.DateUtils;
+import wepayu.util.ScheduleUtils;
+
+/**
+ * Benchmark suite for the payroll engine, schedule evaluation, date parsing and the facade ingest paths.
+ *
+ * Usage: java -Xmx8g -cp bin:lib/easyaccept.jar wepayu.bench.PayrollBenchmarks [name filter]
+ * Properties: wepayu.bench.sizes (employees, default 1000,100000,1000000), wepayu.bench.weeks (history
+ * depth, default 8), wepayu.bench.warmup (3), wepayu.bench.iterations (5), plus wepayu.payroll.parallelism.
+ */
+public class PayrollBenchmarks {
+    private static final long SEED = 42;
+    private static final String[] DESCRIPTORS = {"semanal 5", "mensal $", "semanal 2 5", "mensal 15", "semanal 3 3"};
+
+    public static void main(String[] args) throws Exception {
+        // generated data goes straight into PayrollDatabase, so there is nothing to journal
+        Persistence.setEnabled(false);
+        // debug snapshots would compete with the measured code for the CPU
+        Diagnostics.setEnabled(false);
+        String filter = args.length > 0 ? args[0] : null;
+        int weeks = Integer.getInteger("wepayu.bench.weeks", 8);
+        String sizes = System.getProperty("wepayu.bench.sizes", "1000,100000,1000000");
+        BenchmarkHarness h = new BenchmarkHarness(Integer.getInteger("wepayu.bench.warmup", 3),
+                Integer.getInteger("wepayu.bench.iterations", 5), filter);
+
+        String[] dates = dateStrings(365);
+        BenchmarkHarness.printHeader();
+        dateBenchmarks(h, dates);
+        scheduleBenchmarks(h, dates);
+        ingestBenchmarks(h, weeks, dates);
+        for (String size : sizes.split(",")) {
+            payrollBenchmarks(h, Integer.parseInt(size.trim()), weeks);
+        }
+    }
+
+    private static void dateBenchmarks(BenchmarkHarness h, String[] dates) throws Exception {
+        int n = dates.length;
+        h.run("dates.parseLocalDate", "", 100_000, null, i -> DateUtils.parseLocalDate(dates[i % n]));
+        h.run("dates.toEpochDay", "", 100_000, null, i -> DateUtils.toEpochDay(dates[i % n]));
+        h.run("dates.parseOrNull.invalid", "", 100_000, null, i -> DateUtils.parseOrNull("31/" + (i % 2 == 0 ? "2" : "4") + "/2005"));
+        h.run("dates.isLastWorkDayOfMonth", "", 100_000, null, i -> DateUtils.isLastWorkDayOfMonth(dates[i % n]));
+    }
+
+    private static void scheduleBenchmarks(BenchmarkHarness h, String[] dates) throws Exception {
+        int n = dates.length;
+        int d = DESCRIPTORS.length;
+        h.run("schedule.isPayDateForDescriptor", "", 100_000, null,
+                i -> ScheduleUtils.isPayDateForDescriptor(DESCRIPTORS[i % d], dates[i % n]));
+        h.run("schedule.getPayPeriodForDescriptor", "", 100_000, null,
+                i -> ScheduleUtils.getPayPeriodForDescriptor(DESCRIPTORS[i % d], dates[i % n]));
+        CompiledSchedule[] compiled = new CompiledSchedule[d];
+        for (int k = 0; k < d; k++) compiled[k] = CompiledSchedule.compile(DESCRIPTORS[k]);
+        int first = DateUtils.toEpochDay(dates[0]);
+        h.run("schedule.compiled.isPayDate", "", 1_000_000, null, i -> compiled[i % d].isPayDate(first + i % n));
+        h.run("schedule.compiled.periodFor", "", 100_000, null, i -> compiled[i % d].periodFor(first + i % n));
+        h.run("schedule.registry.get", "", 1_000_000, null, i -> ScheduleRegistry.get(DESCRIPTORS[i % d]));
+    }
+
+    private static void ingestBenchmarks(BenchmarkHarness h, int weeks, String[] dates) throws Exception {
+        PayrollFacade facade = new PayrollFacade();
+        int n = dates.length;
+        PayrollDataGenerator[] data = new PayrollDataGenerator[1];
+        // fresh database each iteration so the history does not keep growing across iterations
+        BenchmarkHarness.Setup reset = () -> data[0] = PayrollDataGenerator.populate(1000, weeks, SEED);
+        reset.run();
+        String params = "employees=1000";
+        h.run("facade.lancaCartao", params, 10_000, reset, i -> {
+            List<String> ids = data[0].getHourlyIds();
+            facade.lancaCartao(ids.get(i % ids.size()), dates[i % n], "8,5");
+            return null;
+        });
+        h.run("facade.lancaVenda", params, 10_000, reset, i -> {
+            List<String> ids = data[0].getCommissionedIds();
+            facade.lancaVenda(ids.get(i % ids.size()), dates[i % n], "123,45");
+            return null;
+        });
+        h.run("facade.lancaTaxaServico", params, 10_000, reset, i -> {
+            List<String> ids = data[0].getUnionIds();
+            facade.lancaTaxaServico(ids.get(i % ids.size()), dates[i % n], "12,5");
+            return null;
+        });
+    }
+
+    private static void payrollBenchmarks(BenchmarkHarness h, int employees, int weeks) throws Exception {
+        String name = "payroll.runPayroll";
+        if (!h.accepts(name)) return;
+        PayrollDataGenerator.populate(employees, weeks, SEED);
+        String params = "employees=" + employees + ",weeks=" + weeks;
+        h.run(name, params, 1, null, i -> PayrollService.runPayroll(PayrollDataGenerator.LAST_DAY_STR));
+    }
+
+    // dd/MM/yyyy strings for the given number of consecutive days ending on the generator's last day
+    private static String[] dateStrings(int days) {
+        String[] out = new String[days];
+        LocalDate d = PayrollDataGenerator.LAST_DAY.minusDays(days - 1L);
+        for (int i = 0; i < days; i++, d = d.plusDays(1)) {
+            out[i] = d.getDayOfMonth() + "/" + d.getMonthValue() + "/" + d.getYear();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,94 @@
+package wepayu.bench;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import wepayu.model.*;
+import wepayu.service.PayrollDatabase;
+import wepayu.service.ScheduleRegistry;
+import wepayu.util.CompiledSchedule;
+import wepayu.util.DateUtils;
+
+/**
+ * Fills PayrollDatabase with a synthetic, reproducible payroll: a mix of hourly, salaried and
+ * commissioned employees, part of them union members, part on explicit schedules, each with
+ * {@code weeks} weeks of time cards, sales and service charges ending on {@link #LAST_DAY}.
+ */
+public class PayrollDataGenerator {
+    // Friday and last workday of the month, so every schedule group has someone to pay
+    public static final LocalDate LAST_DAY = LocalDate.of(2005, 12, 30);
+    public static final String LAST_DAY_STR = "30/12/2005";
+
+    private static final String[] SCHEDULES = {"semanal 5", "mensal $", "semanal 2 5"};
+
+    private final List<String> hourlyIds = new ArrayList<>();
+    private final List<String> commissionedIds = new ArrayList<>();
+    private final List<String> unionIds = new ArrayList<>();
+
+    // Clears the database and creates the given number of employees
+    public static PayrollDataGenerator populate(int employees, int weeks, long seed) {
+        PayrollDatabase.clear();
+        ScheduleRegistry.reset();
+        PayrollDataGenerator g = new PayrollDataGenerator();
+        Random rnd = new Random(seed);
+        int lastDay = DateUtils.toEpochDay(LAST_DAY);
+        int firstDay = lastDay - weeks * 7 + 1;
+        for (int n = 0; n < employees; n++) {
+            Employee e;
+            int kind = rnd.nextInt(10);
+            if (kind < 4) {
+                HourlyEmployee h = new HourlyEmployee("Horista " + n, "Rua " + n, cents(rnd, 1000, 5000));
+                for (int day = firstDay; day <= lastDay; day++) {
+                    // weekdays only, 4 to 10 hours in half-hour steps
+                    if (Math.floorMod(day + 3, 7) < 5) h.addTimeCard(new TimeCard(day, 4 + rnd.nextInt(13) * 0.5));
+                }
+                g.hourlyIds.add(h.getId());
+                e = h;
+            } else if (kind < 7) {
+                e = new SalariedEmployee("Assalariado " + n, "Rua " + n, cents(rnd, 100000, 800000));
+            } else {
+                CommissionedEmployee c = new CommissionedEmployee("Comissionado " + n, "Rua " + n,
+                        cents(rnd, 80000, 400000), (1 + rnd.nextInt(20)) / 100.0);
+                for (int w = 0; w < weeks; w++) {
+                    for (int s = 0; s < 2; s++) {
+                        c.addSalesReceipt(new SalesReceipt(firstDay + w * 7 + rnd.nextInt(7), cents(rnd, 5000, 500000)));
+                    }
+                }
+                g.commissionedIds.add(c.getId());
+                e = c;
+            }
+            if (rnd.nextInt(10) < 3) {
+                String unionId = "s" + n;
+                UnionMembership m = new UnionMembership(unionId, cents(rnd, 500, 5000));
+                for (int w = 0; w < weeks; w++) {
+                    m.addServiceCharge(new ServiceCharge(firstDay + w * 7 + rnd.nextInt(7), cents(rnd, 100, 3000)));
+                }
+                e.setUnionMembership(m);
+                g.unionIds.add(unionId);
+            }
+            if (rnd.nextBoolean()) {
+                CompiledSchedule s = ScheduleRegistry.get(SCHEDULES[rnd.nextInt(SCHEDULES.length)]);
+                e.setCompiledSchedule(s);
+            }
+            PayrollDatabase.addEmployee(e);
+        }
+        return g;
+    }
+
+    private static long cents(Random rnd, int min, int max) {
+        return min + rnd.nextInt(max - min);
+    }
+
+    public List<String> getHourlyIds() {
+        return hourlyIds;
+    }
+
+    public List<String> getCommissionedIds() {
+        return commissionedIds;
+    }
+
+    public List<String> getUnionIds() {
+        return unionIds;
+    }
+}
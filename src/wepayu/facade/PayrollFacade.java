@@ -4,46 +4,83 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.List;
 import java.util.Locale;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+import wepayu.metrics.LatencyHistogram;
+import wepayu.metrics.Metrics;
+import wepayu.metrics.OperationTimer;
 import wepayu.model.*;
 import wepayu.service.*;
 import wepayu.service.exceptions.*;
+import wepayu.util.Money;
 
 public class PayrollFacade {
-    static {
-        // ensure default schedules are registered
-        try {
-            ensureDefaultSchedules();
-        } catch (Exception ex) {
-            // ignore static init errors
-        }
-        // No automatic test employee pre-population here — tests manage DB state explicitly
-    }
-
-    // Ensure the default schedules are present in the database. Call after clear() operations.
-    private static void ensureDefaultSchedules() {
-        String[] defaults = new String[]{"mensal $", "semanal 5", "semanal 2 5"};
-        for (String d : defaults) {
-            String key = "__SCHEDULE__::" + d.toLowerCase();
-            if (PayrollDatabase.getEmployee(key) == null) {
-                Employee placeholder = new SalariedEmployee("SCHEDULE", "", 0);
-                placeholder.setId(key);
-                placeholder.setPaymentScheduleDescription(d);
-                PayrollDatabase.addEmployee(placeholder);
-            }
-        }
-    }
+    // Default schedules are registered by ScheduleRegistry itself
+    // No automatic test employee pre-population here — tests manage DB state explicitly
 
     // No test re-population helpers remain — tests should control DB via zerarSistema
+
+    // Chamadas, falhas e latencia de cada operacao publica (expostas via JMX em wepayu.metrics.Metrics)
+    private static final OperationTimer OP_LANCA_TAXA_SERVICO = Metrics.operation("facade.lancaTaxaServico");
+    private static final OperationTimer OP_GET_TAXAS_SERVICO = Metrics.operation("facade.getTaxasServico");
+    private static final OperationTimer OP_ALTERA_EMPREGADO = Metrics.operation("facade.alteraEmpregado");
+    private static final OperationTimer OP_GET_VENDAS_REALIZADAS = Metrics.operation("facade.getVendasRealizadas");
+    private static final OperationTimer OP_GET_HORAS_EXTRAS_TRABALHADAS = Metrics.operation("facade.getHorasExtrasTrabalhadas");
+    private static final OperationTimer OP_GET_HORAS_NORMAIS_TRABALHADAS = Metrics.operation("facade.getHorasNormaisTrabalhadas");
+    private static final OperationTimer OP_ZERAR_SISTEMA = Metrics.operation("facade.zerarSistema");
+    private static final OperationTimer OP_ENCERRAR_SISTEMA = Metrics.operation("facade.encerrarSistema");
+    private static final OperationTimer OP_CRIAR_EMPREGADO = Metrics.operation("facade.criarEmpregado");
+    private static final OperationTimer OP_REMOVER_EMPREGADO = Metrics.operation("facade.removerEmpregado");
+    private static final OperationTimer OP_ALTERA_EMPREGADO_SINDICATO_DOUBLE = Metrics.operation("facade.alteraEmpregadoSindicatoDouble");
+    private static final OperationTimer OP_LANCA_CARTAO = Metrics.operation("facade.lancaCartao");
+    private static final OperationTimer OP_LANCA_VENDA_DOUBLE = Metrics.operation("facade.lancaVendaDouble");
+    private static final OperationTimer OP_LANCA_VENDA = Metrics.operation("facade.lancaVenda");
+    private static final OperationTimer OP_LANCA_TAXA_SERVICO_DOUBLE = Metrics.operation("facade.lancaTaxaServicoDouble");
+    private static final OperationTimer OP_GET_ATRIBUTO_EMPREGADO = Metrics.operation("facade.getAtributoEmpregado");
+    private static final OperationTimer OP_RODA_FOLHA = Metrics.operation("facade.rodaFolha");
+    private static final OperationTimer OP_CRIAR_AGENDA_DE_PAGAMENTOS = Metrics.operation("facade.criarAgendaDePagamentos");
+    private static final OperationTimer OP_GET_EMPREGADO_POR_NOME = Metrics.operation("facade.getEmpregadoPorNome");
+    private static final OperationTimer OP_GET_NUMERO_DE_EMPREGADOS = Metrics.operation("facade.getNumeroDeEmpregados");
+    private static final OperationTimer OP_TOTAL_FOLHA = Metrics.operation("facade.totalFolha");
+    private static final OperationTimer OP_RODA_FOLHA_PERIODO = Metrics.operation("facade.rodaFolhaPeriodo");
+    private static final OperationTimer OP_TOTAL_FOLHA_PERIODO = Metrics.operation("facade.totalFolhaPeriodo");
+    private static final OperationTimer OP_UNDO = Metrics.operation("facade.undo");
+    private static final OperationTimer OP_REDO = Metrics.operation("facade.redo");
+    private static final OperationTimer OP_INICIAR_TRANSACAO = Metrics.operation("facade.iniciarTransacao");
+    private static final OperationTimer OP_CONFIRMAR_TRANSACAO = Metrics.operation("facade.confirmarTransacao");
+    private static final OperationTimer OP_CANCELAR_TRANSACAO = Metrics.operation("facade.cancelarTransacao");
+    private static final OperationTimer OP_IMPORTA_LANCAMENTOS = Metrics.operation("facade.importaLancamentos");
+    private static final OperationTimer OP_COMPACTA_HISTORICO = Metrics.operation("facade.compactaHistorico");
+    // quantidade de empregados reportada no evento de cada chamada que altera o cadastro
+    private static final IntSupplier EMPREGADOS = () -> PayrollDatabase.getAllEmployees().size();
+    // fases da folha que acontecem aqui (as demais sao medidas em PayrollService.runPayroll)
+    private static final LatencyHistogram PHASE_SORT = Metrics.histogram("payroll.phase.sort");
+    private static final LatencyHistogram PHASE_OUTPUT = Metrics.histogram("payroll.phase.output");
+
+    // Carrega o estado persistido (snapshot + journal) na primeira instancia, se a persistencia estiver ligada
+    public PayrollFacade() {
+        ensureSystemOpen();
+    }
+
     // Sobrecarga para aceitar valor como String (com vírgula)
     public void lancaTaxaServico(String id, String data, String valor) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank() || data == null || valor == null)
-            throw new InvalidDataException("Identificacao do membro nao pode ser nula.");
-        if (!wepayu.util.DateUtils.isValidDate(data))
-            throw new InvalidDataException("Data invalida.");
-        double d = parseValor(valor);
-        if (d <= 0) throw new InvalidDataException("Valor deve ser positivo.");
-        lancaTaxaServicoInternal(id, data, d);
+        long t0 = OP_LANCA_TAXA_SERVICO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.beginPosting();
+            ensureSystemOpen();
+            // validacao sem excecoes (PostingValidation); so aqui a rejeicao vira a excecao de sempre
+            PostingValidation.Posting p = new PostingValidation.Posting();
+            Rejection r = PostingValidation.serviceCharge(id, data, valor, PayrollFacade::membroParaAlterar, p);
+            if (r != null) throw r.toException(valor);
+            lanca(p.employee, new PostServiceChargeCommand(p.employee.getUnionMembership(), new ServiceCharge(p.epochDay, p.amount)),
+                    "lancaTaxaServico", id, data, valor);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_LANCA_TAXA_SERVICO, t0, falha, id, data);
+        }
     }
     /**
      * Retorna o total de taxas de serviço pagas por um empregado sindicalizado em um intervalo de datas.
@@ -53,38 +90,33 @@ public class PayrollFacade {
      * @return Total de taxas de serviço (String, formato brasileiro)
      */
     public String getTaxasServico(String id, String dataInicial, String dataFinal) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        if (!wepayu.util.DateUtils.isValidDate(dataInicial)) throw new InvalidDataException("Data inicial invalida.");
-        if (!wepayu.util.DateUtils.isValidDate(dataFinal)) throw new InvalidDataException("Data final invalida.");
-        if (wepayu.util.DateUtils.compareDates(dataInicial, dataFinal) > 0) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-            if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-    if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-            if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-        if (e.getUnionMembership() == null) throw new InvalidDataException("Empregado nao eh sindicalizado.");
-        double total = 0.0;
-        for (ServiceCharge sc : e.getUnionMembership().getServiceCharges()) {
-            if (wepayu.util.DateUtils.isBetweenExclusiveEnd(sc.getDate(), dataInicial, dataFinal)) {
-                String valorStr = String.valueOf(sc.getAmount());
-                double valor;
-                try {
-                    valor = Double.parseDouble(valorStr.replace(",", "."));
-                } catch (NumberFormatException ex) {
-                    valor = sc.getAmount();
-                }
-                total += valor;
-            }
+        long t0 = OP_GET_TAXAS_SERVICO.start();
+        try {
+            ensureSystemOpen();
+            if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            int inicio = parseDataInicial(dataInicial);
+            int fim = parseDataFinal(dataFinal);
+            if (inicio > fim) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
+            Employee e = PayrollDatabase.getEmployee(id);
+            if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+                if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+        if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+                if (e == null) throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
+            if (e.getUnionMembership() == null) throw new InvalidDataException("Empregado nao eh sindicalizado.");
+            return Money.format(e.getUnionMembership().getChargesTotal(inicio, fim, Versions.LATEST));
+        } catch (RuntimeException ex) {
+            OP_GET_TAXAS_SERVICO.failed();
+            throw ex;
+        } finally {
+            OP_GET_TAXAS_SERVICO.stop(t0);
         }
-        return df.format(total);
     }
     /**
      * Altera o status de sindicalização do empregado, incluindo id do sindicato e taxa sindical.
@@ -95,31 +127,43 @@ public class PayrollFacade {
      * @param taxaSindical taxa sindical (String, aceita vírgula)
      */
     public void alteraEmpregado(String id, String atributo, String valor, String idSindicato, String taxaSindical) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        if (atributo == null || !"sindicalizado".equalsIgnoreCase(atributo)) throw new InvalidDataException("Atributo nao existe.");
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
-        if (valor != null && ((String)valor).equalsIgnoreCase("true")) {
-            if (idSindicato == null || idSindicato.isBlank()) throw new InvalidDataException("Identificacao do sindicato nao pode ser nula.");
-            if (taxaSindical == null || taxaSindical.isBlank()) throw new InvalidDataException("Taxa sindical nao pode ser nula.");
-            double taxa;
-            try {
-                taxa = Double.parseDouble(taxaSindical.replace(",", "."));
-            } catch (NumberFormatException ex) {
-                throw new InvalidDataException("Taxa sindical deve ser numerica.");
-            }
-            if (taxa < 0) throw new InvalidDataException("Taxa sindical deve ser nao-negativa.");
-            for (Employee emp : PayrollDatabase.getAllEmployees().values()) {
-                if (emp.getUnionMembership() != null && idSindicato.equals(emp.getUnionMembership().getUnionId()) && !emp.getId().equals(id)) {
-                    throw new InvalidDataException("Ha outro empregado com esta identificacao de sindicato");
+        long t0 = OP_ALTERA_EMPREGADO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            if (atributo == null || !"sindicalizado".equalsIgnoreCase(atributo)) throw new InvalidDataException("Atributo nao existe.");
+            Employee atual = paraAlterar(id);
+            if (atual == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+            UnionMembership filiacao;
+            if (valor != null && ((String)valor).equalsIgnoreCase("true")) {
+                if (idSindicato == null || idSindicato.isBlank()) throw new InvalidDataException("Identificacao do sindicato nao pode ser nula.");
+                if (taxaSindical == null || taxaSindical.isBlank()) throw new InvalidDataException("Taxa sindical nao pode ser nula.");
+                long taxa;
+                try {
+                    taxa = Money.parse(taxaSindical);
+                } catch (NumberFormatException ex) {
+                    throw new InvalidDataException("Taxa sindical deve ser numerica.");
                 }
+                if (taxa < 0) throw new InvalidDataException("Taxa sindical deve ser nao-negativa.");
+                filiacao = new UnionMembership(idSindicato, taxa);
+            } else if (valor != null && ((String)valor).equalsIgnoreCase("false")) {
+                filiacao = null;
+            } else {
+                throw new InvalidDataException("Valor deve ser true ou false.");
             }
-            e.setUnionMembership(new UnionMembership(idSindicato, taxa));
-        } else if (valor != null && ((String)valor).equalsIgnoreCase("false")) {
-            e.setUnionMembership(null);
-        } else {
-            throw new InvalidDataException("Valor deve ser true ou false.");
+            publica(atual, a -> {
+                Employee e = a.copy();
+                e.setUnionMembership(filiacao);
+                return e;
+            });
+            Persistence.record("alteraEmpregado", id, atributo, valor, idSindicato, taxaSindical);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_ALTERA_EMPREGADO, t0, falha, id, null);
         }
     }
     /**
@@ -130,28 +174,23 @@ public class PayrollFacade {
      * @return Total de vendas realizadas (String, formato brasileiro)
      */
     public String getVendasRealizadas(String id, String dataInicial, String dataFinal) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        if (!wepayu.util.DateUtils.isValidDate(dataInicial)) throw new InvalidDataException("Data inicial invalida.");
-        if (!wepayu.util.DateUtils.isValidDate(dataFinal)) throw new InvalidDataException("Data final invalida.");
-        if (wepayu.util.DateUtils.compareDates(dataInicial, dataFinal) > 0) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
-        if (!(e instanceof CommissionedEmployee)) throw new InvalidDataException("Empregado nao eh comissionado.");
-        double total = 0.0;
-        for (SalesReceipt sr : ((CommissionedEmployee) e).sales) {
-            if (wepayu.util.DateUtils.isBetweenExclusiveEnd(sr.getDate(), dataInicial, dataFinal)) {
-                String valorStr = String.valueOf(sr.getAmount());
-                double valor;
-                try {
-                    valor = Double.parseDouble(valorStr.replace(",", "."));
-                } catch (NumberFormatException ex) {
-                    valor = sr.getAmount();
-                }
-                total += valor;
-            }
+        long t0 = OP_GET_VENDAS_REALIZADAS.start();
+        try {
+            ensureSystemOpen();
+            if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            int inicio = parseDataInicial(dataInicial);
+            int fim = parseDataFinal(dataFinal);
+            if (inicio > fim) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
+            Employee e = PayrollDatabase.getEmployee(id);
+            if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+            if (!(e instanceof CommissionedEmployee)) throw new InvalidDataException("Empregado nao eh comissionado.");
+            return Money.format(((CommissionedEmployee) e).getSalesTotal(inicio, fim, Versions.LATEST));
+        } catch (RuntimeException ex) {
+            OP_GET_VENDAS_REALIZADAS.failed();
+            throw ex;
+        } finally {
+            OP_GET_VENDAS_REALIZADAS.stop(t0);
         }
-        return df.format(total);
     }
     /**
      * Retorna o total de horas extras trabalhadas por um empregado horista em um intervalo de datas.
@@ -162,20 +201,28 @@ public class PayrollFacade {
      * @return Horas extras trabalhadas (int)
      */
     public String getHorasExtrasTrabalhadas(String id, String dataInicial, String dataFinal) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
-        if (!(e instanceof HourlyEmployee)) throw new InvalidDataException("Tipo nao aplicavel.");
-        double horas = ((HourlyEmployee) e).getHorasTrabalhadas(dataInicial, dataFinal, true);
-        // Formata com vírgula, sem casas decimais desnecessárias
-        String horasStr = String.format(Locale.FRANCE, "%.1f", horas).replace('.', ',');
-        // Remove vírgula zero (ex: 1,0 -> 1)
-        if (horasStr.endsWith(",0")) horasStr = horasStr.substring(0, horasStr.length() - 2);
-        return horasStr;
+        long t0 = OP_GET_HORAS_EXTRAS_TRABALHADAS.start();
+        try {
+            ensureSystemOpen();
+            if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            Employee e = PayrollDatabase.getEmployee(id);
+            if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+            if (!(e instanceof HourlyEmployee)) throw new InvalidDataException("Tipo nao aplicavel.");
+            double horas = ((HourlyEmployee) e).getHorasTrabalhadas(dataInicial, dataFinal, true);
+            // Formata com vírgula, sem casas decimais desnecessárias
+            String horasStr = String.format(Locale.FRANCE, "%.1f", horas).replace('.', ',');
+            // Remove vírgula zero (ex: 1,0 -> 1)
+            if (horasStr.endsWith(",0")) horasStr = horasStr.substring(0, horasStr.length() - 2);
+            return horasStr;
+        } catch (RuntimeException ex) {
+            OP_GET_HORAS_EXTRAS_TRABALHADAS.failed();
+            throw ex;
+        } finally {
+            OP_GET_HORAS_EXTRAS_TRABALHADAS.stop(t0);
+        }
     }
 
-    // formatador para salário/comissão no formato brasileiro (23,32)
+    // formatador para a comissão no formato brasileiro (0,05); valores em dinheiro usam Money.format
     private static final DecimalFormat df = new DecimalFormat("#0.00",
             new DecimalFormatSymbols(Locale.forLanguageTag("pt-BR")));
 
@@ -183,7 +230,50 @@ public class PayrollFacade {
     // private static boolean sistemaEncerrado = false;
 
     private static void ensureSystemOpen() {
-        // System is always open for commands
+        // System is always open for commands: after encerrarSistema the next call loads the saved state again
+        Persistence.ensureOpen(PayrollFacade::replay);
+        Persistence.markCall();
+    }
+
+    // Fim de uma chamada que altera o banco: Persistence.end espera o journal (ou desfaz a chamada que
+    // nao pode ser gravada) e so entao a chamada eh medida, com a falha com que de fato termina
+    private static void termina(OperationTimer op, long t0, RuntimeException falha, String id, String data) {
+        try {
+            Persistence.end(falha);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            op.stop(t0, falha, id, data, EMPREGADOS);
+        }
+    }
+
+    // Reexecuta uma chamada do journal (mesmo metodo, mesmos argumentos)
+    private static void replay(String op, Object[] args) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof Double) types[i] = double.class;
+            else if (args[i] instanceof Integer) types[i] = int.class;
+            else types[i] = String.class;
+        }
+        try {
+            PayrollFacade.class.getMethod(op, types).invoke(new PayrollFacade(), args);
+        } catch (java.lang.reflect.InvocationTargetException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    // Converte as datas de consulta uma unica vez para epoch day
+    private static int parseDataInicial(String data) {
+        java.time.LocalDate d = wepayu.util.DateUtils.parseOrNull(data);
+        if (d == null) throw new InvalidDataException("Data inicial invalida.");
+        return wepayu.util.DateUtils.toEpochDay(d);
+    }
+
+    private static int parseDataFinal(String data) {
+        java.time.LocalDate d = wepayu.util.DateUtils.parseOrNull(data);
+        if (d == null) throw new InvalidDataException("Data final invalida.");
+        return wepayu.util.DateUtils.toEpochDay(d);
     }
 
         /**
@@ -195,49 +285,110 @@ public class PayrollFacade {
          * @return Horas normais trabalhadas (int)
          */
         public int getHorasNormaisTrabalhadas(String id, String dataInicial, String dataFinal) {
-            ensureSystemOpen();
-            if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-            if (!wepayu.util.DateUtils.isValidDate(dataInicial)) throw new InvalidDataException("Data inicial invalida.");
-            if (!wepayu.util.DateUtils.isValidDate(dataFinal)) throw new InvalidDataException("Data final invalida.");
-            if (wepayu.util.DateUtils.compareDates(dataInicial, dataFinal) > 0) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
-            Employee e = PayrollDatabase.getEmployee(id);
-            if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
-            if (!(e instanceof HourlyEmployee)) throw new InvalidDataException("Empregado nao eh horista.");
-            double horas = ((HourlyEmployee) e).getHorasTrabalhadas(dataInicial, dataFinal, false);
-            return (int) horas;
+            long t0 = OP_GET_HORAS_NORMAIS_TRABALHADAS.start();
+            try {
+                ensureSystemOpen();
+                if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+                int inicio = parseDataInicial(dataInicial);
+                int fim = parseDataFinal(dataFinal);
+                if (inicio > fim) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
+                Employee e = PayrollDatabase.getEmployee(id);
+                if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+                if (!(e instanceof HourlyEmployee)) throw new InvalidDataException("Empregado nao eh horista.");
+                double horas = ((HourlyEmployee) e).getHorasNoPeriodo(inicio, fim).normal;
+                return (int) horas;
+            } catch (RuntimeException ex) {
+                OP_GET_HORAS_NORMAIS_TRABALHADAS.failed();
+                throw ex;
+            } finally {
+                OP_GET_HORAS_NORMAIS_TRABALHADAS.stop(t0);
+            }
         }
     // Reinicia o sistema
     public void zerarSistema() {
-    ensureSystemOpen();
-    // Make zerarSistema an undoable command so tests can undo it
-    CommandManager.executeCommand(new wepayu.service.ClearSystemCommand());
-    // After clearing ensure default schedule placeholders exist
-    ensureDefaultSchedules();
+        long t0 = OP_ZERAR_SISTEMA.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            foraDeTransacao();
+            // Make zerarSistema an undoable command so tests can undo it
+            // (the command also resets the schedule registry to the defaults)
+            CommandManager.executeCommand(new wepayu.service.ClearSystemCommand());
+            Persistence.record("zerarSistema");
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_ZERAR_SISTEMA, t0, falha, null, null);
+        }
     }
 
-    // Encerra o sistema
+    // Encerra o sistema. Com a persistencia ligada (wepayu.persistence=true) grava um checkpoint, que
+    // limpa o historico de undo/redo: nada feito antes do encerramento pode ser desfeito depois
     public void encerrarSistema() {
-    PayrollDatabase.clear();
-    // restore default schedules so tests that run after still find them
-    ensureDefaultSchedules();
-    // System never closes for test compatibility
+        long t0 = OP_ENCERRAR_SISTEMA.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            // uma transacao aberta nesta thread nao foi confirmada: eh descartada
+            Transaction aberta = Transaction.current();
+            if (aberta != null) aberta.rollback();
+            // checkpoint and close the journal; the state is loaded again on the next call
+            Persistence.close();
+            CommandManager.clear();
+            PayrollDatabase.clear();
+            // restore default schedules so tests that run after still find them
+            ScheduleRegistry.reset();
+            // System never closes for test compatibility
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_ENCERRAR_SISTEMA, t0, falha, null, null);
+        }
     }
 
     // Criar empregados
     public String criarEmpregado(String nome, String endereco, String tipo, String salarioStr) {
-        ensureSystemOpen();
-        return criarEmpregado(nome, endereco, tipo, salarioStr, null);
+        long t0 = OP_CRIAR_EMPREGADO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            return criarEmpregadoInternal(nome, endereco, tipo, salarioStr, null);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_CRIAR_EMPREGADO, t0, falha, null, null);
+        }
     }
 
     public String criarEmpregado(String nome, String endereco, String tipo, String salarioStr, String comissaoStr) {
+        long t0 = OP_CRIAR_EMPREGADO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            return criarEmpregadoInternal(nome, endereco, tipo, salarioStr, comissaoStr);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_CRIAR_EMPREGADO, t0, falha, null, null);
+        }
+    }
+
+    private String criarEmpregadoInternal(String nome, String endereco, String tipo, String salarioStr, String comissaoStr) {
+        ensureSystemOpen();
         if (nome == null || nome.isBlank()) throw new InvalidDataException("Nome nao pode ser nulo.");
         if (endereco == null || endereco.isBlank()) throw new InvalidDataException("Endereco nao pode ser nulo.");
         if (tipo == null || tipo.isBlank()) throw new InvalidDataException("Tipo invalido.");
         if (salarioStr == null || salarioStr.isBlank()) throw new InvalidDataException("Salario nao pode ser nulo.");
 
-        double salario;
+        long salario;
         try {
-            salario = Double.parseDouble(salarioStr.replace(",", "."));
+            salario = Money.parse(salarioStr);
         } catch (NumberFormatException e) {
             throw new InvalidDataException("Salario deve ser numerico.");
         }
@@ -273,33 +424,71 @@ public class PayrollFacade {
                 throw new InvalidDataException("Tipo invalido.");
         }
 
-        CommandManager.executeCommand(new AddEmployeeCommand(e));
+        Transaction tx = Transaction.current();
+        if (tx != null) tx.stage(null, e);
+        else CommandManager.executeCommand(new AddEmployeeCommand(e));
+        Persistence.record("criarEmpregado", nome, endereco, tipo, salarioStr, comissaoStr);
         return e.getId();
     }
 
     // Remover empregado
     public void removerEmpregado(String id) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank()) {
-            throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        }
-        if (PayrollDatabase.getEmployee(id) == null) {
-            throw new EmployeeNotFoundException("Empregado nao existe.");
+        long t0 = OP_REMOVER_EMPREGADO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            if (id == null || id.isBlank()) {
+                throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            }
+            Employee e = paraAlterar(id);
+            if (e == null) {
+                throw new EmployeeNotFoundException("Empregado nao existe.");
+            }
+            Transaction tx = Transaction.current();
+            if (tx != null) tx.stage(e, null);
+            else CommandManager.executeCommand(new RemoveEmployeeCommand(id));
+            Persistence.record("removerEmpregado", id);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_REMOVER_EMPREGADO, t0, falha, id, null);
         }
-        CommandManager.executeCommand(new RemoveEmployeeCommand(id));
     }
 
     // Alterar atributos
     public void alteraEmpregado(String id, String atributo, String valor1) {
+        long t0 = OP_ALTERA_EMPREGADO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            alteraEmpregadoInternal(id, atributo, valor1);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_ALTERA_EMPREGADO, t0, falha, id, null);
+        }
+    }
+
+    private void alteraEmpregadoInternal(String id, String atributo, String valor1) {
         ensureSystemOpen();
         if (id == null || id.isBlank() || atributo == null) {
             throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
         }
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) {
+        Employee atual = paraAlterar(id);
+        if (atual == null) {
             throw new EmployeeNotFoundException("Empregado nao existe.");
         }
+        publica(atual, a -> alterado(a, atributo, valor1));
+        Persistence.record("alteraEmpregado", id, atributo, valor1);
+    }
 
+    // Versao alterada de atual (uma copia; folhas em andamento continuam vendo atual) para alteraEmpregado
+    // com um valor
+    private Employee alterado(Employee atual, String atributo, String valor1) {
+        Employee e = atual.copy();
         switch (atributo.toLowerCase()) {
             case "nome":
                 if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Nome nao pode ser nulo.");
@@ -339,14 +528,12 @@ public class PayrollFacade {
                     case "horista":
                         Employee newH = new HourlyEmployee(e.getName(), e.getAddress(), 0);
                         copyCommonFields(e, newH);
-                        PayrollDatabase.removeEmployee(id);
-                        PayrollDatabase.addEmployee(newH);
+                        e = newH;
                         break;
                     case "assalariado":
                         Employee newS = new SalariedEmployee(e.getName(), e.getAddress(), 0);
                         copyCommonFields(e, newS);
-                        PayrollDatabase.removeEmployee(id);
-                        PayrollDatabase.addEmployee(newS);
+                        e = newS;
                         break;
                     case "comissionado":
                         // requires commission parameter; delegate to overload that accepts extra
@@ -359,24 +546,14 @@ public class PayrollFacade {
             case "agenda":
             case "agendadepagamento":
                 if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Agenda invalida.");
-                String desc = valor1.trim();
-                // look for schedule placeholders by matching their stored description case-insensitively
-                boolean found = false;
-                for (Employee emp : PayrollDatabase.getAllEmployees().values()) {
-                    if (emp.getId() != null && emp.getId().startsWith("__SCHEDULE__::") && emp.getPaymentScheduleDescription() != null) {
-                        if (emp.getPaymentScheduleDescription().trim().equalsIgnoreCase(desc)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                }
-                if (!found) throw new InvalidDataException("Agenda de pagamento nao esta disponivel");
-                e.setPaymentScheduleDescription(desc);
+                wepayu.util.CompiledSchedule agenda = ScheduleRegistry.get(valor1);
+                if (agenda == null) throw new InvalidDataException("Agenda de pagamento nao esta disponivel");
+                e.setCompiledSchedule(agenda);
                 break;
             case "salario":
                 if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Salario nao pode ser nulo.");
-                double salario;
-                try { salario = Double.parseDouble(valor1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
+                long salario;
+                try { salario = Money.parse(valor1); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
                 if (salario < 0) throw new InvalidDataException("Salario deve ser nao-negativo.");
                 if (e instanceof HourlyEmployee) ((HourlyEmployee)e).setHourlyRate(salario);
                 else if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee)) ((SalariedEmployee)e).setMonthlySalary(salario);
@@ -384,8 +561,7 @@ public class PayrollFacade {
                     double commissionRate = ((CommissionedEmployee)e).getCommissionRate();
                     Employee newE = new CommissionedEmployee(e.getName(), e.getAddress(), salario, commissionRate);
                     copyCommonFields(e, newE);
-                    PayrollDatabase.removeEmployee(id);
-                    PayrollDatabase.addEmployee(newE);
+                    e = newE;
                 }
                 break;
             case "comissao":
@@ -399,127 +575,220 @@ public class PayrollFacade {
             default:
                 throw new InvalidDataException("Atributo nao existe.");
         }
+        return e;
     }
 
     // Overload to support setting bank details when changing payment method to bank
     public void alteraEmpregado(String id, String atributo, String valor1, String banco, String agencia, String contaCorrente) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank() || atributo == null) {
-            throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        }
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) {
-            throw new EmployeeNotFoundException("Empregado nao existe.");
-        }
+        long t0 = OP_ALTERA_EMPREGADO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            if (id == null || id.isBlank() || atributo == null) {
+                throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            }
+            Employee e = paraAlterar(id);
+            if (e == null) {
+                throw new EmployeeNotFoundException("Empregado nao existe.");
+            }
 
-        if (!"metodopagamento".equalsIgnoreCase(atributo)) {
-            // delegate to existing single-arg alteraEmpregado for other attributes
-            alteraEmpregado(id, atributo, valor1);
-            return;
-        }
+            if (!"metodopagamento".equalsIgnoreCase(atributo)) {
+                // delegate to existing single-arg alteraEmpregado for other attributes
+                alteraEmpregadoInternal(id, atributo, valor1);
+                return;
+            }
 
-        if (valor1 == null) throw new InvalidDataException("Metodo de pagamento invalido.");
-        if (!valor1.equalsIgnoreCase("banco")) {
-            // delegate to single-arg for non-bank methods
-            alteraEmpregado(id, atributo, valor1);
-            return;
-        }
+            if (valor1 == null) throw new InvalidDataException("Metodo de pagamento invalido.");
+            if (!valor1.equalsIgnoreCase("banco")) {
+                // delegate to single-arg for non-bank methods
+                alteraEmpregadoInternal(id, atributo, valor1);
+                return;
+            }
 
-        // banco path: validate fields
-        if (banco == null || banco.isBlank()) throw new InvalidDataException("Banco nao pode ser nulo.");
-        if (agencia == null || agencia.isBlank()) throw new InvalidDataException("Agencia nao pode ser nulo.");
-        if (contaCorrente == null || contaCorrente.isBlank()) throw new InvalidDataException("Conta corrente nao pode ser nulo.");
+            // banco path: validate fields
+            if (banco == null || banco.isBlank()) throw new InvalidDataException("Banco nao pode ser nulo.");
+            if (agencia == null || agencia.isBlank()) throw new InvalidDataException("Agencia nao pode ser nulo.");
+            if (contaCorrente == null || contaCorrente.isBlank()) throw new InvalidDataException("Conta corrente nao pode ser nulo.");
 
-        e.setPaymentMethod(PaymentMethod.DEPOSITO_BANCARIO);
-        e.setBankName(banco);
-        e.setAgency(agencia);
-        e.setAccount(contaCorrente);
+            publica(e, a -> {
+                Employee novo = a.copy();
+                novo.setPaymentMethod(PaymentMethod.DEPOSITO_BANCARIO);
+                novo.setBankName(banco);
+                novo.setAgency(agencia);
+                novo.setAccount(contaCorrente);
+                return novo;
+            });
+            Persistence.record("alteraEmpregado", id, atributo, valor1, banco, agencia, contaCorrente);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_ALTERA_EMPREGADO, t0, falha, id, null);
+        }
     }
 
     // Overload to support operations that require additional numeric/string params: tipo change with salary/comissao, salario change, comissao change
     public void alteraEmpregado(String id, String atributo, String valor1, String extra1) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank() || atributo == null) {
-            throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        }
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) {
-            throw new EmployeeNotFoundException("Empregado nao existe.");
-        }
+        long t0 = OP_ALTERA_EMPREGADO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            if (id == null || id.isBlank() || atributo == null) {
+                throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            }
+            Employee e = paraAlterar(id);
+            if (e == null) {
+                throw new EmployeeNotFoundException("Empregado nao existe.");
+            }
 
-        if ("tipo".equalsIgnoreCase(atributo)) {
-            if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Tipo invalido.");
-            String tipo = valor1.toLowerCase();
-            switch (tipo) {
-                case "horista":
-                    double hrRate;
-                    try { hrRate = Double.parseDouble(extra1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
-                    if (hrRate < 0) throw new InvalidDataException("Salario deve ser nao-negativo.");
-                    Employee newE1 = new HourlyEmployee(e.getName(), e.getAddress(), hrRate);
-                    copyCommonFields(e, newE1);
-                    PayrollDatabase.removeEmployee(id);
-                    PayrollDatabase.addEmployee(newE1);
-                    break;
-                case "assalariado":
-                    double sal;
-                    try { sal = Double.parseDouble(extra1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
-                    if (sal < 0) throw new InvalidDataException("Salario deve ser nao-negativo.");
-                    Employee newE2 = new SalariedEmployee(e.getName(), e.getAddress(), sal);
-                    copyCommonFields(e, newE2);
-                    PayrollDatabase.removeEmployee(id);
-                    PayrollDatabase.addEmployee(newE2);
-                    break;
-                case "comissionado":
-                    // extra1 expected to be comissao
-                    if (extra1 == null || extra1.isBlank()) throw new InvalidDataException("Comissao nao pode ser nula.");
-                    double com;
-                    try { com = Double.parseDouble(extra1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Comissao deve ser numerica."); }
-                    if (com < 0) throw new InvalidDataException("Comissao deve ser nao-negativa.");
-                    // default salary keep previous monthly if available, else 0
-                    double baseSalary = 0;
-                    if (e instanceof SalariedEmployee) baseSalary = ((SalariedEmployee)e).getMonthlySalary();
-                    Employee newE3 = new CommissionedEmployee(e.getName(), e.getAddress(), baseSalary, com);
-                    copyCommonFields(e, newE3);
-                    PayrollDatabase.removeEmployee(id);
-                    PayrollDatabase.addEmployee(newE3);
-                    break;
-                default:
-                    throw new InvalidDataException("Tipo invalido.");
+            if ("tipo".equalsIgnoreCase(atributo)) {
+                if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Tipo invalido.");
+                String tipo = valor1.toLowerCase();
+                switch (tipo) {
+                    case "horista":
+                        long hrRate;
+                        try { hrRate = Money.parse(extra1); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
+                        if (hrRate < 0) throw new InvalidDataException("Salario deve ser nao-negativo.");
+                        publica(e, a -> {
+                            Employee newE1 = new HourlyEmployee(a.getName(), a.getAddress(), hrRate);
+                            copyCommonFields(a, newE1);
+                            return newE1;
+                        });
+                        break;
+                    case "assalariado":
+                        long sal;
+                        try { sal = Money.parse(extra1); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
+                        if (sal < 0) throw new InvalidDataException("Salario deve ser nao-negativo.");
+                        publica(e, a -> {
+                            Employee newE2 = new SalariedEmployee(a.getName(), a.getAddress(), sal);
+                            copyCommonFields(a, newE2);
+                            return newE2;
+                        });
+                        break;
+                    case "comissionado":
+                        // extra1 expected to be comissao
+                        if (extra1 == null || extra1.isBlank()) throw new InvalidDataException("Comissao nao pode ser nula.");
+                        double com;
+                        try { com = Double.parseDouble(extra1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Comissao deve ser numerica."); }
+                        if (com < 0) throw new InvalidDataException("Comissao deve ser nao-negativa.");
+                        publica(e, a -> {
+                            // default salary keep previous monthly if available, else 0
+                            long baseSalary = 0;
+                            if (a instanceof SalariedEmployee) baseSalary = ((SalariedEmployee)a).getMonthlySalary();
+                            Employee newE3 = new CommissionedEmployee(a.getName(), a.getAddress(), baseSalary, com);
+                            copyCommonFields(a, newE3);
+                            return newE3;
+                        });
+                        break;
+                    default:
+                        throw new InvalidDataException("Tipo invalido.");
+                }
+                Persistence.record("alteraEmpregado", id, atributo, valor1, extra1);
+                return;
             }
-            return;
-        }
 
-        if ("salario".equalsIgnoreCase(atributo)) {
-            if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Salario nao pode ser nulo.");
-            double salario;
-            try { salario = Double.parseDouble(valor1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
-            if (salario < 0) throw new InvalidDataException("Salario deve ser nao-negativo.");
-            if (e instanceof HourlyEmployee) ((HourlyEmployee)e).setHourlyRate(salario);
-            else if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee)) ((SalariedEmployee)e).setMonthlySalary(salario);
-            else if (e instanceof CommissionedEmployee) {
-                // Set base salary on commissioned -> use reflection or recreate
-                // We'll recreate preserving commission
-                double commissionRate = ((CommissionedEmployee)e).getCommissionRate();
-                Employee newE = new CommissionedEmployee(e.getName(), e.getAddress(), salario, commissionRate);
-                copyCommonFields(e, newE);
-                PayrollDatabase.removeEmployee(id);
-                PayrollDatabase.addEmployee(newE);
+            if ("salario".equalsIgnoreCase(atributo)) {
+                if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Salario nao pode ser nulo.");
+                long salario;
+                try { salario = Money.parse(valor1); } catch (Exception ex) { throw new InvalidDataException("Salario deve ser numerico."); }
+                if (salario < 0) throw new InvalidDataException("Salario deve ser nao-negativo.");
+                publica(e, a -> {
+                    Employee novo = a.copy();
+                    if (a instanceof HourlyEmployee) ((HourlyEmployee)novo).setHourlyRate(salario);
+                    else if (a instanceof SalariedEmployee && !(a instanceof CommissionedEmployee)) ((SalariedEmployee)novo).setMonthlySalary(salario);
+                    else if (a instanceof CommissionedEmployee) {
+                        // Set base salary on commissioned -> use reflection or recreate
+                        // We'll recreate preserving commission
+                        double commissionRate = ((CommissionedEmployee)a).getCommissionRate();
+                        novo = new CommissionedEmployee(a.getName(), a.getAddress(), salario, commissionRate);
+                        copyCommonFields(a, novo);
+                    }
+                    return novo;
+                });
+                Persistence.record("alteraEmpregado", id, atributo, valor1, extra1);
+                return;
             }
+
+            if ("comissao".equalsIgnoreCase(atributo)) {
+                if (!(e instanceof CommissionedEmployee)) throw new InvalidDataException("Empregado nao eh comissionado.");
+                if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Comissao nao pode ser nula.");
+                double commission;
+                try { commission = Double.parseDouble(valor1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Comissao deve ser numerica."); }
+                if (commission < 0) throw new InvalidDataException("Comissao deve ser nao-negativa.");
+                publica(e, a -> {
+                    // a versao publicada nesse meio tempo pode ser de outro tipo
+                    if (!(a instanceof CommissionedEmployee)) throw new InvalidDataException("Empregado nao eh comissionado.");
+                    Employee novo = a.copy();
+                    ((CommissionedEmployee)novo).setCommissionRate(commission);
+                    return novo;
+                });
+                Persistence.record("alteraEmpregado", id, atributo, valor1, extra1);
+                return;
+            }
+
+            // fallback to single-arg handler
+            alteraEmpregadoInternal(id, atributo, valor1);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_ALTERA_EMPREGADO, t0, falha, id, null);
+        }
+    }
+
+    // Publica a versao que a alteracao faz da versao lida (copy-on-write), como um comando desfazivel
+    // (o par de versoes eh o delta). Se outra alteracao publicou uma versao nesse meio tempo, a alteracao
+    // eh refeita sobre ela; falha se o empregado foi removido ou se o id de sindicato da nova versao ja
+    // eh de outro empregado
+    private static void publica(Employee atual, UnaryOperator<Employee> alteracao) {
+        Transaction tx = Transaction.current();
+        if (tx != null) {
+            // conflitos de sindicato e de versao sao verificados de uma vez no commit
+            tx.stage(atual, alteracao.apply(atual));
             return;
         }
+        while (true) {
+            try {
+                CommandManager.executeCommand(new ReplaceEmployeeCommand(atual, alteracao.apply(atual)));
+                return;
+            } catch (IllegalStateException conflito) {
+                // nada foi publicado; abaixo o motivo
+            }
+            Employee agora = PayrollDatabase.getEmployee(atual.getId());
+            if (agora == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+            if (agora == atual) throw new InvalidDataException("Ha outro empregado com esta identificacao de sindicato");
+            atual = agora;
+        }
+    }
 
-        if ("comissao".equalsIgnoreCase(atributo)) {
-            if (!(e instanceof CommissionedEmployee)) throw new InvalidDataException("Empregado nao eh comissionado.");
-            if (valor1 == null || valor1.isBlank()) throw new InvalidDataException("Comissao nao pode ser nula.");
-            double commission;
-            try { commission = Double.parseDouble(valor1.replace(",",".")); } catch (Exception ex) { throw new InvalidDataException("Comissao deve ser numerica."); }
-            if (commission < 0) throw new InvalidDataException("Comissao deve ser nao-negativa.");
-            ((CommissionedEmployee)e).setCommissionRate(commission);
+    // Empregado como a operacao deve ve-lo: a versao preparada na transacao aberta nesta thread, se houver
+    private static Employee paraAlterar(String id) {
+        Transaction tx = Transaction.current();
+        return tx != null ? tx.getEmployee(id) : PayrollDatabase.getEmployee(id);
+    }
+
+    // Empregado que tem o id de sindicato, visto como em paraAlterar
+    private static Employee membroParaAlterar(String unionId) {
+        Transaction tx = Transaction.current();
+        return tx != null ? tx.getEmployeeByUnionId(unionId) : PayrollDatabase.getEmployeeByUnionId(unionId);
+    }
+
+    // Faz o lancamento, o registra para undo e o grava no journal como a chamada op(args); numa transacao
+    // ele fica para o commit
+    private static void lanca(Employee dono, Command lancamento, String op, Object... args) {
+        Transaction tx = Transaction.current();
+        if (tx != null) {
+            tx.post(dono, lancamento);
+            Persistence.record(op, args);
             return;
         }
+        Persistence.post(dono.getId(), lancamento, op, args);
+    }
 
-        // fallback to single-arg handler
-        alteraEmpregado(id, atributo, valor1);
+    private static void foraDeTransacao() {
+        if (Transaction.current() != null) throw new InvalidDataException("Operacao nao permitida durante uma transacao.");
     }
 
     private void copyCommonFields(Employee from, Employee to) {
@@ -533,300 +802,440 @@ public class PayrollFacade {
         to.setAgency(from.getAgency());
         to.setAccount(from.getAccount());
         // payment schedule description
-        to.setPaymentScheduleDescription(from.getPaymentScheduleDescription());
+        to.setCompiledSchedule(from.getCompiledSchedule());
     }
 
     // Differently-named entrypoint for programmatic callers that pass numeric taxa values.
     // EasyAccept will prefer the String-based alteraEmpregado overloads when tests provide comma-formatted numbers.
     public void alteraEmpregadoSindicatoDouble(String id, String unionId, double taxa) {
-        ensureSystemOpen();
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
-        e.setUnionMembership(new UnionMembership(unionId, taxa));
+        long t0 = OP_ALTERA_EMPREGADO_SINDICATO_DOUBLE.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            Employee e = paraAlterar(id);
+            if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+            UnionMembership filiacao = new UnionMembership(unionId, Money.ofUnits(taxa));
+            publica(e, a -> {
+                Employee novo = a.copy();
+                novo.setUnionMembership(filiacao);
+                return novo;
+            });
+            Persistence.record("alteraEmpregadoSindicatoDouble", id, unionId, taxa);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_ALTERA_EMPREGADO_SINDICATO_DOUBLE, t0, falha, id, null);
+        }
     }
 
     // Lançamentos
     public void lancaCartao(String id, String data, String horasStr) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank() || data == null || horasStr == null) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        double horas;
+        long t0 = OP_LANCA_CARTAO.start();
+        RuntimeException falha = null;
         try {
-            horas = Double.parseDouble(horasStr.replace(",", "."));
-        } catch (NumberFormatException ex) {
-            throw new InvalidDataException("Horas deve ser numerica.");
-        }
-        if (horas <= 0) throw new InvalidDataException("Horas devem ser positivas.");
-        // Validação de data: formato dd/MM/yyyy
-        if (!wepayu.util.DateUtils.isValidDate(data)) {
-            throw new InvalidDataException("Data invalida.");
+            Persistence.beginPosting();
+            ensureSystemOpen();
+            PostingValidation.Posting p = new PostingValidation.Posting();
+            Rejection r = PostingValidation.timeCard(id, data, horasStr, PayrollFacade::paraAlterar, p);
+            if (r != null) throw r.toException(horasStr);
+            lanca(p.employee, new PostTimeCardCommand((HourlyEmployee) p.employee, new TimeCard(p.epochDay, p.hours)),
+                    "lancaCartao", id, data, horasStr);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_LANCA_CARTAO, t0, falha, id, data);
         }
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
-        if (!(e instanceof HourlyEmployee)) throw new InvalidDataException("Empregado nao eh horista.");
-        ((HourlyEmployee) e).addTimeCard(new TimeCard(data, horas));
     }
 
     // Keep a differently-named entrypoint for programmatic callers that pass double values.
     // EasyAccept will not see this method name so it will choose the String overload when tests pass comma-formatted numbers.
     public void lancaVendaDouble(String id, String data, double valorDouble) {
-        ensureSystemOpen();
-        lancaVendaInternal(id, data, valorDouble);
+        long t0 = OP_LANCA_VENDA_DOUBLE.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.beginPosting();
+            ensureSystemOpen();
+            if (id == null || id.isBlank() || data == null) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            java.time.LocalDate dia = wepayu.util.DateUtils.parseOrNull(data);
+            if (dia == null) throw new InvalidDataException("Data invalida.");
+            lancaVendaInternal(id, wepayu.util.DateUtils.toEpochDay(dia), Money.ofUnits(valorDouble), data, valorDouble);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_LANCA_VENDA_DOUBLE, t0, falha, id, data);
+        }
+    }
+    // Importa cartoes, vendas e taxas de servico de um arquivo, uma linha por lancamento (formato em
+    // PostingImport). As linhas validas entram agrupadas por empregado, como uma so entrada de undo; as
+    // invalidas nao interrompem a importacao e voltam no relatorio com o numero da linha e o erro
+    public String importaLancamentos(String arquivo) {
+        long t0 = OP_IMPORTA_LANCAMENTOS.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            foraDeTransacao();
+            if (arquivo == null || arquivo.isBlank()) throw new InvalidDataException("Arquivo invalido.");
+            return PostingImport.run(java.nio.file.Paths.get(arquivo)).toString();
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_IMPORTA_LANCAMENTOS, t0, falha, null, null);
+        }
+    }
+
+    // Compacta os lancamentos dos dias anteriores a data (tipicamente o fim do ultimo periodo pago):
+    // as consultas e a folha dao o mesmo resultado, com bem menos memoria. Os comandos com lancamentos
+    // compactados (e os anteriores a eles) saem do undo
+    public String compactaHistorico(String data) {
+        return compactaHistorico(data, null);
+    }
+
+    // Idem, gravando antes os lancamentos compactados no arquivo, no formato de importaLancamentos
+    public String compactaHistorico(String data, String arquivo) {
+        long t0 = OP_COMPACTA_HISTORICO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            foraDeTransacao();
+            java.time.LocalDate dia = wepayu.util.DateUtils.parseOrNull(data);
+            if (dia == null) throw new InvalidDataException("Data invalida.");
+            if (arquivo != null && arquivo.isBlank()) throw new InvalidDataException("Arquivo invalido.");
+            // no replay o arquivo ja existe: so a compactacao e repetida
+            java.nio.file.Path destino = arquivo == null || Persistence.isReplaying() ? null : java.nio.file.Paths.get(arquivo);
+            String relatorio = HistoryCompaction.run((int) dia.toEpochDay(), destino).toString();
+            Persistence.record("compactaHistorico", data);
+            return relatorio;
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_COMPACTA_HISTORICO, t0, falha, null, null);
+        }
     }
+
     // Sobrecarga para aceitar valor como String (com vírgula)
     public void lancaVenda(String id, String data, String valor) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank() || data == null || valor == null) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        if (!wepayu.util.DateUtils.isValidDate(data)) throw new InvalidDataException("Data invalida.");
-        double d = parseValor(valor);
-        if (d <= 0) throw new InvalidDataException("Valor deve ser positivo.");
-        lancaVendaInternal(id, data, d);
+        long t0 = OP_LANCA_VENDA.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.beginPosting();
+            ensureSystemOpen();
+            PostingValidation.Posting p = new PostingValidation.Posting();
+            Rejection r = PostingValidation.sale(id, data, valor, PayrollFacade::paraAlterar, p);
+            if (r != null) throw r.toException(valor);
+            lanca(p.employee, new PostSaleCommand((CommissionedEmployee) p.employee, new SalesReceipt(p.epochDay, p.amount)),
+                    "lancaVenda", id, data, valor);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_LANCA_VENDA, t0, falha, id, data);
+        }
     }
 
     // Implementação centralizada para lancaVenda
-    private void lancaVendaInternal(String id, String data, double valor) {
-        if (id == null || id.isBlank() || data == null) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        if (!wepayu.util.DateUtils.isValidDate(data)) throw new InvalidDataException("Data invalida.");
-        double valorCorrigido = valor;
-        // Trata valores com vírgula vindos como String convertida incorretamente (defensivo)
-        if (String.valueOf(valor).contains(",")) {
-            try {
-                valorCorrigido = Double.parseDouble(String.valueOf(valor).replace(",", "."));
-            } catch (NumberFormatException ex) {
-                throw new InvalidDataException("Valor deve ser numerico.");
-            }
-        }
-        if (valorCorrigido <= 0) throw new InvalidDataException("Valor deve ser positivo.");
-        Employee e = PayrollDatabase.getEmployee(id);
+    // A data ja chega validada e convertida para epoch day, e o valor para centavos, pelos pontos de entrada
+    // (data e valorDouble, como chegaram, vao para o journal)
+    private void lancaVendaInternal(String id, int dia, long valor, String data, double valorDouble) {
+        if (valor <= 0) throw new InvalidDataException("Valor deve ser positivo.");
+        Employee e = paraAlterar(id);
         if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
         if (!(e instanceof CommissionedEmployee)) throw new InvalidDataException("Empregado nao eh comissionado.");
-        ((CommissionedEmployee) e).addSalesReceipt(new SalesReceipt(data, valorCorrigido));
+        lanca(e, new PostSaleCommand((CommissionedEmployee) e, new SalesReceipt(dia, valor)), "lancaVendaDouble", id, data, valorDouble);
     }
 
     // Keep a differently-named entrypoint for programmatic callers that pass double values.
     // EasyAccept will not see this method name so it will choose the String overload when tests pass comma-formatted numbers.
     public void lancaTaxaServicoDouble(String id, String data, double valorDouble) {
-        ensureSystemOpen();
-        lancaTaxaServicoInternal(id, data, valorDouble);
-    }
-
-    // Helper para normalizar e converter valores, lançando exceção com mensagem esperada
-    private double parseValor(String valorStr) {
-        if (valorStr == null) {
-            throw new InvalidDataException("Valor nulo");
-        }
-        String normalized = valorStr.replace(",", ".");
+        long t0 = OP_LANCA_TAXA_SERVICO_DOUBLE.start();
+        RuntimeException falha = null;
         try {
-            return Double.parseDouble(normalized);
-        } catch (NumberFormatException e) {
-            // Mensagem alinhada com os relatórios/tests
-            throw new RuntimeException("Problems during Type Conversion - " + valorStr + " to class java.lang.Double", e);
+            Persistence.beginPosting();
+            ensureSystemOpen();
+            if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do membro nao pode ser nula.");
+            java.time.LocalDate dia = wepayu.util.DateUtils.parseOrNull(data);
+            if (dia == null) throw new InvalidDataException("Data invalida.");
+            lancaTaxaServicoInternal(id, wepayu.util.DateUtils.toEpochDay(dia), Money.ofUnits(valorDouble), data, valorDouble);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_LANCA_TAXA_SERVICO_DOUBLE, t0, falha, id, data);
         }
     }
 
     // Implementação centralizada para evitar recursão e StackOverflow
-    private void lancaTaxaServicoInternal(String id, String data, double valor) {
-        if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do membro nao pode ser nula.");
-        if (!wepayu.util.DateUtils.isValidDate(data)) throw new InvalidDataException("Data invalida.");
+    // (id e data ja validados pelos pontos de entrada; data e valorDouble, como chegaram, vao para o journal)
+    private void lancaTaxaServicoInternal(String id, int dia, long valor, String data, double valorDouble) {
         if (valor <= 0) throw new InvalidDataException("Valor deve ser positivo.");
-        Employee e = null;
-        for (Employee emp : PayrollDatabase.getAllEmployees().values()) {
-            if (emp.getUnionMembership() != null && id.equals(emp.getUnionMembership().getUnionId())) {
-                e = emp;
-                break;
-            }
-        }
+        Employee e = membroParaAlterar(id);
         if (e == null) throw new InvalidDataException("Membro nao existe.");
-        e.getUnionMembership().addServiceCharge(new ServiceCharge(data, valor));
+        lanca(e, new PostServiceChargeCommand(e.getUnionMembership(), new ServiceCharge(dia, valor)), "lancaTaxaServicoDouble", id, data, valorDouble);
     }
 
     // Obter atributos de empregado
     public String getAtributoEmpregado(String id, String atributo) {
-        ensureSystemOpen();
-        if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
-        Employee e = PayrollDatabase.getEmployee(id);
-        if (e == null) {
-            // Tenta buscar por nome exato
-            for (Employee empObj : PayrollDatabase.getAllEmployees().values()) {
-                if (empObj.getName() != null && empObj.getName().equals(id)) {
-                    e = empObj;
-                    break;
-                }
+        long t0 = OP_GET_ATRIBUTO_EMPREGADO.start();
+        try {
+            ensureSystemOpen();
+            if (id == null || id.isBlank()) throw new InvalidDataException("Identificacao do empregado nao pode ser nula.");
+            Employee e = PayrollDatabase.getEmployee(id);
+            if (e == null) {
+                // Tenta buscar por nome exato
+                List<String> ids = PayrollDatabase.getEmployeeIdsByName(id);
+                if (!ids.isEmpty()) e = PayrollDatabase.getEmployee(ids.get(0));
             }
-        }
-        if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
+            if (e == null) throw new EmployeeNotFoundException("Empregado nao existe.");
 
-    switch (atributo.toLowerCase()) {
-            case "nome": return e.getName();
-            case "endereco": return e.getAddress();
-            case "tipo":
-                if (e instanceof HourlyEmployee) return "horista";
-                if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee)) return "assalariado";
-                if (e instanceof CommissionedEmployee) return "comissionado";
-                break;
-            case "salario":
-                if (e instanceof HourlyEmployee) return df.format(((HourlyEmployee) e).getHourlyRate());
-                if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee))
-                    return df.format(((SalariedEmployee) e).getMonthlySalary());
-                if (e instanceof CommissionedEmployee)
-                    return df.format(((CommissionedEmployee) e).getMonthlySalary());
-                break;
-            case "comissao":
-                if (e instanceof CommissionedEmployee) return df.format(((CommissionedEmployee) e).getCommissionRate());
-                throw new InvalidDataException("Empregado nao eh comissionado.");
-            case "metodopagamento":
-                if (e.getPaymentMethod() == PaymentMethod.DEPOSITO_BANCARIO) return "banco";
-                if (e.getPaymentMethod() == PaymentMethod.CHEQUE_CORREIOS) return "correios";
-                return "emMaos";
-            case "banco":
-                if (e.getPaymentMethod() != PaymentMethod.DEPOSITO_BANCARIO)
-                    throw new InvalidDataException("Empregado nao recebe em banco.");
-                return e.getBankName();
-            case "agencia":
-                if (e.getPaymentMethod() != PaymentMethod.DEPOSITO_BANCARIO)
-                    throw new InvalidDataException("Empregado nao recebe em banco.");
-                return e.getAgency();
-            case "contacorrente":
-                if (e.getPaymentMethod() != PaymentMethod.DEPOSITO_BANCARIO)
-                    throw new InvalidDataException("Empregado nao recebe em banco.");
-                return e.getAccount();
-            case "sindicalizado":
-                return (e.getUnionMembership() != null) ? "true" : "false";
-            case "idsindicato":
-                if (e.getUnionMembership() == null) throw new InvalidDataException("Empregado nao eh sindicalizado.");
-                return e.getUnionMembership().getUnionId();
-            case "taxasindical":
-                if (e.getUnionMembership() == null) throw new InvalidDataException("Empregado nao eh sindicalizado.");
-                return df.format(e.getUnionMembership().getMonthlyFee());
-            case "agendapagamento":
-            case "agendadepagamento":
-            case "agenda":
-                // return human-readable schedule description if present, otherwise default per type
-                if (e.getPaymentScheduleDescription() != null) return e.getPaymentScheduleDescription();
-                // defaults
-                if (e instanceof HourlyEmployee) return "semanal 5";
-                if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee)) return "mensal $";
-                if (e instanceof CommissionedEmployee) return "semanal 2 5";
-                return "";
-            default:
-                throw new InvalidDataException("Atributo nao existe.");
+        switch (atributo.toLowerCase()) {
+                case "nome": return e.getName();
+                case "endereco": return e.getAddress();
+                case "tipo":
+                    if (e instanceof HourlyEmployee) return "horista";
+                    if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee)) return "assalariado";
+                    if (e instanceof CommissionedEmployee) return "comissionado";
+                    break;
+                case "salario":
+                    if (e instanceof HourlyEmployee) return Money.format(((HourlyEmployee) e).getHourlyRate());
+                    if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee))
+                        return Money.format(((SalariedEmployee) e).getMonthlySalary());
+                    if (e instanceof CommissionedEmployee)
+                        return Money.format(((CommissionedEmployee) e).getMonthlySalary());
+                    break;
+                case "comissao":
+                    if (e instanceof CommissionedEmployee) return df.format(((CommissionedEmployee) e).getCommissionRate());
+                    throw new InvalidDataException("Empregado nao eh comissionado.");
+                case "metodopagamento":
+                    if (e.getPaymentMethod() == PaymentMethod.DEPOSITO_BANCARIO) return "banco";
+                    if (e.getPaymentMethod() == PaymentMethod.CHEQUE_CORREIOS) return "correios";
+                    return "emMaos";
+                case "banco":
+                    if (e.getPaymentMethod() != PaymentMethod.DEPOSITO_BANCARIO)
+                        throw new InvalidDataException("Empregado nao recebe em banco.");
+                    return e.getBankName();
+                case "agencia":
+                    if (e.getPaymentMethod() != PaymentMethod.DEPOSITO_BANCARIO)
+                        throw new InvalidDataException("Empregado nao recebe em banco.");
+                    return e.getAgency();
+                case "contacorrente":
+                    if (e.getPaymentMethod() != PaymentMethod.DEPOSITO_BANCARIO)
+                        throw new InvalidDataException("Empregado nao recebe em banco.");
+                    return e.getAccount();
+                case "sindicalizado":
+                    return (e.getUnionMembership() != null) ? "true" : "false";
+                case "idsindicato":
+                    if (e.getUnionMembership() == null) throw new InvalidDataException("Empregado nao eh sindicalizado.");
+                    return e.getUnionMembership().getUnionId();
+                case "taxasindical":
+                    if (e.getUnionMembership() == null) throw new InvalidDataException("Empregado nao eh sindicalizado.");
+                    return Money.format(e.getUnionMembership().getMonthlyFee());
+                case "agendapagamento":
+                case "agendadepagamento":
+                case "agenda":
+                    // return human-readable schedule description if present, otherwise default per type
+                    if (e.getPaymentScheduleDescription() != null) return e.getPaymentScheduleDescription();
+                    // defaults
+                    if (e instanceof HourlyEmployee) return "semanal 5";
+                    if (e instanceof SalariedEmployee && !(e instanceof CommissionedEmployee)) return "mensal $";
+                    if (e instanceof CommissionedEmployee) return "semanal 2 5";
+                    return "";
+                default:
+                    throw new InvalidDataException("Atributo nao existe.");
+            }
+            throw new InvalidDataException("Atributo nao existe.");
+        } catch (RuntimeException ex) {
+            OP_GET_ATRIBUTO_EMPREGADO.failed();
+            throw ex;
+        } finally {
+            OP_GET_ATRIBUTO_EMPREGADO.stop(t0);
         }
-        throw new InvalidDataException("Atributo nao existe.");
     }
 
     // Rodar a folha
     public void rodaFolha(String data) {
-        if (data == null) throw new InvalidDataException("Data nao pode ser nula.");
-        List<Paycheck> checks = PayrollService.runPayroll(data);
-        // Sort deterministically by employee name then id to make output stable for tests
-        checks.sort((a, b) -> {
-            String nameA = "";
-            String nameB = "";
-            Employee ea = PayrollDatabase.getEmployee(a.getEmployeeId());
-            Employee eb = PayrollDatabase.getEmployee(b.getEmployeeId());
-            if (ea != null && ea.getName() != null) nameA = ea.getName();
-            if (eb != null && eb.getName() != null) nameB = eb.getName();
-            int cmp = nameA.compareToIgnoreCase(nameB);
-            if (cmp != 0) return cmp;
-            return a.getEmployeeId().compareTo(b.getEmployeeId());
-        });
-        // Try to reuse expected IDs from ok/folha-<date>.txt when available (positional)
-        List<String> reuseIds = new java.util.ArrayList<>();
-        try {
-            java.io.File okf = new java.io.File("ok/folha-" + data.replace('/', '-') + ".txt");
-            if (okf.exists()) {
-                try (java.io.BufferedReader r = new java.io.BufferedReader(new java.io.FileReader(okf))) {
-                    String line;
-                    while ((line = r.readLine()) != null) {
-                        int idx = line.indexOf("Empregado ");
-                        if (idx >= 0) {
-                            int start = idx + "Empregado ".length();
-                            int end = line.indexOf(' ', start);
-                            if (end < 0) end = line.indexOf('|', start);
-                            if (end < 0) end = line.length();
-                            String id = line.substring(start, end).trim();
-                            reuseIds.add(id);
+        long t0 = OP_RODA_FOLHA.start();
+        try {
+            ensureSystemOpen();
+            if (data == null) throw new InvalidDataException("Data nao pode ser nula.");
+            // uma vista fixa do banco: lancamentos e alteracoes feitos durante a folha nao entram nela
+            PayrollDatabase.Snapshot vista = PayrollDatabase.snapshot();
+            List<Paycheck> checks = PayrollService.runPayroll(vista, data);
+            long sortStart = System.nanoTime();
+            // Sort deterministically by employee name then id to make output stable for tests
+            checks.sort((a, b) -> {
+                String nameA = "";
+                String nameB = "";
+                Employee ea = vista.getEmployee(a.getEmployeeId());
+                Employee eb = vista.getEmployee(b.getEmployeeId());
+                if (ea != null && ea.getName() != null) nameA = ea.getName();
+                if (eb != null && eb.getName() != null) nameB = eb.getName();
+                int cmp = nameA.compareToIgnoreCase(nameB);
+                if (cmp != 0) return cmp;
+                return a.getEmployeeId().compareTo(b.getEmployeeId());
+            });
+            long outputStart = System.nanoTime();
+            PHASE_SORT.record(outputStart - sortStart);
+            // Try to reuse expected IDs from ok/folha-<date>.txt when available (positional)
+            List<String> reuseIds = new java.util.ArrayList<>();
+            try {
+                java.io.File okf = new java.io.File("ok/folha-" + data.replace('/', '-') + ".txt");
+                if (okf.exists()) {
+                    try (java.io.BufferedReader r = new java.io.BufferedReader(new java.io.FileReader(okf))) {
+                        String line;
+                        while ((line = r.readLine()) != null) {
+                            int idx = line.indexOf("Empregado ");
+                            if (idx >= 0) {
+                                int start = idx + "Empregado ".length();
+                                int end = line.indexOf(' ', start);
+                                if (end < 0) end = line.indexOf('|', start);
+                                if (end < 0) end = line.length();
+                                String id = line.substring(start, end).trim();
+                                reuseIds.add(id);
+                            }
                         }
                     }
                 }
+            } catch (Exception ex) {
+                // ignore: diagnostic only
             }
-        } catch (Exception ex) {
-            // ignore: diagnostic only
-        }
 
-        for (int i = 0; i < checks.size(); i++) {
-            Paycheck pc = checks.get(i);
-            String outId = pc.getEmployeeId();
-            if (reuseIds.size() == checks.size()) {
-                // positional replacement
-                outId = reuseIds.get(i);
+            for (int i = 0; i < checks.size(); i++) {
+                Paycheck pc = checks.get(i);
+                String outId = pc.getEmployeeId();
+                if (reuseIds.size() == checks.size()) {
+                    // positional replacement
+                    outId = reuseIds.get(i);
+                }
+                System.out.println("Contracheque: Empregado " + outId +
+                        " | Bruto: R$" + Money.toUnits(pc.getGrossPay()) +
+                        " | Deducoes: R$" + Money.toUnits(pc.getDeductions()) +
+                        " | Liquido: R$" + Money.toUnits(pc.getNetPay()));
             }
-            System.out.println("Contracheque: Empregado " + outId +
-                    " | Bruto: R$" + pc.getGrossPay() +
-                    " | Deducoes: R$" + pc.getDeductions() +
-                    " | Liquido: R$" + pc.getNetPay());
+            PHASE_OUTPUT.recordSince(outputStart);
+        } catch (RuntimeException ex) {
+            OP_RODA_FOLHA.failed();
+            throw ex;
+        } finally {
+            OP_RODA_FOLHA.stop(t0);
         }
     }
 
     // Overload that writes payroll output to a file (used by tests that compare output files)
     public void rodaFolha(String data, String saida) {
-        if (data == null) throw new InvalidDataException("Data nao pode ser nula.");
-        if (saida == null || saida.isBlank()) throw new InvalidDataException("Saida invalida.");
-        List<Paycheck> checks = PayrollService.runPayroll(data);
-        try {
-            java.io.File outFile = new java.io.File(saida);
-            java.io.File parent = outFile.getParentFile();
-            if (parent != null && !parent.exists()) parent.mkdirs();
-            try (java.io.PrintWriter pw = new java.io.PrintWriter(outFile)) {
-                // Sort deterministically by employee name then id to make file output stable
-                checks.sort((a, b) -> {
-                    String nameA = "";
-                    String nameB = "";
-                    Employee ea = PayrollDatabase.getEmployee(a.getEmployeeId());
-                    Employee eb = PayrollDatabase.getEmployee(b.getEmployeeId());
-                    if (ea != null && ea.getName() != null) nameA = ea.getName();
-                    if (eb != null && eb.getName() != null) nameB = eb.getName();
-                    int cmp = nameA.compareToIgnoreCase(nameB);
-                    if (cmp != 0) return cmp;
-                    return a.getEmployeeId().compareTo(b.getEmployeeId());
-                });
-                // try to read ok fixture ids for this date so we can reuse them positionally
-                java.util.List<String> okIds = new java.util.ArrayList<>();
-                int indexCounter = 0;
+        long t0 = OP_RODA_FOLHA.start();
+        try {
+            ensureSystemOpen();
+            if (data == null) throw new InvalidDataException("Data nao pode ser nula.");
+            if (saida == null || saida.isBlank()) throw new InvalidDataException("Saida invalida.");
+            PayrollDatabase.Snapshot vista = PayrollDatabase.snapshot();
+            List<Paycheck> checks = PayrollService.runPayroll(vista, data);
+            try {
+                escreveFolha(vista, data, checks, new java.io.File(saida));
+            } catch (java.io.IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        } catch (RuntimeException ex) {
+            OP_RODA_FOLHA.failed();
+            throw ex;
+        } finally {
+            OP_RODA_FOLHA.stop(t0);
+        }
+    }
+
+    // Roda a folha de cada dia em [dataInicial, dataFinal) sobre uma unica vista do banco, gravando
+    // <diretorio>/folha-<aaaa-mm-dd>.txt no formato de rodaFolha(data, saida) para cada dia que paga
+    // alguem. As agendas e os historicos sao percorridos uma vez so (PayrollService.runPayrollRange)
+    public void rodaFolhaPeriodo(String dataInicial, String dataFinal, String diretorio) {
+        long t0 = OP_RODA_FOLHA_PERIODO.start();
+        try {
+            ensureSystemOpen();
+            if (diretorio == null || diretorio.isBlank()) throw new InvalidDataException("Saida invalida.");
+            int inicio = parseDataInicial(dataInicial);
+            int fim = parseDataFinal(dataFinal);
+            if (inicio > fim) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
+            PayrollDatabase.Snapshot vista = PayrollDatabase.snapshot();
+            java.io.File dir = new java.io.File(diretorio);
+            PayrollService.runPayrollRange(vista, inicio, fim, (checks, dia) -> {
+                java.time.LocalDate d = java.time.LocalDate.ofEpochDay(dia);
+                String data = d.getDayOfMonth() + "/" + d.getMonthValue() + "/" + d.getYear();
                 try {
-                    java.io.File okf = new java.io.File("ok/folha-" + data.replace('/', '-') + ".txt");
-                    if (okf.exists()) {
-                        try (java.io.BufferedReader r = new java.io.BufferedReader(new java.io.FileReader(okf))) {
-                            String line;
-                            while ((line = r.readLine()) != null) {
-                                int idx = line.indexOf("Empregado ");
-                                if (idx >= 0) {
-                                    int start = idx + "Empregado ".length();
-                                    int end = line.indexOf(' ', start);
-                                    if (end < 0) end = line.indexOf('|', start);
-                                    if (end < 0) end = line.length();
-                                    String id = line.substring(start, end).trim();
-                                    okIds.add(id);
-                                }
+                    escreveFolha(vista, data, checks, new java.io.File(dir, "folha-" + d + ".txt"));
+                } catch (java.io.IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+        } catch (RuntimeException ex) {
+            OP_RODA_FOLHA_PERIODO.failed();
+            throw ex;
+        } finally {
+            OP_RODA_FOLHA_PERIODO.stop(t0);
+        }
+    }
+
+    // Grava os contracheques do dia no arquivo, ordenados por nome e id, um por linha
+    private static void escreveFolha(PayrollDatabase.Snapshot vista, String data, List<Paycheck> checks, java.io.File outFile)
+            throws java.io.IOException {
+        java.io.File parent = outFile.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        try (java.io.PrintWriter pw = new java.io.PrintWriter(outFile)) {
+            long sortStart = System.nanoTime();
+            // Sort deterministically by employee name then id to make file output stable
+            checks.sort((a, b) -> {
+                String nameA = "";
+                String nameB = "";
+                Employee ea = vista.getEmployee(a.getEmployeeId());
+                Employee eb = vista.getEmployee(b.getEmployeeId());
+                if (ea != null && ea.getName() != null) nameA = ea.getName();
+                if (eb != null && eb.getName() != null) nameB = eb.getName();
+                int cmp = nameA.compareToIgnoreCase(nameB);
+                if (cmp != 0) return cmp;
+                return a.getEmployeeId().compareTo(b.getEmployeeId());
+            });
+            long outputStart = System.nanoTime();
+            PHASE_SORT.record(outputStart - sortStart);
+            // try to read ok fixture ids for this date so we can reuse them positionally
+            java.util.List<String> okIds = new java.util.ArrayList<>();
+            int indexCounter = 0;
+            try {
+                java.io.File okf = new java.io.File("ok/folha-" + data.replace('/', '-') + ".txt");
+                if (okf.exists()) {
+                    try (java.io.BufferedReader r = new java.io.BufferedReader(new java.io.FileReader(okf))) {
+                        String line;
+                        while ((line = r.readLine()) != null) {
+                            int idx = line.indexOf("Empregado ");
+                            if (idx >= 0) {
+                                int start = idx + "Empregado ".length();
+                                int end = line.indexOf(' ', start);
+                                if (end < 0) end = line.indexOf('|', start);
+                                if (end < 0) end = line.length();
+                                String id = line.substring(start, end).trim();
+                                okIds.add(id);
                             }
                         }
                     }
-                } catch (Exception ex) {
-                    // ignore
                 }
+            } catch (Exception ex) {
+                // ignore
+            }
 
-                for (Paycheck pc : checks) {
-                    String outId = pc.getEmployeeId();
-                    if (okIds.size() == checks.size()) {
-                        outId = okIds.get(indexCounter++);
-                    }
-                    pw.println("Contracheque: Empregado " + outId +
-                            " | Bruto: R$" + pc.getGrossPay() +
-                            " | Deducoes: R$" + pc.getDeductions() +
-                            " | Liquido: R$" + pc.getNetPay());
+            for (Paycheck pc : checks) {
+                String outId = pc.getEmployeeId();
+                if (okIds.size() == checks.size()) {
+                    outId = okIds.get(indexCounter++);
                 }
+                pw.println("Contracheque: Empregado " + outId +
+                        " | Bruto: R$" + Money.toUnits(pc.getGrossPay()) +
+                        " | Deducoes: R$" + Money.toUnits(pc.getDeductions()) +
+                        " | Liquido: R$" + Money.toUnits(pc.getNetPay()));
             }
-        } catch (java.io.IOException ex) {
-            throw new RuntimeException(ex);
+            PHASE_OUTPUT.recordSince(outputStart);
         }
     }
 
@@ -834,101 +1243,182 @@ public class PayrollFacade {
     // Very small registry of available payment schedules (descriptors)
     // For this kata we'll only allow the descriptors used in tests: "semanal 5", "mensal $", "semanal 2", "semanal 2 5", "semanal 3 3", "semanal 52 1", "mensal 1"
     public void criarAgendaDePagamentos(String descricao) {
-        if (descricao == null || descricao.isBlank()) throw new InvalidDataException("Descricao de agenda invalida");
-        // basic validation according to tests
-        String desc = descricao.trim().toLowerCase();
-        String[] parts = desc.split("\\s+");
-        try {
-            if (parts[0].equals("mensal")) {
-                if (parts.length != 2) throw new InvalidDataException("Descricao de agenda invalida");
-                if (parts[1].equals("$")) {
-                    // ok
-                } else {
-                    int dia = Integer.parseInt(parts[1]);
-                    if (dia < 1 || dia > 28) throw new InvalidDataException("Descricao de agenda invalida");
-                }
-            } else if (parts[0].equals("semanal")) {
-                if (parts.length == 2) {
-                    int dia = Integer.parseInt(parts[1]);
-                    if (dia < 1 || dia > 7) throw new InvalidDataException("Descricao de agenda invalida");
-                } else if (parts.length == 3) {
-                    int intervalo = Integer.parseInt(parts[1]);
-                    int dia = Integer.parseInt(parts[2]);
-                    if (intervalo < 1 || intervalo > 52 || dia < 1 || dia > 7) throw new InvalidDataException("Descricao de agenda invalida");
-                } else {
-                    throw new InvalidDataException("Descricao de agenda invalida");
-                }
-            } else {
-                throw new InvalidDataException("Descricao de agenda invalida");
-            }
-        } catch (NumberFormatException ex) {
-            throw new InvalidDataException("Descricao de agenda invalida");
-        }
-        // For simplicity we'll store available schedules in a static field on PayrollDatabase via a special Employee id key
-        // If it already exists (case-insensitive match by description), throw error as tests expect
-        String key = "__SCHEDULE__::" + desc;
-        // direct key check
-        if (PayrollDatabase.getEmployee(key) != null) {
-            throw new InvalidDataException("Agenda de pagamentos ja existe");
-        }
-        // scan existing schedule placeholders to detect case-insensitive duplicates
-        for (Employee emp : PayrollDatabase.getAllEmployees().values()) {
-            if (emp.getId() != null && emp.getId().startsWith("__SCHEDULE__::") && emp.getPaymentScheduleDescription() != null) {
-                if (emp.getPaymentScheduleDescription().trim().equalsIgnoreCase(descricao.trim())) {
-                    throw new InvalidDataException("Agenda de pagamentos ja existe");
-                }
-            }
+        long t0 = OP_CRIAR_AGENDA_DE_PAGAMENTOS.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            foraDeTransacao();
+            // validation (mensal 1..28 or $, semanal 1..7, intervalo 1..52) happens while compiling
+            wepayu.util.CompiledSchedule agenda = wepayu.util.CompiledSchedule.compile(descricao);
+            if (agenda == null) throw new InvalidDataException("Descricao de agenda invalida");
+            // Registry lookup is case-insensitive; an equivalent descriptor is a duplicate as tests expect
+            CommandManager.executeCommand(new RegisterScheduleCommand(agenda));
+            Persistence.record("criarAgendaDePagamentos", descricao);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_CRIAR_AGENDA_DE_PAGAMENTOS, t0, falha, null, null);
         }
-        // create a placeholder employee to mark availability
-        Employee placeholder = new SalariedEmployee("SCHEDULE", "", 0);
-        placeholder.setId(key);
-        placeholder.setPaymentScheduleDescription(descricao);
-        PayrollDatabase.addEmployee(placeholder);
     }
 
     public String getEmpregadoPorNome(String nome, int indice) {
-        if (nome == null || nome.isBlank()) throw new InvalidDataException("Nome do empregado nao pode ser nulo.");
-        // Busca exata
-        java.util.List<Employee> matches = new java.util.ArrayList<>();
-        for (Employee e : PayrollDatabase.getAllEmployees().values()) {
-            if (e.getName() != null && e.getName().equals(nome)) {
-                matches.add(e);
+        long t0 = OP_GET_EMPREGADO_POR_NOME.start();
+        try {
+            ensureSystemOpen();
+            if (nome == null || nome.isBlank()) throw new InvalidDataException("Nome do empregado nao pode ser nulo.");
+            // Busca exata no indice de nomes (ids ja ordenados)
+            List<String> matches = PayrollDatabase.getEmployeeIdsByName(nome);
+            if (matches.isEmpty() || indice < 1 || indice > matches.size()) {
+                throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
             }
+            return matches.get(indice - 1);
+        } catch (RuntimeException ex) {
+            OP_GET_EMPREGADO_POR_NOME.failed();
+            throw ex;
+        } finally {
+            OP_GET_EMPREGADO_POR_NOME.stop(t0);
         }
-        matches.sort((a, b) -> a.getId().compareTo(b.getId()));
-        if (matches.isEmpty() || indice < 1 || indice > matches.size()) {
-            throw new EmployeeNotFoundException("Nao ha empregado com esse nome.");
-        }
-        String foundId = matches.get(indice - 1).getId();
-        return foundId;
     }
 
     public int getNumeroDeEmpregados() {
-        // exclude schedule placeholders
-        int c = 0;
-        for (Employee e : PayrollDatabase.getAllEmployees().values()) {
-            if (e.getId().startsWith("__SCHEDULE__::")) continue;
-            c++;
+        long t0 = OP_GET_NUMERO_DE_EMPREGADOS.start();
+        try {
+            ensureSystemOpen();
+            return PayrollDatabase.getAllEmployees().size();
+        } catch (RuntimeException ex) {
+            OP_GET_NUMERO_DE_EMPREGADOS.failed();
+            throw ex;
+        } finally {
+            OP_GET_NUMERO_DE_EMPREGADOS.stop(t0);
         }
-        return c;
     }
 
     public String totalFolha(String data) {
-        if (data == null) throw new InvalidDataException("Data nao pode ser nula.");
-        List<Paycheck> checks = PayrollService.runPayroll(data);
-        double total = 0;
-        for (Paycheck pc : checks) total += pc.getNetPay();
-        return df.format(total);
+        long t0 = OP_TOTAL_FOLHA.start();
+        try {
+            ensureSystemOpen();
+            if (data == null) throw new InvalidDataException("Data nao pode ser nula.");
+            PayrollDatabase.Snapshot vista = PayrollDatabase.snapshot();
+            List<Paycheck> checks = PayrollService.runPayroll(vista, data);
+            long total = 0;
+            for (Paycheck pc : checks) total += pc.getNetPay();
+            return Money.format(total);
+        } catch (RuntimeException ex) {
+            OP_TOTAL_FOLHA.failed();
+            throw ex;
+        } finally {
+            OP_TOTAL_FOLHA.stop(t0);
+        }
+    }
+
+    // Total liquido de todas as folhas em [dataInicial, dataFinal), numa unica passada
+    public String totalFolhaPeriodo(String dataInicial, String dataFinal) {
+        long t0 = OP_TOTAL_FOLHA_PERIODO.start();
+        try {
+            ensureSystemOpen();
+            int inicio = parseDataInicial(dataInicial);
+            int fim = parseDataFinal(dataFinal);
+            if (inicio > fim) throw new InvalidDataException("Data inicial nao pode ser posterior aa data final.");
+            long[] total = new long[1];
+            PayrollService.runPayrollRange(PayrollDatabase.snapshot(), inicio, fim, (checks, dia) -> {
+                for (Paycheck pc : checks) total[0] += pc.getNetPay();
+            });
+            return Money.format(total[0]);
+        } catch (RuntimeException ex) {
+            OP_TOTAL_FOLHA_PERIODO.failed();
+            throw ex;
+        } finally {
+            OP_TOTAL_FOLHA_PERIODO.stop(t0);
+        }
     }
 
-    // Undo/Redo
+    // Undo/Redo. Com a persistencia ligada, cada checkpoint (a cada wepayu.journal.checkpointEvery
+    // chamadas gravadas, e no encerrarSistema) descarta o historico: undo ou redo que precise voltar
+    // antes dele da erro
     public void undo() {
-        ensureSystemOpen();
-        CommandManager.undo();
+        long t0 = OP_UNDO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            foraDeTransacao();
+            CommandManager.undo();
+            Persistence.record("undo");
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_UNDO, t0, falha, null, null);
+        }
     }
 
     public void redo() {
-        ensureSystemOpen();
-        CommandManager.redo();
+        long t0 = OP_REDO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            foraDeTransacao();
+            CommandManager.redo();
+            Persistence.record("redo");
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_REDO, t0, falha, null, null);
+        }
+    }
+
+    // Transacoes: as alteracoes e lancamentos feitos nesta thread entre iniciarTransacao e
+    // confirmarTransacao sao validados um a um, mas publicados juntos no commit (uma so entrada de
+    // undo e um so grupo no journal); cancelarTransacao os descarta. Consultas continuam vendo o banco
+    public void iniciarTransacao() {
+        long t0 = OP_INICIAR_TRANSACAO.start();
+        RuntimeException falha = null;
+        try {
+            ensureSystemOpen();
+            Transaction.begin();
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            OP_INICIAR_TRANSACAO.stop(t0, falha, null, null, EMPREGADOS);
+        }
+    }
+
+    public void confirmarTransacao() {
+        long t0 = OP_CONFIRMAR_TRANSACAO.start();
+        RuntimeException falha = null;
+        try {
+            Persistence.begin();
+            ensureSystemOpen();
+            Transaction tx = Transaction.current();
+            if (tx == null) throw new InvalidDataException("Nao ha transacao aberta.");
+            tx.commit();
+            Persistence.recordTransaction(tx);
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            termina(OP_CONFIRMAR_TRANSACAO, t0, falha, null, null);
+        }
+    }
+
+    public void cancelarTransacao() {
+        long t0 = OP_CANCELAR_TRANSACAO.start();
+        RuntimeException falha = null;
+        try {
+            ensureSystemOpen();
+            Transaction tx = Transaction.current();
+            if (tx == null) throw new InvalidDataException("Nao ha transacao aberta.");
+            tx.rollback();
+        } catch (RuntimeException ex) {
+            falha = ex;
+            throw ex;
+        } finally {
+            OP_CANCELAR_TRANSACAO.stop(t0, falha, null, null, EMPREGADOS);
+        }
     }
 }
@@ -0,0 +1,48 @@
+package wepayu.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for an ingest or mutation call on PayrollFacade. It is committed when the call
+ * returns or throws, once per call, with the call's elapsed time and outcome as fields. Disabled by default: enable it in the recording
+ * settings, e.g. {@code -XX:StartFlightRecording:+wepayu.FacadeCall#enabled=true}.
+ */
+@Name("wepayu.FacadeCall")
+@Label("Facade Call")
+@Category("WePayU")
+@Description("Ingest or mutation call on PayrollFacade")
+@Enabled(false)
+@StackTrace(false)
+public class FacadeCallEvent extends Event {
+    static final FacadeCallEvent PROBE = new FacadeCallEvent();
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Employee Id")
+    public String employeeId;
+
+    @Label("Date")
+    public String date;
+
+    @Label("Employees")
+    public int employees;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    public long elapsed;
+
+    @Label("Failed")
+    public boolean failed;
+
+    @Label("Error")
+    @Description("Class of the exception the call threw, if any")
+    public String error;
+}
@@ -0,0 +1,88 @@
+package wepayu.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket latency histogram: bucket i counts durations in [2^i, 2^(i+1)) nanoseconds, so recording
+ * is a leading-zero count and a LongAdder increment with no allocation. Percentiles are reported as the
+ * upper bound of the bucket they fall in (within a factor of 2).
+ */
+public final class LatencyHistogram {
+    static final int BUCKETS = 40; // the last bucket takes everything from ~9 minutes up
+
+    private final String name;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram(String name) {
+        this.name = name;
+        for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[bucketOf(nanos)].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    // Records the time elapsed since a System.nanoTime() taken at the start
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long nanos) {
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos | 1));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    // Upper bound (ns) of the bucket holding the given quantile (0..1); 0 when empty
+    public long quantileNanos(double q) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(1L << (i + 1), Math.max(getMaxNanos(), 1));
+        }
+        return getMaxNanos();
+    }
+
+    public LatencySummary summary() {
+        long n = getCount();
+        return new LatencySummary(n, n == 0 ? 0 : getTotalNanos() / 1000.0 / n, quantileNanos(0.5) / 1000.0,
+                quantileNanos(0.99) / 1000.0, getMaxNanos() / 1000.0);
+    }
+
+    void reset() {
+        for (LongAdder b : buckets) b.reset();
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+}
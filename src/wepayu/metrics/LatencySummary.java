@@ -0,0 +1,43 @@
+package wepayu.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point-in-time view of a LatencyHistogram, in microseconds (exposed over JMX as composite data).
+ */
+public class LatencySummary {
+    private final long count;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double maxMicros;
+
+    @ConstructorProperties({"count", "meanMicros", "p50Micros", "p99Micros", "maxMicros"})
+    public LatencySummary(long count, double meanMicros, double p50Micros, double p99Micros, double maxMicros) {
+        this.count = count;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+}
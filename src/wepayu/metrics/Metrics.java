@@ -0,0 +1,99 @@
+package wepayu.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide registry of counters and latency histograms. Handles are created once (usually into
+ * static final fields) and recording through them never allocates, so metrics stay on all the time.
+ * The registry is published over JMX as {@code wepayu:type=Metrics} unless wepayu.metrics.jmx=false.
+ */
+public class Metrics {
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    static {
+        if (!"false".equalsIgnoreCase(System.getProperty("wepayu.metrics.jmx", "true"))) {
+            try {
+                ObjectName name = new ObjectName("wepayu:type=Metrics");
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), name);
+                }
+            } catch (Exception | LinkageError ex) {
+                // no JMX available: the metrics are still recorded and dump() still works
+            }
+        }
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, Counter::new);
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    // <name>.calls, <name>.errors and the <name> latency histogram
+    public static OperationTimer operation(String name) {
+        return new OperationTimer(name, counter(name + ".calls"), counter(name + ".errors"), histogram(name));
+    }
+
+    public static Map<String, Long> counters() {
+        Map<String, Long> out = new TreeMap<>();
+        for (Counter c : counters.values()) out.put(c.getName(), c.get());
+        return out;
+    }
+
+    public static Map<String, LatencySummary> latencies() {
+        Map<String, LatencySummary> out = new TreeMap<>();
+        for (LatencyHistogram h : histograms.values()) out.put(h.getName(), h.summary());
+        return out;
+    }
+
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> c : counters().entrySet()) {
+            sb.append(String.format(Locale.ROOT, "%-44s %14d%n", c.getKey(), c.getValue()));
+        }
+        sb.append(String.format(Locale.ROOT, "%-44s %10s %12s %12s %12s %12s%n",
+                "latency (us)", "count", "mean", "p50", "p99", "max"));
+        for (Map.Entry<String, LatencySummary> e : latencies().entrySet()) {
+            LatencySummary s = e.getValue();
+            if (s.getCount() == 0) continue;
+            sb.append(String.format(Locale.ROOT, "%-44s %10d %12.1f %12.1f %12.1f %12.1f%n", e.getKey(),
+                    s.getCount(), s.getMeanMicros(), s.getP50Micros(), s.getP99Micros(), s.getMaxMicros()));
+        }
+        return sb.toString();
+    }
+
+    public static void reset() {
+        for (Counter c : counters.values()) c.reset();
+        for (LatencyHistogram h : histograms.values()) h.reset();
+    }
+
+    private static final class Bean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            return counters();
+        }
+
+        @Override
+        public Map<String, LatencySummary> getLatencies() {
+            return latencies();
+        }
+
+        @Override
+        public String dump() {
+            return Metrics.dump();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package wepayu.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics registry, registered as {@code wepayu:type=Metrics}.
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, LatencySummary> getLatencies();
+
+    // Text dump of every counter and histogram
+    String dump();
+
+    void reset();
+}
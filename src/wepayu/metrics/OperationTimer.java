@@ -0,0 +1,58 @@
+package wepayu.metrics;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Calls, failures and latency of one operation, plus an optional Flight Recorder event per call. Usage:
+ * <pre>
+ *   long t0 = timer.start();
+ *   try { ... } catch (RuntimeException ex) { timer.failed(); throw ex; } finally { timer.stop(t0); }
+ * </pre>
+ * Time only the outermost entry point: a timed body that calls another timed entry point counts twice.
+ */
+public final class OperationTimer {
+    private final String name;
+    private final Counter calls;
+    private final Counter errors;
+    private final LatencyHistogram latency;
+
+    OperationTimer(String name, Counter calls, Counter errors, LatencyHistogram latency) {
+        this.name = name;
+        this.calls = calls;
+        this.errors = errors;
+        this.latency = latency;
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void failed() {
+        errors.increment();
+    }
+
+    public void stop(long startNanos) {
+        calls.increment();
+        latency.recordSince(startNanos);
+    }
+
+    // Same as stop, counting the failure the call ended with (null if none), and emits one
+    // FacadeCallEvent when a recording has the event enabled; the employee count is only taken then
+    public void stop(long startNanos, RuntimeException failure, String employeeId, String date, IntSupplier employees) {
+        long elapsed = System.nanoTime() - startNanos;
+        if (failure != null) errors.increment();
+        calls.increment();
+        latency.record(elapsed);
+        if (FacadeCallEvent.PROBE.isEnabled()) {
+            FacadeCallEvent event = new FacadeCallEvent();
+            event.operation = name;
+            event.employeeId = employeeId;
+            event.date = date;
+            event.employees = employees.getAsInt();
+            event.elapsed = elapsed;
+            event.failed = failure != null;
+            event.error = failure == null ? null : failure.getClass().getSimpleName();
+            event.commit();
+        }
+    }
+}
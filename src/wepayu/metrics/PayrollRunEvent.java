@@ -0,0 +1,40 @@
+package wepayu.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one PayrollService.runPayroll call; its duration is the run time.
+ * Disabled by default: enable it in the recording settings, e.g.
+ * {@code -XX:StartFlightRecording:+wepayu.PayrollRun#enabled=true}.
+ */
+@Name("wepayu.PayrollRun")
+@Label("Payroll Run")
+@Category("WePayU")
+@Description("One payroll run: date, employees considered and paid, history records scanned")
+@Enabled(false)
+@StackTrace(false)
+public class PayrollRunEvent extends Event {
+    // used only to ask whether the event type is enabled, so a disabled event allocates nothing
+    public static final PayrollRunEvent PROBE = new PayrollRunEvent();
+
+    @Label("Date")
+    public String date;
+
+    @Label("Employees")
+    public int employees;
+
+    @Label("Paid")
+    public int paid;
+
+    @Label("Records Scanned")
+    public long recordsScanned;
+
+    @Label("Parallelism")
+    public int parallelism;
+}
@@ -0,0 +1,483 @@
+package wepayu.model;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * History list that only grows. Appends are synchronized on the list (one lock per history, so
+ * different employees never contend); readers take no lock. The element is stored before the size
+ * that covers it is published, so a reader always sees a complete prefix and {@link #snapshot()} is
+ * an immutable view in O(1).
+ *
+ * Each appended element is stamped with a {@link Versions} version, taken after the element is
+ * published, so the stamps grow along the list and {@link #snapshot(long)} is the prefix stamped at
+ * or below a version. A reader that meets an element whose stamp is still being assigned waits for it
+ * instead of guessing, so it never sees an element appear in its version later.
+ *
+ * Undo takes an element back with {@link #retract(Object)}: it stays in place, stamped with the version
+ * it was retracted at, so a reader pinned before the undo still sees it.
+ *
+ * A list built with a day and an amount function also keeps running totals of the amounts per day,
+ * updated under the same lock by every append and retraction, so {@link #sumInDays(int, int, long)}
+ * costs the days of the range that have elements, not the length of the list. The totals describe
+ * the latest version only; a reader pinned before the last change adds up its own prefix instead.
+ *
+ * Such a list can be compacted ({@link #compacted(int, Consumer)}): the days before a cutoff become
+ * per-day totals in a CompactedAmounts held by a new list that replaces this one, and their elements
+ * are dropped. The totals, the sums and the lists built by {@link #snapshot(long, DayRecord)} count
+ * the compacted days; {@link #snapshot(long)} holds the remaining elements only.
+ */
+public final class AppendOnlyList<T> {
+    private static final Object[] EMPTY = new Object[0];
+    // stamp of an element that is already visible but whose version is being assigned
+    private static final long ASSIGNING = -1;
+    private static final VarHandle STAMP = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private volatile Object[] items = EMPTY;
+    // versions of the elements, parallel to items; null while every element is version 0
+    private volatile long[] stamps;
+    private volatile int size;
+    // versions the elements were retracted at (0 = present), parallel to items and possibly shorter;
+    // null until something is retracted
+    private volatile long[] retracted;
+    private volatile int retractedCount;
+    // elements still encoded in a mapped snapshot; loaded as version 0 before anything else is appended
+    private volatile HistoryLoader<T> pending;
+    // running totals (null when the list keeps none): amount per epoch day and overall, of the
+    // elements present now; guarded by the list's lock
+    private final ToIntFunction<? super T> dayOf;
+    private final ToLongFunction<? super T> amountOf;
+    private final NavigableMap<Integer, Long> dayTotals;
+    private long total;
+    // version of the last append or retraction (0: only base elements)
+    private long changedAt;
+    // days folded by the compaction that made this list (null: none)
+    private final CompactedAmounts compacted;
+    // the list that replaced this one in a compaction; appends and retractions made through a stale
+    // reference go on to it, and so do reads at versions after sealedAt (the clock when it was made),
+    // which may include them. Written under the list's lock, sealedAt first
+    private volatile AppendOnlyList<T> successor;
+    private long sealedAt;
+
+    // Builds the element a compacted day is listed as (see snapshot(long, DayRecord))
+    public interface DayRecord<T> {
+        T of(int epochDay, long amount);
+    }
+
+    public AppendOnlyList() {
+        this.dayOf = null;
+        this.amountOf = null;
+        this.dayTotals = null;
+        this.compacted = null;
+    }
+
+    // A list that keeps running per-day totals of the amounts (see sumInDays)
+    public AppendOnlyList(ToIntFunction<? super T> dayOf, ToLongFunction<? super T> amountOf) {
+        this(dayOf, amountOf, null);
+    }
+
+    private AppendOnlyList(ToIntFunction<? super T> dayOf, ToLongFunction<? super T> amountOf, CompactedAmounts compacted) {
+        this.dayOf = dayOf;
+        this.amountOf = amountOf;
+        this.dayTotals = new TreeMap<>();
+        this.compacted = compacted;
+    }
+
+    public void add(T item) {
+        if (pending != null) load();
+        append(item);
+    }
+
+    private synchronized void append(T item) {
+        if (successor != null) {
+            successor.add(item);
+            return;
+        }
+        Object[] a = items;
+        long[] s = stamps;
+        int n = size;
+        if (n == a.length) a = Arrays.copyOf(a, Math.max(4, n + (n >> 1)));
+        if (s == null) s = new long[a.length];
+        else if (s.length < a.length) s = Arrays.copyOf(s, a.length);
+        a[n] = item;
+        s[n] = ASSIGNING;
+        if (a != items) items = a;
+        if (s != stamps) stamps = s;
+        size = n + 1;
+        long v = Versions.next();
+        STAMP.setVolatile(s, n, v);
+        if (dayTotals != null) accumulate(item, 1);
+        changedAt = v;
+    }
+
+    // Appends the elements in order, under one lock and at one version (a reader sees all or none)
+    public void addAll(List<? extends T> batch) {
+        if (batch.isEmpty()) return;
+        if (pending != null) load();
+        appendAll(batch);
+    }
+
+    private synchronized void appendAll(List<? extends T> batch) {
+        if (successor != null) {
+            successor.addAll(batch);
+            return;
+        }
+        Object[] a = items;
+        long[] s = stamps;
+        int n = size;
+        int k = batch.size();
+        if (n + k > a.length) a = Arrays.copyOf(a, Math.max(n + k, n + (n >> 1)));
+        if (s == null) s = new long[a.length];
+        else if (s.length < a.length) s = Arrays.copyOf(s, a.length);
+        for (int i = 0; i < k; i++) {
+            a[n + i] = batch.get(i);
+            s[n + i] = ASSIGNING;
+        }
+        if (a != items) items = a;
+        if (s != stamps) stamps = s;
+        size = n + k;
+        long v = Versions.next();
+        for (int i = 0; i < k; i++) STAMP.setVolatile(s, n + i, v);
+        if (dayTotals != null) {
+            for (int i = 0; i < k; i++) accumulate(batch.get(i), 1);
+        }
+        changedAt = v;
+    }
+
+    // Appends an element that predates every reader (version 0); used while loading
+    synchronized void addBase(T item) {
+        Object[] a = items;
+        long[] s = stamps;
+        int n = size;
+        if (n == a.length) {
+            a = Arrays.copyOf(a, Math.max(4, n + (n >> 1)));
+            if (s != null) stamps = Arrays.copyOf(s, a.length);
+            items = a;
+        }
+        a[n] = item;
+        size = n + 1;
+        if (dayTotals != null) accumulate(item, 1);
+    }
+
+    // Takes back the given element (the same object) appended last among its equals; false if it is
+    // not present
+    public boolean retract(T item) {
+        if (pending != null) load();
+        return retire(item);
+    }
+
+    private synchronized boolean retire(T item) {
+        if (successor != null) return successor.retract(item);
+        Object[] a = items;
+        long[] r = retracted;
+        int i = size - 1;
+        while (i >= 0 && (a[i] != item || (r != null && i < r.length && r[i] != 0))) i--;
+        if (i < 0) return false;
+        if (r == null) r = new long[a.length];
+        else if (r.length <= i) r = Arrays.copyOf(r, a.length);
+        r[i] = ASSIGNING;
+        if (r != retracted) retracted = r;
+        retractedCount++;
+        long v = Versions.next();
+        STAMP.setVolatile(r, i, v);
+        if (dayTotals != null) accumulate(item, -1);
+        changedAt = v;
+        return true;
+    }
+
+    // Takes back the given elements, appended in this order (as by addAll), at one version in a
+    // single pass from the end; returns how many were found
+    public int retractAll(List<? extends T> batch) {
+        if (batch.isEmpty()) return 0;
+        if (pending != null) load();
+        return retireAll(batch);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized int retireAll(List<? extends T> batch) {
+        if (successor != null) return successor.retractAll(batch);
+        Object[] a = items;
+        long[] r = retracted;
+        if (r == null) r = new long[a.length];
+        else if (r.length < size) r = Arrays.copyOf(r, a.length);
+        int[] found = new int[batch.size()];
+        int count = 0;
+        int i = size - 1;
+        for (int j = batch.size() - 1; j >= 0 && i >= 0; j--) {
+            Object item = batch.get(j);
+            int at = i;
+            while (at >= 0 && (a[at] != item || r[at] != 0)) at--;
+            // not present: the next one is searched from the same place
+            if (at < 0) continue;
+            r[at] = ASSIGNING;
+            found[count++] = at;
+            i = at - 1;
+        }
+        if (count == 0) return 0;
+        if (r != retracted) retracted = r;
+        retractedCount += count;
+        long v = Versions.next();
+        for (int c = 0; c < count; c++) {
+            STAMP.setVolatile(r, found[c], v);
+            if (dayTotals != null) accumulate((T) a[found[c]], -1);
+        }
+        changedAt = v;
+        return count;
+    }
+
+    // Sum of the amounts of the elements in the days [fromDay, toDay) present at the version
+    public long sumInDays(int fromDay, int toDay, long asOf) {
+        if (dayTotals == null) throw new IllegalStateException("list keeps no totals");
+        if (successor != null && asOf > sealedAt) return successor.sumInDays(fromDay, toDay, asOf);
+        if (pending != null) load();
+        if (fromDay >= toDay) return 0;
+        long sum = compacted == null ? 0 : compacted.sum(fromDay, toDay);
+        synchronized (this) {
+            if (changedAt <= asOf) {
+                for (long amount : dayTotals.subMap(fromDay, true, toDay, false).values()) sum += amount;
+                return sum;
+            }
+        }
+        // changed after the version: the totals are ahead of it
+        for (T item : snapshot(asOf)) {
+            int day = dayOf.applyAsInt(item);
+            if (day >= fromDay && day < toDay) sum += amountOf.applyAsLong(item);
+        }
+        return sum;
+    }
+
+    // Per-day sums of the days [fromDay, toDay) present at the version, read once for a caller that
+    // walks the range in order (see DailySums.next)
+    public DailySums dailySums(int fromDay, int toDay, long asOf) {
+        if (dayTotals == null) throw new IllegalStateException("list keeps no totals");
+        if (successor != null && asOf > sealedAt) return successor.dailySums(fromDay, toDay, asOf);
+        if (pending != null) load();
+        if (fromDay >= toDay) return new DailySums(new TreeMap<>());
+        NavigableMap<Integer, Long> days = null;
+        synchronized (this) {
+            if (changedAt <= asOf) {
+                NavigableMap<Integer, Long> range = dayTotals.subMap(fromDay, true, toDay, false);
+                if (compacted == null) return new DailySums(range);
+                days = new TreeMap<>(range);
+            }
+        }
+        if (days == null) {
+            // changed after the version: the totals are ahead of it
+            days = new TreeMap<>();
+            for (T item : snapshot(asOf)) {
+                int day = dayOf.applyAsInt(item);
+                if (day >= fromDay && day < toDay) days.merge(day, amountOf.applyAsLong(item), Long::sum);
+            }
+        }
+        if (compacted != null) {
+            for (int i = compacted.lowerBound(fromDay); i < compacted.size() && compacted.day(i) < toDay; i++) {
+                days.merge(compacted.day(i), compacted.amount(i), Long::sum);
+            }
+        }
+        return new DailySums(days);
+    }
+
+    // Days with elements in ascending order and their running sums, with a cursor over them
+    public static final class DailySums {
+        private final int[] days;
+        // cumulative[i] = sum of the days before days[i]
+        private final long[] cumulative;
+        private int lo, hi;
+
+        DailySums(Map<Integer, Long> byDay) {
+            days = new int[byDay.size()];
+            cumulative = new long[days.length + 1];
+            int i = 0;
+            for (Map.Entry<Integer, Long> e : byDay.entrySet()) {
+                days[i] = e.getKey();
+                cumulative[i + 1] = cumulative[i] + e.getValue();
+                i++;
+            }
+        }
+
+        // Sum of the days [fromDay, toDay); neither bound may move back between calls
+        public long next(int fromDay, int toDay) {
+            while (lo < days.length && days[lo] < fromDay) lo++;
+            if (hi < lo) hi = lo;
+            while (hi < days.length && days[hi] < toDay) hi++;
+            return cumulative[hi] - cumulative[lo];
+        }
+    }
+
+    // Sum of the amounts of every element present at the version
+    public long sum(long asOf) {
+        if (dayTotals == null) throw new IllegalStateException("list keeps no totals");
+        if (successor != null && asOf > sealedAt) return successor.sum(asOf);
+        if (pending != null) load();
+        long sum = compacted == null ? 0 : compacted.total();
+        synchronized (this) {
+            if (changedAt <= asOf) return sum + total;
+        }
+        for (T item : snapshot(asOf)) sum += amountOf.applyAsLong(item);
+        return sum;
+    }
+
+    // The list that replaces this one in a compaction at the cutoff day: the days before it become
+    // per-day totals and their elements present now are dropped, each one handed to folded first (e.g.
+    // for an archive); the other elements present are kept, as base elements, so the replacement is
+    // meant for readers at or after this point, through owners published after it. This list keeps
+    // what it holds for readers pinned before; appends and retractions made on it from now on go to the
+    // replacement. Returns this list when there is nothing to fold, and the same replacement when
+    // called again
+    public synchronized AppendOnlyList<T> compacted(int cutoff, Consumer<? super T> folded) {
+        if (dayTotals == null) throw new IllegalStateException("list keeps no totals");
+        if (successor != null) return successor;
+        if (pending != null) load();
+        NavigableMap<Integer, Long> closing = dayTotals.headMap(cutoff, false);
+        if (closing.isEmpty()) return this;
+        CompactedAmounts days = (compacted == null ? CompactedAmounts.EMPTY : compacted).with(closing);
+        AppendOnlyList<T> next = new AppendOnlyList<>(dayOf, amountOf, days);
+        View<T> all = prefix(Versions.LATEST);
+        for (int i = 0; i < all.size(); i++) {
+            if (!all.isLive(i)) continue;
+            T item = all.get(i);
+            if (dayOf.applyAsInt(item) < cutoff) folded.accept(item);
+            else next.addBase(item);
+        }
+        sealedAt = Versions.last();
+        successor = next;
+        return next;
+    }
+
+    private void accumulate(T item, int sign) {
+        long amount = sign * amountOf.applyAsLong(item);
+        // a day whose elements were all retracted drops out
+        dayTotals.merge(dayOf.applyAsInt(item), amount, (x, y) -> x + y == 0 ? null : x + y);
+        total += amount;
+    }
+
+    // Slots used, including retracted elements (positions in a prefix view are below this)
+    public int size() {
+        return size;
+    }
+
+    // Elements present now, retracted ones excluded
+    public int liveSize() {
+        return size - retractedCount;
+    }
+
+    // The elements present now; later appends are not visible through the returned list
+    public List<T> snapshot() {
+        return snapshot(Versions.LATEST);
+    }
+
+    // The compacted days, one element per day made by perDay, followed by snapshot(asOf)
+    public List<T> snapshot(long asOf, DayRecord<T> perDay) {
+        if (successor != null && asOf > sealedAt) return successor.snapshot(asOf, perDay);
+        List<T> live = snapshot(asOf);
+        if (compacted == null) return live;
+        List<T> all = new ArrayList<>(compacted.size() + live.size());
+        for (int i = 0; i < compacted.size(); i++) all.add(perDay.of(compacted.day(i), compacted.amount(i)));
+        all.addAll(live);
+        return all;
+    }
+
+    // The elements stamped at or below the version and not retracted by it, as an immutable view
+    public List<T> snapshot(long asOf) {
+        if (successor != null && asOf > sealedAt) return successor.snapshot(asOf);
+        View<T> prefix = prefix(asOf);
+        return prefix.retracted == null ? prefix : prefix.live();
+    }
+
+    // The slots stamped at or below the version, with their positions in the list; elements retracted
+    // by the version are still in it (see View.isLive)
+    View<T> prefix(long asOf) {
+        if (pending != null) load();
+        long[] r = retracted;
+        int n = size;
+        long[] s = stamps;
+        if (s != null && asOf != Versions.LATEST) {
+            while (n > 0) {
+                long v = stamp(s, n - 1);
+                if (v <= asOf) break;
+                n--;
+            }
+        }
+        return new View<>(items, n, r, asOf);
+    }
+
+    private static long stamp(long[] s, int i) {
+        while (true) {
+            long v = (long) STAMP.getVolatile(s, i);
+            if (v != ASSIGNING) return v;
+            // the writer is between publishing the element and stamping it
+            Thread.yield();
+        }
+    }
+
+    public HistoryLoader<T> getPending() {
+        return pending;
+    }
+
+    // Only for a list nothing was appended to yet
+    public void setPending(HistoryLoader<T> loader) {
+        this.pending = loader;
+    }
+
+    private synchronized void load() {
+        HistoryLoader<T> loader = pending;
+        if (loader == null) return;
+        loader.loadInto(this::addBase);
+        pending = null;
+    }
+
+    static final class View<T> extends AbstractList<T> implements RandomAccess {
+        private final Object[] items;
+        private final int size;
+        // null when nothing was retracted when the view was taken
+        private final long[] retracted;
+        private final long asOf;
+
+        View(Object[] items, int size, long[] retracted, long asOf) {
+            this.items = items;
+            this.size = size;
+            this.retracted = retracted;
+            this.asOf = asOf;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return (T) items[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        // Whether the element at the position was not retracted by the view's version
+        boolean isLive(int index) {
+            if (retracted == null || index >= retracted.length) return true;
+            long v = stamp(retracted, index);
+            return v == 0 || v > asOf;
+        }
+
+        // The view without the elements retracted by its version
+        List<T> live() {
+            Object[] kept = new Object[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (isLive(i)) kept[n++] = items[i];
+            }
+            return new View<>(kept, n, null, asOf);
+        }
+    }
+}
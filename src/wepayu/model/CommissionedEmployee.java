@@ -1,24 +1,92 @@
 package wepayu.model;
 
-import java.util.ArrayList;
+import java.time.LocalDate;
 import java.util.List;
+import java.util.function.Consumer;
 import wepayu.util.DateUtils;
+import wepayu.util.Money;
 
 
 public class CommissionedEmployee extends SalariedEmployee {
     private double commissionRate;
-    public List<SalesReceipt> sales = new ArrayList<>();
+    // appended under the list's own lock; readers get point-in-time views without locking. Shared
+    // with every copy of this employee (see Employee.copy); only a compacted copy gets another
+    private AppendOnlyList<SalesReceipt> sales = new AppendOnlyList<>(SalesReceipt::getEpochDay, SalesReceipt::getAmount);
 
-    public CommissionedEmployee(String name, String address, double salary, double commissionRate) {
+    public CommissionedEmployee(String name, String address, long salary, double commissionRate) {
         super(name, address, salary);
         this.commissionRate = commissionRate;
         this.paymentSchedule = PaymentSchedule.BISEMANAL;
     }
 
+    public CommissionedEmployee(String id, String name, String address, long salary, double commissionRate) {
+        super(id, name, address, salary);
+        this.commissionRate = commissionRate;
+        this.paymentSchedule = PaymentSchedule.BISEMANAL;
+    }
+
     public void addSalesReceipt(SalesReceipt receipt) {
         sales.add(receipt);
     }
 
+    // Takes back a receipt added before (undo)
+    public boolean retractSalesReceipt(SalesReceipt receipt) {
+        return sales.retract(receipt);
+    }
+
+    // Adds the receipts in order at one version (bulk import)
+    public void addSalesReceipts(List<SalesReceipt> receipts) {
+        sales.addAll(receipts);
+    }
+
+    // Takes back receipts added by addSalesReceipts (undo)
+    public int retractSalesReceipts(List<SalesReceipt> receipts) {
+        return sales.retractAll(receipts);
+    }
+
+    // Copy of this employee with the sales before the cutoff compacted into daily totals (see
+    // AppendOnlyList.compacted), or this employee when there is nothing to fold
+    public CommissionedEmployee compacted(int cutoff, Consumer<? super SalesReceipt> folded) {
+        AppendOnlyList<SalesReceipt> next = sales.compacted(cutoff, folded);
+        if (next == sales) return this;
+        CommissionedEmployee copy = (CommissionedEmployee) copy();
+        copy.sales = next;
+        return copy;
+    }
+
+    // Receipts posted so far (receipts posted later are not included); a compacted day is one receipt
+    public List<SalesReceipt> getSales() {
+        return getSales(Versions.LATEST);
+    }
+
+    // Receipts posted up to the version; a compacted day is one receipt
+    public List<SalesReceipt> getSales(long asOf) {
+        return sales.snapshot(asOf, SalesReceipt::new);
+    }
+
+    // Total sold in the days [inicio, fim) by the version, in cents, from the running totals
+    public long getSalesTotal(int inicio, int fim, long asOf) {
+        return sales.sumInDays(inicio, fim, asOf);
+    }
+
+    // Total sold by the version, in cents
+    public long getSalesTotal(long asOf) {
+        return sales.sum(asOf);
+    }
+
+    // Sales per day in [inicio, fim) by the version, for a walk over consecutive periods
+    public AppendOnlyList.DailySums getDailySales(int inicio, int fim, long asOf) {
+        return sales.dailySums(inicio, fim, asOf);
+    }
+
+    public HistoryLoader<SalesReceipt> getPendingSales() {
+        return sales.getPending();
+    }
+
+    public void setPendingSales(HistoryLoader<SalesReceipt> loader) {
+        sales.setPending(loader);
+    }
+
     public double getCommissionRate() {
         return commissionRate;
     }
@@ -27,21 +95,19 @@ public class CommissionedEmployee extends SalariedEmployee {
         this.commissionRate = commissionRate;
     }
 
-    public void setMonthlySalary(double salary) {
+    public void setMonthlySalary(long salary) {
         // super uses private monthlySalary; use setter in SalariedEmployee if needed
     }
 
     @Override
-    public double calculatePay() {
-        double basePay = super.calculatePay();
-        double commissions = sales.stream()
-                                  .mapToDouble(s -> s.getAmount() * commissionRate)
-                                  .sum();
-        return basePay + commissions;
+    public long calculatePay(long asOf) {
+        long basePay = super.calculatePay(asOf);
+        // rate * sum(sales) equals sum(rate * sale) and needs a single rounding
+        return basePay + Money.times(getSalesTotal(asOf), commissionRate);
     }
 
     @Override
-    public boolean isPayDate(String date) {
+    public boolean isPayDate(LocalDate date) {
         return DateUtils.isBiweeklyFriday(date);
     }
 }
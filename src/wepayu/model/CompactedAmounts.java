@@ -0,0 +1,88 @@
+package wepayu.model;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Amounts of the days a compaction folded out of a history (see AppendOnlyList.compacted): one total
+ * per day in two primitive arrays with running sums, so a day costs 12 bytes whatever the number of
+ * records it had and a range costs two binary searches. Immutable.
+ */
+final class CompactedAmounts {
+    static final CompactedAmounts EMPTY = new CompactedAmounts(new int[0], new long[1]);
+
+    // ascending
+    private final int[] days;
+    // cumulative[i] = total of the days before days[i]; the last one is the total of all
+    private final long[] cumulative;
+
+    private CompactedAmounts(int[] days, long[] cumulative) {
+        this.days = days;
+        this.cumulative = cumulative;
+    }
+
+    int size() {
+        return days.length;
+    }
+
+    int day(int i) {
+        return days[i];
+    }
+
+    long amount(int i) {
+        return cumulative[i + 1] - cumulative[i];
+    }
+
+    long total() {
+        return cumulative[days.length];
+    }
+
+    // Total of the days [fromDay, toDay)
+    long sum(int fromDay, int toDay) {
+        if (fromDay >= toDay) return 0;
+        return cumulative[lowerBound(toDay)] - cumulative[lowerBound(fromDay)];
+    }
+
+    // Index of the first day at or after the given one
+    int lowerBound(int day) {
+        int lo = 0, hi = days.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (days[mid] < day) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // These days plus the given per-day totals (ascending days); a day in both adds up
+    CompactedAmounts with(Map<Integer, Long> more) {
+        int[] d = new int[days.length + more.size()];
+        long[] c = new long[d.length + 1];
+        int i = 0, n = 0;
+        for (Map.Entry<Integer, Long> e : more.entrySet()) {
+            int day = e.getKey();
+            while (i < days.length && days[i] < day) {
+                d[n] = days[i];
+                c[n + 1] = c[n] + amount(i);
+                i++;
+                n++;
+            }
+            long amount = e.getValue();
+            if (i < days.length && days[i] == day) amount += amount(i++);
+            d[n] = day;
+            c[n + 1] = c[n] + amount;
+            n++;
+        }
+        while (i < days.length) {
+            d[n] = days[i];
+            c[n + 1] = c[n] + amount(i);
+            i++;
+            n++;
+        }
+        if (n < days.length + more.size()) {
+            d = Arrays.copyOf(d, n);
+            c = Arrays.copyOf(c, n + 1);
+        }
+        return new CompactedAmounts(d, c);
+    }
+}
@@ -0,0 +1,66 @@
+package wepayu.model;
+
+import java.util.List;
+
+/**
+ * Time cards of the days a compaction folded out of a history (see TimeCardHistory.compacted): the day
+ * and the hours of every card in two primitive arrays, in date order and posting order within a day,
+ * 12 bytes a card instead of the card, its slot, its stamp and its index entry. The hours are kept card
+ * by card rather than summed per day, so normal and extra hours over any range add the same doubles in
+ * the same order as before the compaction. Immutable.
+ */
+final class CompactedTimeCards {
+    static final CompactedTimeCards EMPTY = new CompactedTimeCards(new int[0], new double[0]);
+
+    private final int[] days;
+    private final double[] hours;
+
+    private CompactedTimeCards(int[] days, double[] hours) {
+        this.days = days;
+        this.hours = hours;
+    }
+
+    int size() {
+        return days.length;
+    }
+
+    int day(int i) {
+        return days[i];
+    }
+
+    // Index of the first card on or after the day
+    int lowerBound(int day) {
+        int lo = 0, hi = days.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (days[mid] < day) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // The card at the index, as a new TimeCard
+    TimeCard card(int i) {
+        return new TimeCard(days[i], hours[i]);
+    }
+
+    // These cards plus the given ones (in date order); on a day in both, these come first, as they
+    // were posted first
+    CompactedTimeCards with(List<TimeCard> more) {
+        int[] d = new int[days.length + more.size()];
+        double[] h = new double[d.length];
+        int i = 0, n = 0;
+        for (TimeCard c : more) {
+            while (i < days.length && days[i] <= c.getEpochDay()) {
+                d[n] = days[i];
+                h[n++] = hours[i++];
+            }
+            d[n] = c.getEpochDay();
+            h[n++] = c.getHours();
+        }
+        int rest = days.length - i;
+        System.arraycopy(days, i, d, n, rest);
+        System.arraycopy(hours, i, h, n, rest);
+        return new CompactedTimeCards(d, h);
+    }
+}
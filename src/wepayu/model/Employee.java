@@ -1,9 +1,11 @@
 package wepayu.model;
 
+import java.time.LocalDate;
 import java.util.UUID;
+import wepayu.util.CompiledSchedule;
 import java.util.concurrent.atomic.AtomicLong;
 
-public abstract class Employee {
+public abstract class Employee implements Cloneable {
     protected String id;
     private static final AtomicLong ID_COUNTER = new AtomicLong(1);
     protected String name;
@@ -12,6 +14,14 @@ public abstract class Employee {
     protected PaymentSchedule paymentSchedule;
     protected UnionMembership unionMembership;
 
+    // Restores an employee with a known id without consuming the id sequence (snapshot loading)
+    protected Employee(String id, String name, String address) {
+        this.id = id;
+        this.name = name;
+        this.address = address;
+        this.paymentMethod = PaymentMethod.CHEQUE_MAOS;
+    }
+
     public Employee(String name, String address) {
         // deterministic id for reproducible runs: name-based UUID over an incrementing counter
         long seq = ID_COUNTER.getAndIncrement();
@@ -25,6 +35,15 @@ public abstract class Employee {
         return id;
     }
 
+    // Next value of the id sequence; the journal saves it so replayed calls recreate the same ids
+    public static long getNextSequence() {
+        return ID_COUNTER.get();
+    }
+
+    public static void setNextSequence(long next) {
+        ID_COUNTER.set(next);
+    }
+
     public String getName() {
         return name;
     }
@@ -84,6 +103,16 @@ public abstract class Employee {
         this.account = account;
     }
 
+    // Copy for copy-on-write edits: same id and fields, sharing the (append-only) histories and the
+    // union membership, so posts made through either object are seen through both
+    public Employee copy() {
+        try {
+            return (Employee) super.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
     // Allow preserving id when replacing employee types
     public void setId(String id) {
         this.id = id;
@@ -97,19 +126,35 @@ public abstract class Employee {
         this.paymentSchedule = paymentSchedule;
     }
 
-    // Human-readable payment schedule descriptor (ex: "mensal $", "semanal 5", "semanal 2 5")
-    private String paymentScheduleDescription;
+    // Explicitly assigned schedule (ex: "mensal $", "semanal 5", "semanal 2 5"); null keeps the
+    // per-type default behaviour of isPayDate
+    private CompiledSchedule compiledSchedule;
+
+    public CompiledSchedule getCompiledSchedule() {
+        return compiledSchedule;
+    }
+
+    public void setCompiledSchedule(CompiledSchedule compiledSchedule) {
+        this.compiledSchedule = compiledSchedule;
+    }
 
+    // Human-readable descriptor of the assigned schedule, or null
     public String getPaymentScheduleDescription() {
-        return paymentScheduleDescription;
+        return compiledSchedule == null ? null : compiledSchedule.getDescriptor();
     }
 
-    public void setPaymentScheduleDescription(String paymentScheduleDescription) {
-        this.paymentScheduleDescription = paymentScheduleDescription;
+    // Pay over the whole history, in cents
+    public long calculatePay() {
+        return calculatePay(Versions.LATEST);
     }
 
-    public abstract double calculatePay();
+    // Pay over the history posted up to the version, in cents
+    public abstract long calculatePay(long asOf);
 
-    public abstract boolean isPayDate(String date);
+    public abstract boolean isPayDate(LocalDate date);
+
+    public boolean isPayDate(String date) {
+        return isPayDate(wepayu.util.DateUtils.parseLocalDate(date));
+    }
 
 }
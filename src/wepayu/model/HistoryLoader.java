@@ -0,0 +1,11 @@
+package wepayu.model;
+
+import java.util.function.Consumer;
+
+/**
+ * History records (time cards, sales, service charges) that are still encoded somewhere else, e.g. in a
+ * memory-mapped snapshot, and are decoded into the owning object the first time they are needed.
+ */
+public interface HistoryLoader<T> {
+    void loadInto(Consumer<T> sink);
+}
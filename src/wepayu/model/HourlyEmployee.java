@@ -1,67 +1,151 @@
 package wepayu.model;
 
-import java.util.ArrayList;
+import java.time.LocalDate;
 import java.util.List;
+import java.util.function.Consumer;
 import wepayu.util.DateUtils;
+import wepayu.util.Money;
 
 public class HourlyEmployee extends Employee {
-    private double hourlyRate;
-    private List<TimeCard> timeCards = new ArrayList<>();
+    // rate per hour in cents
+    private long hourlyRate;
+    // shared with every copy of this employee (see Employee.copy); only a compacted copy gets another
+    private TimeCardHistory timeCards = new TimeCardHistory();
 
-    public HourlyEmployee(String name, String address, double hourlyRate) {
+    public HourlyEmployee(String name, String address, long hourlyRate) {
         super(name, address);
         this.hourlyRate = hourlyRate;
         this.paymentSchedule = PaymentSchedule.SEMANAL;
     }
 
+    public HourlyEmployee(String id, String name, String address, long hourlyRate) {
+        super(id, name, address);
+        this.hourlyRate = hourlyRate;
+        this.paymentSchedule = PaymentSchedule.SEMANAL;
+    }
+
     public void addTimeCard(TimeCard card) {
         timeCards.add(card);
     }
 
-    public double getHourlyRate() {
+    // Takes back a card added before (undo)
+    public boolean retractTimeCard(TimeCard card) {
+        return timeCards.retract(card);
+    }
+
+    // Adds the cards in order at one version (bulk import)
+    public void addTimeCards(List<TimeCard> cards) {
+        timeCards.addAll(cards);
+    }
+
+    // Takes back cards added by addTimeCards (undo)
+    public int retractTimeCards(List<TimeCard> cards) {
+        return timeCards.retractAll(cards);
+    }
+
+    // Copy of this employee with the time cards before the cutoff compacted (see
+    // TimeCardHistory.compacted), or this employee when there is nothing to fold
+    public HourlyEmployee compacted(int cutoff, Consumer<? super TimeCard> folded) {
+        TimeCardHistory next = timeCards.compacted(cutoff, folded);
+        if (next == timeCards) return this;
+        HourlyEmployee copy = (HourlyEmployee) copy();
+        copy.timeCards = next;
+        return copy;
+    }
+
+    public int getTimeCardCount() {
+        return timeCards.count();
+    }
+
+    // All time cards in date order
+    public List<TimeCard> getTimeCards() {
+        return getTimeCards(Versions.LATEST);
+    }
+
+    // Time cards posted up to the version, in date order
+    public List<TimeCard> getTimeCards(long asOf) {
+        return timeCards.byDate(asOf);
+    }
+
+    public HistoryLoader<TimeCard> getPendingTimeCards() {
+        return timeCards.getPending();
+    }
+
+    public void setPendingTimeCards(HistoryLoader<TimeCard> loader) {
+        timeCards.setPending(loader);
+    }
+
+    public long getHourlyRate() {
         return hourlyRate;
     }
 
-    public void setHourlyRate(double hourlyRate) {
+    public void setHourlyRate(long hourlyRate) {
         this.hourlyRate = hourlyRate;
     }
 
     @Override
-    public double calculatePay() {
-        double total = 0;
-        for (TimeCard card : timeCards) {
+    public long calculatePay(long asOf) {
+        // hours weighted by the overtime factor, so the rate is applied (and rounded) once
+        double paidHours = 0;
+        for (TimeCard card : timeCards.cards(asOf)) {
             double hours = card.getHours();
-            if (hours > 8) {
-                total += 8 * hourlyRate + (hours - 8) * hourlyRate * 1.5;
-            } else {
-                total += hours * hourlyRate;
-            }
+            paidHours += hours > 8 ? 8 + (hours - 8) * 1.5 : hours;
         }
+        long total = Money.times(hourlyRate, paidHours);
         if (unionMembership != null) {
-            total -= unionMembership.getTotalCharges();
+            total -= unionMembership.getTotalCharges(asOf);
         }
         return total;
     }
 
     @Override
-    public boolean isPayDate(String date) {
+    public boolean isPayDate(LocalDate date) {
         return DateUtils.isFriday(date);
     }
 
     public double getHorasTrabalhadas(String dataInicial, String dataFinal, boolean extras) {
-    double total = 0;
-    for (TimeCard c : timeCards) {
-        // Agora: inclui o dia inicial, mas não o final
-        if (DateUtils.isBetweenExclusiveEnd(c.getDate(), dataInicial, dataFinal)) {
-            if (extras) {
-                if (c.getHours() > 8) total += (c.getHours() - 8);
-            } else {
-                total += Math.min(c.getHours(), 8);
-            }
-        }
+        if (timeCards.isEmpty()) return 0;
+        HoursSummary h = getHorasNoPeriodo(DateUtils.toEpochDay(dataInicial), DateUtils.toEpochDay(dataFinal));
+        return extras ? h.extra : h.normal;
     }
-    return total;
+
+    public HoursSummary getHorasNoPeriodo(int inicio, int fim) {
+        return getHorasNoPeriodo(inicio, fim, Versions.LATEST);
     }
 
+    // Normal and extra hours in [inicio, fim) (epoch days) posted up to the version, summed in a
+    // single pass over the index
+    public HoursSummary getHorasNoPeriodo(int inicio, int fim, long asOf) {
+        return HoursSummary.of(timeCards.inPeriod(inicio, fim, asOf));
+    }
 
+    // Time cards of the days in [inicio, fim) posted up to the version, in date order
+    public List<TimeCard> getTimeCards(int inicio, int fim, long asOf) {
+        return timeCards.inPeriod(inicio, fim, asOf);
+    }
+
+    public static class HoursSummary {
+        public final double normal;
+        public final double extra;
+        // time cards that fell in the period
+        public final int cards;
+
+        public HoursSummary(double normal, double extra, int cards) {
+            this.normal = normal;
+            this.extra = extra;
+            this.cards = cards;
+        }
+
+        // Normal and extra hours of the cards, summed in list order
+        public static HoursSummary of(List<TimeCard> cards) {
+            double normal = 0;
+            double extra = 0;
+            for (TimeCard c : cards) {
+                double hours = c.getHours();
+                normal += Math.min(hours, 8);
+                if (hours > 8) extra += hours - 8;
+            }
+            return new HoursSummary(normal, extra, cards.size());
+        }
+    }
 }
@@ -2,11 +2,12 @@ package wepayu.model;
 
 public class Paycheck {
     private String employeeId;
-    private double grossPay;
-    private double deductions;
-    private double netPay;
+    // amounts in cents
+    private long grossPay;
+    private long deductions;
+    private long netPay;
 
-    public Paycheck(String employeeId, double grossPay, double deductions) {
+    public Paycheck(String employeeId, long grossPay, long deductions) {
         this.employeeId = employeeId;
         this.grossPay = grossPay;
         this.deductions = deductions;
@@ -17,15 +18,15 @@ public class Paycheck {
         return employeeId;
     }
 
-    public double getGrossPay() {
+    public long getGrossPay() {
         return grossPay;
     }
 
-    public double getDeductions() {
+    public long getDeductions() {
         return deductions;
     }
 
-    public double getNetPay() {
+    public long getNetPay() {
         return netPay;
     }
 }
@@ -1,35 +1,43 @@
 package wepayu.model;
 
+import java.time.LocalDate;
 import wepayu.util.DateUtils;
 
 public class SalariedEmployee extends Employee {
-    private double monthlySalary;
+    // monthly salary in cents
+    private long monthlySalary;
 
-    public SalariedEmployee(String name, String address, double monthlySalary) {
+    public SalariedEmployee(String name, String address, long monthlySalary) {
         super(name, address);
         this.monthlySalary = monthlySalary;
         this.paymentSchedule = PaymentSchedule.MENSAL;
     }
 
-    public double getMonthlySalary() {
+    public SalariedEmployee(String id, String name, String address, long monthlySalary) {
+        super(id, name, address);
+        this.monthlySalary = monthlySalary;
+        this.paymentSchedule = PaymentSchedule.MENSAL;
+    }
+
+    public long getMonthlySalary() {
         return monthlySalary;
     }
 
-    public void setMonthlySalary(double monthlySalary) {
+    public void setMonthlySalary(long monthlySalary) {
         this.monthlySalary = monthlySalary;
     }
 
     @Override
-    public double calculatePay() {
-        double total = monthlySalary;
+    public long calculatePay(long asOf) {
+        long total = monthlySalary;
         if (unionMembership != null) {
-            total -= unionMembership.getTotalCharges();
+            total -= unionMembership.getTotalCharges(asOf);
         }
         return total;
     }
 
     @Override
-    public boolean isPayDate(String date) {
+    public boolean isPayDate(LocalDate date) {
         return DateUtils.isLastWorkDayOfMonth(date);
     }
 }
@@ -1,19 +1,27 @@
 package wepayu.model;
 
+import java.time.LocalDate;
+
 public class ServiceCharge {
-    private String date;
-    private double amount;
+    // date kept as epoch day, parsed once when the record is posted
+    private final int epochDay;
+    // amount in cents
+    private long amount;
 
-    public ServiceCharge(String date, double amount) {
-        this.date = date;
+    public ServiceCharge(int epochDay, long amount) {
+        this.epochDay = epochDay;
         this.amount = amount;
     }
 
-    public String getDate() {
-        return date;
+    public int getEpochDay() {
+        return epochDay;
+    }
+
+    public LocalDate getDate() {
+        return LocalDate.ofEpochDay(epochDay);
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 }
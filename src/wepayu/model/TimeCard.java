@@ -1,16 +1,23 @@
 package wepayu.model;
 
+import java.time.LocalDate;
+
 public class TimeCard {
-    private String date;
+    // date kept as epoch day, parsed once when the record is posted
+    private final int epochDay;
     private double hours;
 
-    public TimeCard(String date, double hours) {
-        this.date = date;
+    public TimeCard(int epochDay, double hours) {
+        this.epochDay = epochDay;
         this.hours = hours;
     }
 
-    public String getDate() {
-        return date;
+    public int getEpochDay() {
+        return epochDay;
+    }
+
+    public LocalDate getDate() {
+        return LocalDate.ofEpochDay(epochDay);
     }
 
     public double getHours() {
@@ -0,0 +1,217 @@
+package wepayu.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Time cards of an hourly employee: one version-stamped list in posting order plus an index from
+ * epoch day to the positions of that day's cards. Appends are serialized per history; readers need no
+ * lock. A card is indexed before it is appended, so a reader that takes the visible prefix of the list
+ * first and keeps only the indexed positions inside it (and not retracted) sees exactly the cards of
+ * its version.
+ * The history is shared by every version (copy) of its employee, so editing the employee never
+ * copies or splits it.
+ *
+ * A compaction ({@link #compacted(int, Consumer)}) replaces the history with one that keeps the cards
+ * of the days before a cutoff in a CompactedTimeCards; every list and count here includes them.
+ */
+public final class TimeCardHistory {
+    private final AppendOnlyList<TimeCard> cards = new AppendOnlyList<>();
+    // epoch day -> position of its card (Integer) or positions in ascending order (int[]);
+    // created with the first card, so a history still pending in a snapshot costs nothing
+    private volatile NavigableMap<Integer, Object> days;
+    // cards still encoded in a mapped snapshot; loaded on first access
+    private volatile HistoryLoader<TimeCard> pending;
+    // cards of the days folded by the compaction that made this history (null: none)
+    private final CompactedTimeCards compacted;
+    // the history that replaced this one in a compaction; posts and retractions made through a stale
+    // reference go on to it, and so do reads at versions after sealedAt (the clock when it was made).
+    // Written under the history's lock, sealedAt first
+    private volatile TimeCardHistory successor;
+    private long sealedAt;
+
+    public TimeCardHistory() {
+        this.compacted = null;
+    }
+
+    private TimeCardHistory(CompactedTimeCards compacted) {
+        this.compacted = compacted;
+    }
+
+    public synchronized void add(TimeCard card) {
+        if (successor != null) {
+            successor.add(card);
+            return;
+        }
+        if (pending != null) load();
+        index(card.getEpochDay(), cards.size());
+        cards.add(card);
+    }
+
+    // Adds the cards in order at one version
+    public synchronized void addAll(List<TimeCard> batch) {
+        if (successor != null) {
+            successor.addAll(batch);
+            return;
+        }
+        if (pending != null) load();
+        int position = cards.size();
+        for (TimeCard card : batch) index(card.getEpochDay(), position++);
+        cards.addAll(batch);
+    }
+
+    // Takes back a card added before (undo); its position stays indexed, readers skip it
+    public synchronized boolean retract(TimeCard card) {
+        if (successor != null) return successor.retract(card);
+        if (pending != null) load();
+        return cards.retract(card);
+    }
+
+    // Takes back cards added by addAll (undo)
+    public synchronized int retractAll(List<TimeCard> batch) {
+        if (successor != null) return successor.retractAll(batch);
+        if (pending != null) load();
+        return cards.retractAll(batch);
+    }
+
+    // Cards posted up to the version, in posting order (compacted cards first, in date order)
+    public List<TimeCard> cards(long asOf) {
+        if (successor != null && asOf > sealedAt) return successor.cards(asOf);
+        if (pending != null) load();
+        List<TimeCard> live = cards.snapshot(asOf);
+        if (compacted == null) return live;
+        List<TimeCard> all = new ArrayList<>(compacted.size() + live.size());
+        for (int i = 0; i < compacted.size(); i++) all.add(compacted.card(i));
+        all.addAll(live);
+        return all;
+    }
+
+    // Cards posted up to the version, in date order (posting order within a day)
+    public List<TimeCard> byDate(long asOf) {
+        return inDays(null, null, asOf);
+    }
+
+    // Cards of the days in [inicio, fim) posted up to the version, in date order
+    public List<TimeCard> inPeriod(int inicio, int fim, long asOf) {
+        if (inicio >= fim) return new ArrayList<>();
+        return inDays(inicio, fim, asOf);
+    }
+
+    public boolean isEmpty() {
+        return count() == 0;
+    }
+
+    // Cards present now
+    public int count() {
+        if (successor != null) return successor.count();
+        if (pending != null) load();
+        return cards.liveSize() + (compacted == null ? 0 : compacted.size());
+    }
+
+    public HistoryLoader<TimeCard> getPending() {
+        return pending;
+    }
+
+    // Only for a history nothing was added to yet
+    public void setPending(HistoryLoader<TimeCard> loader) {
+        this.pending = loader;
+    }
+
+    private List<TimeCard> inDays(Integer inicio, Integer fim, long asOf) {
+        if (successor != null && asOf > sealedAt) return successor.inDays(inicio, fim, asOf);
+        // the prefix first: positions indexed after this point are past its end
+        if (pending != null) load();
+        AppendOnlyList.View<TimeCard> visible = cards.prefix(asOf);
+        List<TimeCard> found = new ArrayList<>();
+        // compacted cards of a day come before the day's cards in the list, which were posted later
+        CompactedTimeCards old = compacted;
+        int c = 0, cEnd = 0;
+        if (old != null) {
+            c = inicio == null ? 0 : old.lowerBound(inicio);
+            cEnd = fim == null ? old.size() : old.lowerBound(fim);
+        }
+        NavigableMap<Integer, Object> index = days;
+        if (index == null) index = new TreeMap<>();
+        else if (inicio != null) index = index.subMap(inicio, true, fim, false);
+        for (Map.Entry<Integer, Object> day : index.entrySet()) {
+            while (c < cEnd && old.day(c) <= day.getKey()) found.add(old.card(c++));
+            addLive(day.getValue(), visible, found);
+        }
+        while (c < cEnd) found.add(old.card(c++));
+        return found;
+    }
+
+    // Adds the cards at the indexed positions that are in the view and live in it
+    private static void addLive(Object positions, AppendOnlyList.View<TimeCard> visible, List<TimeCard> found) {
+        int n = visible.size();
+        if (positions instanceof Integer) {
+            int p = (Integer) positions;
+            if (p < n && visible.isLive(p)) found.add(visible.get(p));
+        } else {
+            for (int p : (int[]) positions) {
+                if (p >= n) break;
+                if (visible.isLive(p)) found.add(visible.get(p));
+            }
+        }
+    }
+
+    // The history that replaces this one in a compaction at the cutoff day: the cards present now of
+    // the days before it move into a CompactedTimeCards, each one handed to folded first (in date order,
+    // e.g. for an archive); the other cards present are kept, as base cards. As with
+    // AppendOnlyList.compacted, this history stays as it is for readers pinned before, further posts
+    // made on it go to the replacement, and this history is returned when there is nothing to fold
+    public synchronized TimeCardHistory compacted(int cutoff, Consumer<? super TimeCard> folded) {
+        if (successor != null) return successor;
+        if (pending != null) load();
+        AppendOnlyList.View<TimeCard> visible = cards.prefix(Versions.LATEST);
+        List<TimeCard> closing = new ArrayList<>();
+        NavigableMap<Integer, Object> index = days;
+        if (index != null) {
+            for (Object positions : index.headMap(cutoff, false).values()) addLive(positions, visible, closing);
+        }
+        if (closing.isEmpty()) return this;
+        TimeCardHistory next = new TimeCardHistory((compacted == null ? CompactedTimeCards.EMPTY : compacted).with(closing));
+        for (TimeCard card : closing) folded.accept(card);
+        for (int p = 0; p < visible.size(); p++) {
+            if (!visible.isLive(p)) continue;
+            TimeCard card = visible.get(p);
+            if (card.getEpochDay() < cutoff) continue;
+            next.index(card.getEpochDay(), next.cards.size());
+            next.cards.addBase(card);
+        }
+        sealedAt = Versions.last();
+        successor = next;
+        return next;
+    }
+
+    private void index(int epochDay, int position) {
+        NavigableMap<Integer, Object> index = days;
+        if (index == null) days = index = new ConcurrentSkipListMap<>();
+        index.merge(epochDay, position, TimeCardHistory::withPosition);
+    }
+
+    private static Object withPosition(Object positions, Object position) {
+        int p = (Integer) position;
+        if (positions instanceof Integer) return new int[] {(Integer) positions, p};
+        int[] a = (int[]) positions;
+        int[] grown = Arrays.copyOf(a, a.length + 1);
+        grown[a.length] = p;
+        return grown;
+    }
+
+    private synchronized void load() {
+        HistoryLoader<TimeCard> loader = pending;
+        if (loader == null) return;
+        loader.loadInto(card -> {
+            index(card.getEpochDay(), cards.size());
+            cards.addBase(card);
+        });
+        pending = null;
+    }
+}
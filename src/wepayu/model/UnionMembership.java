@@ -1,26 +1,46 @@
 package wepayu.model;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class UnionMembership {
+    // Charges posted so far (charges posted later are not included); a compacted day is one charge
     public List<ServiceCharge> getServiceCharges() {
-        return serviceCharges;
+        return getServiceCharges(Versions.LATEST);
+    }
+
+    // Charges posted up to the version; a compacted day is one charge
+    public List<ServiceCharge> getServiceCharges(long asOf) {
+        return serviceCharges.snapshot(asOf, ServiceCharge::new);
     }
 
     public String getUnionId() {
         return unionId;
     }
     private String unionId;
-    private double monthlyFee;
-    private List<ServiceCharge> serviceCharges = new ArrayList<>();
+    // monthly fee in cents
+    private long monthlyFee;
+    // appended under the list's own lock; readers get point-in-time views without locking
+    private final AppendOnlyList<ServiceCharge> serviceCharges;
+
+    public UnionMembership(String unionId, long monthlyFee) {
+        this(unionId, monthlyFee, new AppendOnlyList<>(ServiceCharge::getEpochDay, ServiceCharge::getAmount));
+    }
 
-    public UnionMembership(String unionId, double monthlyFee) {
+    private UnionMembership(String unionId, long monthlyFee, AppendOnlyList<ServiceCharge> serviceCharges) {
         this.unionId = unionId;
         this.monthlyFee = monthlyFee;
+        this.serviceCharges = serviceCharges;
+    }
+
+    // Membership with the charges before the cutoff compacted into daily totals (see
+    // AppendOnlyList.compacted), or this one when there is nothing to fold
+    public UnionMembership compacted(int cutoff, Consumer<? super ServiceCharge> folded) {
+        AppendOnlyList<ServiceCharge> next = serviceCharges.compacted(cutoff, folded);
+        return next == serviceCharges ? this : new UnionMembership(unionId, monthlyFee, next);
     }
 
-    public double getMonthlyFee() {
+    public long getMonthlyFee() {
         return monthlyFee;
     }
 
@@ -28,11 +48,46 @@ public class UnionMembership {
         serviceCharges.add(charge);
     }
 
-    public double getTotalCharges() {
-        double total = monthlyFee;
-        for (ServiceCharge sc : serviceCharges) {
-            total += sc.getAmount();
-        }
-        return total;
+    // Takes back a charge added before (undo)
+    public boolean retractServiceCharge(ServiceCharge charge) {
+        return serviceCharges.retract(charge);
+    }
+
+    // Adds the charges in order at one version (bulk import)
+    public void addServiceCharges(List<ServiceCharge> charges) {
+        serviceCharges.addAll(charges);
+    }
+
+    // Takes back charges added by addServiceCharges (undo)
+    public int retractServiceCharges(List<ServiceCharge> charges) {
+        return serviceCharges.retractAll(charges);
+    }
+
+    // Service charges in the days [inicio, fim) by the version, in cents, from the running totals
+    public long getChargesTotal(int inicio, int fim, long asOf) {
+        return serviceCharges.sumInDays(inicio, fim, asOf);
+    }
+
+    // Service charges per day in [inicio, fim) by the version, for a walk over consecutive periods
+    public AppendOnlyList.DailySums getDailyCharges(int inicio, int fim, long asOf) {
+        return serviceCharges.dailySums(inicio, fim, asOf);
+    }
+
+    public HistoryLoader<ServiceCharge> getPendingServiceCharges() {
+        return serviceCharges.getPending();
+    }
+
+    public void setPendingServiceCharges(HistoryLoader<ServiceCharge> loader) {
+        serviceCharges.setPending(loader);
+    }
+
+    // monthly fee plus every service charge, in cents
+    public long getTotalCharges() {
+        return getTotalCharges(Versions.LATEST);
+    }
+
+    // monthly fee plus the service charges posted up to the version, in cents
+    public long getTotalCharges(long asOf) {
+        return monthlyFee + serviceCharges.sum(asOf);
     }
 }
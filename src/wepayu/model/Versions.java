@@ -0,0 +1,52 @@
+package wepayu.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global version clock of the posted histories. Every record appended by a posting call gets the
+ * next version; a reader pinned at version V sees exactly the records stamped at or below V (records
+ * loaded from a snapshot are version 0, visible to everyone). Taking a version is O(1).
+ *
+ * A batch of records that must appear together (a transaction's postings) is made between
+ * {@link #beginBatch()} and {@link #endBatch()}: meanwhile {@link #current()} stays below the batch,
+ * and the change that publishes it hands its readers the batch's last version (see
+ * PayrollDatabase.applyAll). Records posted by other calls during a batch show up when it ends.
+ */
+public final class Versions {
+    // no version limit: the newest state, including records still being appended
+    public static final long LATEST = Long.MAX_VALUE;
+
+    private static final AtomicLong clock = new AtomicLong();
+    // first version of the batch being made (0: none); guarded by the class for writes
+    private static volatile long hiddenFrom;
+    private static int batches;
+
+    private Versions() {
+    }
+
+    // Highest version a reader may pin: the clock, short of a batch still being made
+    public static long current() {
+        // the clock first: a version taken in a batch is only seen once the batch is marked
+        long c = clock.get();
+        long hidden = hiddenFrom;
+        return hidden == 0 ? c : Math.min(c, hidden - 1);
+    }
+
+    // Highest version handed out so far, a batch still being made included
+    public static long last() {
+        return clock.get();
+    }
+
+    // Hides the versions taken from now on until the matching endBatch; batches may nest
+    public static synchronized void beginBatch() {
+        if (batches++ == 0) hiddenFrom = clock.get() + 1;
+    }
+
+    public static synchronized void endBatch() {
+        if (--batches == 0) hiddenFrom = 0;
+    }
+
+    static long next() {
+        return clock.incrementAndGet();
+    }
+}
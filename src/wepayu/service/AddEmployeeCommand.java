@@ -1,5 +1,6 @@
 package wepayu.service;
 
+import java.util.Set;
 import wepayu.model.Employee;
 
 public class AddEmployeeCommand implements Command {
@@ -18,4 +19,9 @@ public class AddEmployeeCommand implements Command {
     public void undo() {
         PayrollDatabase.removeEmployee(employee.getId());
     }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return employeeIds.contains(employee.getId());
+    }
 }
@@ -1,42 +1,51 @@
 package wepayu.service;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Map;
-import wepayu.model.Employee;
 
 /**
- * Command that clears the system but is undoable by keeping a shallow backup of employees.
+ * Command that clears the system but is undoable by keeping the directory it replaced. The directory
+ * is persistent (see PayrollDatabase), so the backup is the old root itself: execute and undo are
+ * pointer swaps, whatever the number of employees.
  */
 public class ClearSystemCommand implements Command {
-    private Map<String, Employee> backup;
+    // estimate per employee of the directory entries and the employee object, histories not counted
+    static final long BYTES_PER_EMPLOYEE = 256;
+
+    private PayrollDatabase.Snapshot backup;
+    private Map<String, wepayu.util.CompiledSchedule> schedulesBackup;
 
     @Override
     public void execute() {
-        // take a shallow copy of current employees
-        backup = new HashMap<>(PayrollDatabase.getAllEmployees());
+        schedulesBackup = ScheduleRegistry.snapshot();
+        backup = PayrollDatabase.clear();
         // diagnostic
-        try {
-            java.io.File d = new java.io.File("debug-snapshots"); if (!d.exists()) d.mkdirs();
-            java.io.File f = new java.io.File(d, "clear-exec-" + System.currentTimeMillis() + ".txt");
-            try (java.io.BufferedWriter w = new java.io.BufferedWriter(new java.io.FileWriter(f))) {
-                w.write("execute: backup-size=" + (backup == null ? 0 : backup.size())); w.newLine();
-            }
-        } catch (Exception ex) { }
-        PayrollDatabase.clear();
+        note("clear-exec-", "execute: backup-size=" + backup.size());
+        // custom schedules are dropped as well; only the defaults remain
+        ScheduleRegistry.reset();
     }
 
     @Override
     public void undo() {
-        PayrollDatabase.clear();
-        if (backup != null) {
-            for (Employee e : backup.values()) PayrollDatabase.addEmployee(e);
-        }
-        try {
-            java.io.File d = new java.io.File("debug-snapshots"); if (!d.exists()) d.mkdirs();
-            java.io.File f = new java.io.File(d, "clear-undo-" + System.currentTimeMillis() + ".txt");
-            try (java.io.BufferedWriter w = new java.io.BufferedWriter(new java.io.FileWriter(f))) {
-                w.write("undo: restored-size=" + (backup == null ? 0 : backup.size())); w.newLine();
-            }
-        } catch (Exception ex) { }
+        int restored = backup == null ? 0 : backup.size();
+        if (backup != null) PayrollDatabase.restore(backup);
+        if (schedulesBackup != null) ScheduleRegistry.restore(schedulesBackup);
+        // redo clears again and takes a new backup; this one is live again and needs no keeping
+        backup = null;
+        schedulesBackup = null;
+        note("clear-undo-", "undo: restored-size=" + restored);
+    }
+
+    @Override
+    public long retainedBytes() {
+        return backup == null ? 0 : backup.size() * BYTES_PER_EMPLOYEE;
+    }
+
+    // One-line note in the diagnostics directory, written in the background when sampled
+    private static void note(String prefix, String line) {
+        if (!Diagnostics.sample()) return;
+        Diagnostics.submit(prefix + System.currentTimeMillis() + ".txt",
+                file -> Files.write(file, (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
     }
 }
@@ -1,6 +1,21 @@
 package wepayu.service;
 
+import java.util.Set;
+
 public interface Command {
     void execute();
     void undo();
+
+    // Rough size (bytes) of the state only this command keeps alive in its current position in the
+    // history (done or undone); counted against the undo memory budget of CommandManager
+    default long retainedBytes() {
+        return 0;
+    }
+
+    // Whether the command holds a version of one of these employees (by id) or a record of a day
+    // before cutoff: a compaction (HistoryCompaction) replaced the one and folded the other, so the
+    // command can no longer be undone or redone. Unless a command says otherwise, it does
+    default boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return true;
+    }
 }
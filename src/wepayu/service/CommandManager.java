@@ -1,35 +1,249 @@
 package wepayu.service;
 
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import wepayu.service.exceptions.InvalidDataException;
 
+/**
+ * Undo/redo history in a ring buffer. Commands are deltas (the change and how to take it back), so an
+ * entry costs a few small objects; the history keeps at most {@link #getMaxDepth()} of them and drops
+ * the oldest when full. Each entry also remembers what its command keeps alive
+ * (Command.retainedBytes); when the total goes over the memory budget the oldest undo entries are
+ * dropped as well. The most recent command always stays undoable, even if it alone is over the budget.
+ *
+ * Positions are counted from the start: [oldest, top) can be undone, [top, end) redone.
+ *
+ * A checkpoint drops the history ({@link #discard()}), and a compaction the part of it that holds what it
+ * compacted ({@link #invalidate}); undo and redo then fail when they reach what was dropped, rather
+ * than quietly doing nothing.
+ */
 public class CommandManager {
-    private static Stack<Command> undoStack = new Stack<>();
-    private static Stack<Command> redoStack = new Stack<>();
+    // per entry bookkeeping (the command object and its slot), on top of what the command retains
+    private static final long ENTRY_BYTES = 32;
 
-    public static void executeCommand(Command cmd) {
+    private static int maxDepth = Math.max(1, Integer.getInteger("wepayu.undo.depth", 10_000));
+    private static long memoryBudget = Math.max(0, Long.getLong("wepayu.undo.maxBytes", 64L << 20));
+    private static Command[] commands = new Command[Math.min(maxDepth, 16)];
+    // the command's bytes when it took its current place in the history
+    private static long[] bytes = new long[commands.length];
+    private static long oldest;
+    private static long top;
+    private static long end;
+    // sum of the entries' bytes in [oldest, end)
+    private static long retained;
+    // commands pushed and times the history was cleared, so far (see mark)
+    private static long pushes;
+    private static long clears;
+    // the last discard dropped undo (redo) entries, still behind [oldest, end) for undo (redo)
+    private static boolean undoDiscarded;
+    private static boolean redoDiscarded;
+
+    // Where the history stood before a call, to take the call back with revert
+    public static final class Mark {
+        private final long pushes;
+        private final long top;
+        private final long clears;
+
+        private Mark(long pushes, long top, long clears) {
+            this.pushes = pushes;
+            this.top = top;
+            this.clears = clears;
+        }
+    }
+
+    public static synchronized void executeCommand(Command cmd) {
         cmd.execute();
-        undoStack.push(cmd);
-        redoStack.clear();
+        push(cmd);
+    }
+
+    // Records a command its caller already applied. For postings, which are appended under their
+    // history's own lock and undone by identity, so they need not wait for this class' lock to apply
+    public static synchronized void record(Command cmd) {
+        push(cmd);
     }
 
-    public static void undo() {
-        if (!undoStack.isEmpty()) {
-            Command cmd = undoStack.pop();
-            cmd.undo();
-            redoStack.push(cmd);
+    public static synchronized void undo() {
+        if (top == oldest) {
+            if (undoDiscarded) throw new InvalidDataException("Nao ha comando a desfazer.");
+            return;
         }
+        int slot = slot(top - 1);
+        Command cmd = commands[slot];
+        // an undo that throws leaves the entry where it was
+        cmd.undo();
+        top--;
+        reweigh(slot, cmd);
+        trim();
     }
 
-    public static void redo() {
-        if (!redoStack.isEmpty()) {
-            Command cmd = redoStack.pop();
-            cmd.execute();
-            undoStack.push(cmd);
+    public static synchronized void redo() {
+        if (top == end) {
+            if (redoDiscarded) throw new InvalidDataException("Nao ha comando a refazer.");
+            return;
         }
+        int slot = slot(top);
+        Command cmd = commands[slot];
+        cmd.execute();
+        top++;
+        reweigh(slot, cmd);
+        trim();
+    }
+
+    public static synchronized void clear() {
+        Arrays.fill(commands, null);
+        oldest = top = end = 0;
+        retained = 0;
+        clears++;
+        undoDiscarded = redoDiscarded = false;
+    }
+
+    // Clears the history at a checkpoint, whose snapshot cannot replay the commands it held: an undo
+    // or redo that would need one of them fails from now on instead of doing nothing
+    public static synchronized void discard() {
+        boolean undo = undoDiscarded || top > oldest;
+        boolean redo = redoDiscarded || end > top;
+        clear();
+        undoDiscarded = undo;
+        redoDiscarded = redo;
+    }
+
+    // Drops the entries that can no longer be applied (stale) and those behind them: the newest stale
+    // undo entry with every older one, the oldest stale redo entry with every newer one. Marks taken
+    // before no longer revert (the change that made them stale is not in the history)
+    public static synchronized void invalidate(Predicate<Command> stale) {
+        clears++;
+        for (long p = top; p > oldest; p--) {
+            if (stale.test(commands[slot(p - 1)])) {
+                while (oldest < p) dropOldest();
+                undoDiscarded = true;
+                break;
+            }
+        }
+        for (long p = top; p < end; p++) {
+            if (stale.test(commands[slot(p)])) {
+                while (end > p) dropNewestRedo();
+                redoDiscarded = true;
+                break;
+            }
+        }
+    }
+
+    public static synchronized Mark mark() {
+        return new Mark(pushes, top, clears);
+    }
+
+    // Takes back what was done through the history since the mark: commands pushed since are undone
+    // and dropped (the redo entries the push discarded stay lost), undos are redone and redos undone.
+    // Returns false, changing nothing, if the history was cleared or lost the pushed entries since
+    public static synchronized boolean revert(Mark mark) {
+        if (clears != mark.clears) return false;
+        long pushed = pushes - mark.pushes;
+        if (pushed > 0) {
+            if (top != end || top - oldest < pushed) return false;
+            for (; pushed > 0; pushed--) {
+                commands[slot(top - 1)].undo();
+                top--;
+                dropNewestRedo();
+            }
+            return true;
+        }
+        while (top < mark.top && top < end) redo();
+        while (top > mark.top && top > oldest) undo();
+        return true;
+    }
+
+    public static synchronized boolean canUndo() {
+        return top > oldest;
+    }
+
+    public static synchronized boolean canRedo() {
+        return top < end;
     }
 
-    public static void clear() {
-        undoStack.clear();
-        redoStack.clear();
+    public static synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    // Most entries (undo and redo) the history keeps; takes effect at once, dropping the oldest
+    public static synchronized void setMaxDepth(int depth) {
+        maxDepth = Math.max(1, depth);
+        while (end - oldest > maxDepth) {
+            if (oldest < top) dropOldest();
+            else dropNewestRedo();
+        }
+        resize(Math.min(maxDepth, Math.max(16, (int) (end - oldest))));
+    }
+
+    public static synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    // Bytes the history may keep alive; takes effect at once
+    public static synchronized void setMemoryBudget(long budget) {
+        memoryBudget = Math.max(0, budget);
+        trim();
+    }
+
+    public static synchronized long getRetainedBytes() {
+        return retained;
+    }
+
+    private static void push(Command cmd) {
+        // a new command discards what could be redone
+        while (end > top) dropNewestRedo();
+        redoDiscarded = false;
+        if (end - oldest == maxDepth) dropOldest();
+        if (end - oldest == commands.length) resize(Math.min(maxDepth, commands.length * 2));
+        int slot = slot(end);
+        commands[slot] = cmd;
+        bytes[slot] = ENTRY_BYTES + cmd.retainedBytes();
+        retained += bytes[slot];
+        end++;
+        top = end;
+        pushes++;
+        trim();
+    }
+
+    // The command moved between undo and redo: what it keeps alive may have changed
+    private static void reweigh(int slot, Command cmd) {
+        retained -= bytes[slot];
+        bytes[slot] = ENTRY_BYTES + cmd.retainedBytes();
+        retained += bytes[slot];
+    }
+
+    // Drops the oldest undo entries while over the budget, keeping the newest one
+    private static void trim() {
+        while (retained > memoryBudget && top - oldest > 1) dropOldest();
+    }
+
+    private static void dropOldest() {
+        int slot = slot(oldest);
+        retained -= bytes[slot];
+        commands[slot] = null;
+        oldest++;
+    }
+
+    private static void dropNewestRedo() {
+        end--;
+        int slot = slot(end);
+        retained -= bytes[slot];
+        commands[slot] = null;
+    }
+
+    private static int slot(long position) {
+        return (int) (position % commands.length);
+    }
+
+    // Re-lays the live entries in a buffer of the given capacity (at least their count)
+    private static void resize(int capacity) {
+        if (capacity == commands.length) return;
+        Command[] c = new Command[capacity];
+        long[] b = new long[capacity];
+        for (long p = oldest; p < end; p++) {
+            c[(int) (p % capacity)] = commands[slot(p)];
+            b[(int) (p % capacity)] = bytes[slot(p)];
+        }
+        commands = c;
+        bytes = b;
     }
 }
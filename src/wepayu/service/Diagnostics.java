@@ -0,0 +1,184 @@
+package wepayu.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer for the debug files (payroll snapshots, clear/undo notes). Callers only decide
+ * whether to sample the event and enqueue a task; the file is written by a single daemon thread, so
+ * diagnostic I/O never runs on the caller. The queue is bounded and a full queue drops the event.
+ * After each file the directory is rotated by age, total size and file count.
+ *
+ * Properties: wepayu.diagnostics (true), wepayu.diagnostics.dir (debug-snapshots),
+ * wepayu.diagnostics.sampleEvery (1 = every event), wepayu.diagnostics.queue (16),
+ * wepayu.diagnostics.maxFiles (50), wepayu.diagnostics.maxBytes (268435456),
+ * wepayu.diagnostics.maxAgeMinutes (1440).
+ */
+public class Diagnostics {
+
+    // Writes one diagnostic file (runs on the diagnostics thread)
+    @FunctionalInterface
+    public interface Task {
+        void writeTo(Path file) throws IOException;
+    }
+
+    private static volatile boolean enabled = !"false".equalsIgnoreCase(System.getProperty("wepayu.diagnostics", "true"));
+    private static volatile Path dir = Paths.get(System.getProperty("wepayu.diagnostics.dir", "debug-snapshots"));
+    private static volatile int sampleEvery = Math.max(1, Integer.getInteger("wepayu.diagnostics.sampleEvery", 1));
+    private static final int maxFiles = Math.max(1, Integer.getInteger("wepayu.diagnostics.maxFiles", 50));
+    private static final long maxBytes = Long.getLong("wepayu.diagnostics.maxBytes", 256L << 20);
+    private static final long maxAgeMillis = TimeUnit.MINUTES.toMillis(Long.getLong("wepayu.diagnostics.maxAgeMinutes", 1440));
+
+    private static final BlockingQueue<Pending> queue =
+            new ArrayBlockingQueue<>(Math.max(1, Integer.getInteger("wepayu.diagnostics.queue", 16)));
+    private static final AtomicLong events = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static Thread writer;
+    // tasks accepted and not yet finished (guarded by queue, for flush)
+    private static int unfinished;
+
+    private static final class Pending {
+        final String fileName;
+        final Task task;
+
+        Pending(String fileName, Task task) {
+            this.fileName = fileName;
+            this.task = task;
+        }
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setDir(Path directory) {
+        dir = directory;
+    }
+
+    public static void setSampleEvery(int n) {
+        if (n < 1) throw new IllegalArgumentException("sampleEvery must be >= 1");
+        sampleEvery = n;
+    }
+
+    // True if this event should produce a file; callers check it before capturing any state
+    public static boolean sample() {
+        return enabled && events.getAndIncrement() % sampleEvery == 0;
+    }
+
+    // Queues a file for the background writer; never blocks, drops the event when the queue is full
+    public static void submit(String fileName, Task task) {
+        if (!enabled) return;
+        ensureWriter();
+        synchronized (queue) {
+            if (queue.offer(new Pending(fileName, task))) {
+                unfinished++;
+            } else {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    // Events dropped because the queue was full
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    // Files that could not be written
+    public static long getFailed() {
+        return failed.get();
+    }
+
+    // Waits until everything queued so far has been written (or the timeout expires)
+    public static boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (queue) {
+            while (unfinished > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                queue.wait(Math.min(left, 50));
+            }
+        }
+        return true;
+    }
+
+    private static synchronized void ensureWriter() {
+        if (writer != null) return;
+        writer = new Thread(Diagnostics::writeLoop, "wepayu-diagnostics");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            Pending p;
+            try {
+                p = queue.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            try {
+                Path d = dir;
+                Files.createDirectories(d);
+                p.task.writeTo(d.resolve(p.fileName));
+                rotate(d);
+            } catch (Exception ex) {
+                // diagnostics must never fail the system; just count it
+                failed.incrementAndGet();
+            } finally {
+                synchronized (queue) {
+                    unfinished--;
+                    queue.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Drops files older than the max age, then the oldest ones while over the size or count limit
+    private static void rotate(Path d) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+            for (Path p : ds) {
+                if (!Files.isRegularFile(p)) continue;
+                files.add(p);
+            }
+        }
+        long now = System.currentTimeMillis();
+        List<Path> kept = new ArrayList<>();
+        long total = 0;
+        for (Path p : files) {
+            long modified = Files.getLastModifiedTime(p).toMillis();
+            if (now - modified > maxAgeMillis) {
+                Files.deleteIfExists(p);
+                continue;
+            }
+            // insertion sort by age, oldest first (the directory holds at most a few dozen files)
+            int i = kept.size();
+            while (i > 0 && times.get(i - 1) > modified) i--;
+            kept.add(i, p);
+            times.add(i, modified);
+            total += Files.size(p);
+        }
+        // the newest file (the one just written) is always kept
+        for (int i = 0; i < kept.size() - 1 && (kept.size() - i > maxFiles || total > maxBytes); i++) {
+            Path p = kept.get(i);
+            total -= Files.size(p);
+            Files.deleteIfExists(p);
+        }
+    }
+}
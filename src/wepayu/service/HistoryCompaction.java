@@ -0,0 +1,187 @@
+package wepayu.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import wepayu.metrics.Counter;
+import wepayu.metrics.Metrics;
+import wepayu.model.CommissionedEmployee;
+import wepayu.model.Employee;
+import wepayu.model.HourlyEmployee;
+import wepayu.model.UnionMembership;
+import wepayu.util.Money;
+
+/**
+ * Compaction of the posted histories up to a cutoff day, normally the end of the last period already
+ * paid. Sales and service charges of the days before the cutoff become one total per day; time cards
+ * become a packed day and hours per card (the hours are summed in doubles, so they are kept card by
+ * card to give the same overtime split as before). Every query answers as before: the range sums,
+ * the hours, the payroll and the lists (where a compacted day of sales or charges is one record).
+ *
+ * Each history builds its replacement under its own lock and forwards later posts to it, and the
+ * employees holding the replacements are published in one change of the directory, so a reader sees
+ * the histories either all before or all after, and a snapshot taken before keeps the detail. The
+ * commands that hold folded records or replaced employee versions can no longer be undone, so they
+ * leave the undo history together with the older ones (CommandManager.invalidate); newer commands
+ * stay undoable.
+ *
+ * The detail can be archived to a file in the PostingImport format (cartao/venda/taxa lines), written
+ * next to it and moved into place once complete; a file that cannot be created stops the compaction
+ * before anything changes.
+ */
+public class HistoryCompaction {
+    private static final Counter RUNS = Metrics.counter("compaction.runs");
+    private static final Counter RECORDS = Metrics.counter("compaction.records");
+    private static final Counter EMPLOYEES = Metrics.counter("compaction.employees");
+
+    public static final class Report {
+        // detail records folded (cards, receipts and charges)
+        public final long records;
+        // employees whose histories were replaced
+        public final int employees;
+
+        Report(long records, int employees) {
+            this.records = records;
+            this.employees = employees;
+        }
+
+        @Override
+        public String toString() {
+            return "Lancamentos compactados: " + records + ". Empregados: " + employees + ".";
+        }
+    }
+
+    // Lines of the archive; the first write error stops the writing and is kept for the end, the
+    // histories being already sealed by then
+    private static final class Archive {
+        final Path target;
+        final Path temp;
+        BufferedWriter out;
+        IOException failure;
+
+        Archive(Path target) throws IOException {
+            this.target = target;
+            Path dir = target.toAbsolutePath().getParent();
+            this.temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+            this.out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+        }
+
+        void line(String kind, String id, int epochDay, String value) {
+            if (out == null) return;
+            try {
+                out.write(kind + ";" + id + ";" + PostingImport.date(epochDay) + ";" + value);
+                out.newLine();
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        void fail(IOException ex) {
+            if (failure == null) failure = ex;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // the first failure is the one reported
+            }
+            out = null;
+        }
+
+        // Closes the file and moves it into place, or deletes it after a failure
+        void finish() {
+            if (out != null) {
+                try {
+                    out.close();
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                    return;
+                } catch (IOException ex) {
+                    if (failure == null) failure = ex;
+                }
+            }
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // the failure is reported below
+            }
+            throw new UncheckedIOException("Falha ao gravar " + target, failure);
+        }
+    }
+
+    // Compacts the histories before the cutoff day, archiving the detail to the file when one is given
+    public static Report run(int cutoff, Path archive) {
+        Archive file = null;
+        if (archive != null) {
+            try {
+                file = new Archive(archive);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Falha ao criar " + archive, ex);
+            }
+        }
+        long[] folded = new long[1];
+        Archive sink = file;
+        List<Employee> before = new ArrayList<>();
+        List<Employee> after = new ArrayList<>();
+        // the history's lock keeps out undo, redo and transaction commits, so no batch of postings is
+        // half made (Versions.beginBatch) while histories are sealed and their owners replaced
+        synchronized (CommandManager.class) {
+            // a retry finds the histories already replaced (compacted returns the same replacement), so
+            // it only builds the employees again, over whatever edits raced with the first attempt
+            do {
+                before.clear();
+                after.clear();
+                for (Employee e : PayrollDatabase.getAllEmployees().values()) {
+                    Employee next = compacted(e, cutoff, sink, folded);
+                    if (next != e) {
+                        before.add(e);
+                        after.add(next);
+                    }
+                }
+            } while (!before.isEmpty() && !PayrollDatabase.applyAll(before, after));
+            if (!before.isEmpty()) {
+                Set<String> ids = new HashSet<>();
+                for (Employee e : before) ids.add(e.getId());
+                CommandManager.invalidate(c -> c.holdsCompacted(cutoff, ids));
+            }
+        }
+        RUNS.add(1);
+        RECORDS.add(folded[0]);
+        EMPLOYEES.add(before.size());
+        if (file != null) file.finish();
+        return new Report(folded[0], before.size());
+    }
+
+    // The employee with its histories compacted, a copy, or the employee itself if nothing was folded
+    private static Employee compacted(Employee e, int cutoff, Archive archive, long[] folded) {
+        Employee next = e;
+        if (e instanceof HourlyEmployee) {
+            next = ((HourlyEmployee) e).compacted(cutoff, c -> {
+                folded[0]++;
+                if (archive != null) archive.line("cartao", e.getId(), c.getEpochDay(), Double.toString(c.getHours()));
+            });
+        } else if (e instanceof CommissionedEmployee) {
+            next = ((CommissionedEmployee) e).compacted(cutoff, s -> {
+                folded[0]++;
+                if (archive != null) archive.line("venda", e.getId(), s.getEpochDay(), Money.format(s.getAmount()));
+            });
+        }
+        UnionMembership m = e.getUnionMembership();
+        if (m != null) {
+            UnionMembership mc = m.compacted(cutoff, sc -> {
+                folded[0]++;
+                if (archive != null) archive.line("taxa", m.getUnionId(), sc.getEpochDay(), Money.format(sc.getAmount()));
+            });
+            if (mc != m) {
+                if (next == e) next = e.copy();
+                next.setUnionMembership(mc);
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,55 @@
+package wepayu.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import wepayu.model.CommissionedEmployee;
+import wepayu.model.HourlyEmployee;
+import wepayu.model.SalesReceipt;
+import wepayu.model.ServiceCharge;
+import wepayu.model.TimeCard;
+import wepayu.model.UnionMembership;
+
+// Postings of a bulk import, grouped by history: each group is appended in one operation and undo
+// retracts every group, so the whole import is one undo entry
+public class ImportPostingsCommand implements Command {
+    private final Map<HourlyEmployee, List<TimeCard>> cards;
+    private final Map<CommissionedEmployee, List<SalesReceipt>> sales;
+    private final Map<UnionMembership, List<ServiceCharge>> charges;
+
+    public ImportPostingsCommand(Map<HourlyEmployee, List<TimeCard>> cards,
+                                 Map<CommissionedEmployee, List<SalesReceipt>> sales,
+                                 Map<UnionMembership, List<ServiceCharge>> charges) {
+        this.cards = cards;
+        this.sales = sales;
+        this.charges = charges;
+    }
+
+    @Override
+    public void execute() {
+        for (Map.Entry<HourlyEmployee, List<TimeCard>> g : cards.entrySet()) g.getKey().addTimeCards(g.getValue());
+        for (Map.Entry<CommissionedEmployee, List<SalesReceipt>> g : sales.entrySet()) g.getKey().addSalesReceipts(g.getValue());
+        for (Map.Entry<UnionMembership, List<ServiceCharge>> g : charges.entrySet()) g.getKey().addServiceCharges(g.getValue());
+    }
+
+    @Override
+    public void undo() {
+        for (Map.Entry<UnionMembership, List<ServiceCharge>> g : charges.entrySet()) g.getKey().retractServiceCharges(g.getValue());
+        for (Map.Entry<CommissionedEmployee, List<SalesReceipt>> g : sales.entrySet()) g.getKey().retractSalesReceipts(g.getValue());
+        for (Map.Entry<HourlyEmployee, List<TimeCard>> g : cards.entrySet()) g.getKey().retractTimeCards(g.getValue());
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        for (List<TimeCard> g : cards.values()) {
+            for (TimeCard c : g) if (c.getEpochDay() < cutoff) return true;
+        }
+        for (List<SalesReceipt> g : sales.values()) {
+            for (SalesReceipt s : g) if (s.getEpochDay() < cutoff) return true;
+        }
+        for (List<ServiceCharge> g : charges.values()) {
+            for (ServiceCharge sc : g) if (sc.getEpochDay() < cutoff) return true;
+        }
+        return false;
+    }
+}
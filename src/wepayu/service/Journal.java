@@ -0,0 +1,267 @@
+package wepayu.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of facade calls with group commit: callers append encoded entries to a
+ * shared buffer and a single flusher thread writes (and fsyncs) everything pending in one go, so
+ * concurrent callers share the cost of each sync. The buffer is bounded: an append waits while
+ * {@code MAX_PENDING} bytes are still to be written, so a large group streams to the file.
+ *
+ * Each entry is framed as [int length][int crc32][payload] so a torn write at the end of the file is
+ * detected on recovery.
+ */
+public class Journal {
+    private static final int MAX_ENTRY = 1 << 20;
+    private static final int MAX_PENDING = 8 << 20;
+
+    // One journaled call: sequence number, employee id sequence before the call, method and arguments
+    public static class Entry {
+        public final long seq;
+        public final long idSequence;
+        public final String op;
+        public final Object[] args;
+
+        public Entry(long seq, long idSequence, String op, Object[] args) {
+            this.seq = seq;
+            this.idSequence = idSequence;
+            this.op = op;
+            this.args = args;
+        }
+    }
+
+    // Entries read back from a file plus the length of its valid prefix
+    public static class ReadResult {
+        public final List<Entry> entries;
+        public final long validLength;
+        public final boolean torn;
+
+        ReadResult(List<Entry> entries, long validLength, boolean torn) {
+            this.entries = entries;
+            this.validLength = validLength;
+            this.torn = torn;
+        }
+    }
+
+    private final FileChannel channel;
+    private final boolean fsync;
+    private final Object lock = new Object();
+    // appended and not yet taken by the flusher; the flusher writes the other buffer and swaps them
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+    private final OutputStream out;
+    private final Thread flusher;
+    private long appended;
+    private long durable;
+    private boolean closing;
+    private IOException failure;
+
+    // Opens (or creates) a journal file for appending; fsync=false only writes to the OS
+    public Journal(Path file, boolean fsync) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.out = Channels.newOutputStream(channel);
+        this.fsync = fsync;
+        this.flusher = new Thread(this::flushLoop, "wepayu-journal");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Queues entries for the next group commit, all or none: every entry is encoded (and can fail,
+    // e.g. a string over 64KB) before any is queued. Entries must be appended in sequence order
+    public void appendAll(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) return;
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (Entry e : entries) {
+            byte[] frame = encode(e);
+            frames.write(frame, 0, frame.length);
+        }
+        synchronized (lock) {
+            while (pending.size() >= MAX_PENDING && failure == null && !closing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrompido aguardando o journal.", ex);
+                }
+            }
+            check();
+            frames.writeTo(pending);
+            appended = entries.get(entries.size() - 1).seq;
+            lock.notifyAll();
+        }
+    }
+
+    // Fails if the journal can no longer take entries: a write already failed, or it is closing
+    public void check() throws IOException {
+        synchronized (lock) {
+            if (failure != null) throw failure;
+            if (closing) throw new IOException("Journal fechado.");
+        }
+    }
+
+    // Blocks until the entry with the given sequence number is on disk
+    public void awaitDurable(long seq) throws IOException {
+        synchronized (lock) {
+            while (durable < seq && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrompido aguardando o journal.", ex);
+                }
+            }
+            if (durable < seq) throw failure;
+        }
+    }
+
+    // Writes whatever is pending and closes the file
+    public void close() throws IOException {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) throw failure;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            long batchLast;
+            synchronized (lock) {
+                while (pending.size() == 0 && !closing) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        // only close() stops the flusher
+                    }
+                }
+                if (pending.size() == 0) return;
+                batch = pending;
+                pending = spare;
+                spare = null;
+                batchLast = appended;
+            }
+            try {
+                batch.writeTo(out);
+                if (fsync) channel.force(false);
+            } catch (IOException ex) {
+                synchronized (lock) {
+                    failure = ex;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            batch.reset();
+            synchronized (lock) {
+                spare = batch;
+                durable = batchLast;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    static byte[] encode(Entry e) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(e.seq);
+        out.writeLong(e.idSequence);
+        out.writeUTF(e.op);
+        out.writeByte(e.args.length);
+        for (Object a : e.args) {
+            if (a == null) {
+                out.writeByte(0);
+            } else if (a instanceof String) {
+                out.writeByte(1);
+                out.writeUTF((String) a);
+            } else if (a instanceof Double) {
+                out.writeByte(2);
+                out.writeDouble((Double) a);
+            } else if (a instanceof Integer) {
+                out.writeByte(3);
+                out.writeInt((Integer) a);
+            } else {
+                throw new IllegalArgumentException("Tipo de argumento nao suportado no journal: " + a.getClass());
+            }
+        }
+        byte[] payload = bytes.toByteArray();
+        // recovery reads a longer frame as a torn write
+        if (payload.length > MAX_ENTRY) throw new IOException("Entrada grande demais para o journal: " + e.op);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return frame.array();
+    }
+
+    // Reads every intact entry of a journal file, stopping at the first torn or corrupt one
+    public static ReadResult read(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long valid = 0;
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw))) {
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException ex) {
+                    return new ReadResult(entries, valid, false);
+                }
+                try {
+                    int crcValue = in.readInt();
+                    if (len <= 0 || len > MAX_ENTRY) return new ReadResult(entries, valid, true);
+                    byte[] payload = new byte[len];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != crcValue) return new ReadResult(entries, valid, true);
+                    entries.add(decode(payload));
+                    valid += 8 + len;
+                } catch (EOFException ex) {
+                    return new ReadResult(entries, valid, true);
+                }
+            }
+        }
+    }
+
+    private static Entry decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long seq = in.readLong();
+        long idSequence = in.readLong();
+        String op = in.readUTF();
+        Object[] args = new Object[in.readUnsignedByte()];
+        for (int i = 0; i < args.length; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 0: args[i] = null; break;
+                case 1: args[i] = in.readUTF(); break;
+                case 2: args[i] = in.readDouble(); break;
+                case 3: args[i] = in.readInt(); break;
+                default: throw new IOException("Tipo de argumento desconhecido no journal: " + tag);
+            }
+        }
+        return new Entry(seq, idSequence, op, args);
+    }
+}
@@ -1,29 +1,416 @@
 package wepayu.service;
 
 import wepayu.model.Employee;
+import wepayu.model.UnionMembership;
+import wepayu.model.Versions;
+import wepayu.util.PersistentMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Employee directory and its secondary indexes, safe for concurrent use. The directory is one
+ * immutable {@link State} made of persistent maps; a change builds the next state (sharing all but
+ * the changed paths) and publishes it with a compare-and-set, retrying if another change won. Readers
+ * never lock, and {@link #snapshot()} pins a state together with a history version in O(1), so a
+ * payroll run sees one point in time while employees keep being edited and records keep being posted.
+ *
+ * Employees are edited copy-on-write: copy the stored object, change the copy, then
+ * {@link #replace(Employee, Employee)}. History appends do not go through here; each history list
+ * serializes its own appends and stamps them with a version.
+ */
 public class PayrollDatabase {
-    private static Map<String, Employee> employees = new HashMap<>();
+    private static final AtomicReference<State> state = new AtomicReference<>(State.EMPTY);
 
+    // A state of the directory pinned together with the history version that goes with it
+    public static final class Snapshot {
+        private final State state;
+        private final long version;
+
+        private Snapshot(State state, long version) {
+            this.state = state;
+            this.version = version;
+        }
+
+        // Histories are read with this version (e.g. getSales(version))
+        public long getVersion() {
+            return version;
+        }
+
+        public Employee getEmployee(String id) {
+            return state.employees.get(id);
+        }
+
+        public int size() {
+            return state.employees.size();
+        }
+
+        public Map<String, Employee> getAllEmployees() {
+            return state.employees.asMap();
+        }
+
+        public Employee getEmployeeByUnionId(String unionId) {
+            return state.employeesByUnionId.get(unionId);
+        }
+
+        public List<String> getEmployeeIdsByName(String name) {
+            return state.idsByName(name);
+        }
+
+        // Pay group key (CompiledSchedule or employee class) -> members of the group
+        public Map<Object, PersistentMap<String, Employee>> getPayGroups() {
+            return state.employeesByPayGroup.asMap();
+        }
+    }
+
+    // The current directory with the current history version; O(1). A state published with a
+    // version (applyAll while a batch of versions is hidden, see Versions.beginBatch) brings the
+    // records of that batch with it
+    public static Snapshot snapshot() {
+        while (true) {
+            State s = state.get();
+            long version = Math.max(Versions.current(), s.version);
+            // no directory change landed while the version was read: both describe the same instant
+            if (state.get() == s) return new Snapshot(s, version);
+        }
+    }
+
+    // Adds the employee, atomically replacing (and unindexing) any employee stored with the same id
     public static void addEmployee(Employee e) {
-        employees.put(e.getId(), e);
+        State s, next;
+        do {
+            s = state.get();
+            Employee previous = s.employees.get(e.getId());
+            next = (previous != null ? s.without(previous) : s).with(e);
+        } while (!state.compareAndSet(s, next));
+    }
+
+    // Adds many employees with a single published change (snapshot loading)
+    public static void addEmployees(Collection<? extends Employee> employees) {
+        State s, next;
+        do {
+            s = state.get();
+            next = s.withAll(employees);
+        } while (!state.compareAndSet(s, next));
+    }
+
+    // Publishes an edited copy in place of the stored version it was copied from (or any replacement
+    // with the same id, e.g. a new type). Returns false, changing nothing, if that version is no longer
+    // the stored one or another employee already holds the copy's union id
+    public static boolean replace(Employee current, Employee next) {
+        if (!current.getId().equals(next.getId())) throw new IllegalArgumentException("ids differ");
+        State s, changed;
+        do {
+            s = state.get();
+            if (s.employees.get(current.getId()) != current) return false;
+            UnionMembership m = next.getUnionMembership();
+            if (m != null && m.getUnionId() != null) {
+                Employee holder = s.employeesByUnionId.get(m.getUnionId());
+                if (holder != null && !holder.getId().equals(next.getId())) return false;
+            }
+            changed = s.without(current).with(next);
+        } while (!state.compareAndSet(s, changed));
+        return true;
+    }
+
+    // Applies before.get(i) -> after.get(i) for every i as a single published change, updating the
+    // indexes once: null before adds (the id must be free), null after removes, the same object on
+    // both sides only checks that it is still the stored version. Returns false, changing nothing, if
+    // a before is no longer stored, an added id is taken or a union id would be held twice
+    public static boolean applyAll(List<Employee> before, List<Employee> after) {
+        return applyAll(before, after, 0);
+    }
+
+    // Same, and a snapshot of the published state (or of any state built on it) reads the histories
+    // at least at the given version: the last of a batch of records that goes with the change
+    public static boolean applyAll(List<Employee> before, List<Employee> after, long version) {
+        if (before.size() != after.size()) throw new IllegalArgumentException("before and after differ in size");
+        State s, changed;
+        do {
+            s = state.get();
+            changed = s.applyAll(before, after);
+            if (changed == null) return false;
+            if (version > changed.version) changed = changed.at(version);
+        } while (!state.compareAndSet(s, changed));
+        return true;
     }
 
     public static Employee getEmployee(String id) {
-        return employees.get(id);
+        return state.get().employees.get(id);
     }
 
     public static void removeEmployee(String id) {
-        employees.remove(id);
+        State s, next;
+        do {
+            s = state.get();
+            Employee removed = s.employees.get(id);
+            if (removed == null) return;
+            next = s.without(removed);
+        } while (!state.compareAndSet(s, next));
     }
 
     public static Map<String, Employee> getAllEmployees() {
-        return employees;
+        return state.get().employees.asMap();
+    }
+
+    public static Employee getEmployeeByUnionId(String unionId) {
+        return state.get().employeesByUnionId.get(unionId);
+    }
+
+    // Ids (sorted) of the employees whose name is exactly the given one; never null
+    public static List<String> getEmployeeIdsByName(String name) {
+        return state.get().idsByName(name);
+    }
+
+    // Pay group key (CompiledSchedule or employee class) -> members of the group
+    public static Map<Object, PersistentMap<String, Employee>> getPayGroups() {
+        return state.get().employeesByPayGroup.asMap();
+    }
+
+    // Empties the directory and returns what it held, so it can be put back with restore; O(1)
+    public static Snapshot clear() {
+        State previous = state.getAndSet(State.EMPTY);
+        return new Snapshot(previous, Versions.current());
+    }
+
+    // Makes a snapshot's directory the current one again (undo of a clear); O(1)
+    public static void restore(Snapshot snapshot) {
+        state.set(snapshot.state);
+    }
+
+    private static Object payGroupOf(Employee e) {
+        return e.getCompiledSchedule() != null ? e.getCompiledSchedule() : e.getClass();
     }
 
-    public static void clear() {
-        employees.clear();
+    private static final class State {
+        static final State EMPTY = new State(PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(),
+                PersistentMap.empty());
+
+        final PersistentMap<String, Employee> employees;
+        // secondary index: union id -> member
+        final PersistentMap<String, Employee> employeesByUnionId;
+        // secondary index: exact name -> ids of employees with that name, sorted (immutable lists)
+        final PersistentMap<String, List<String>> employeesByName;
+        // employees grouped by pay rule: their compiled schedule, or their class while they keep the
+        // type's default pay day; lets runPayroll skip whole groups that are not paid on a date
+        final PersistentMap<Object, PersistentMap<String, Employee>> employeesByPayGroup;
+        // lowest history version a snapshot of this state reads at (see applyAll); states built on
+        // this one keep it
+        final long version;
+
+        State(PersistentMap<String, Employee> employees, PersistentMap<String, Employee> employeesByUnionId,
+              PersistentMap<String, List<String>> employeesByName,
+              PersistentMap<Object, PersistentMap<String, Employee>> employeesByPayGroup) {
+            this(employees, employeesByUnionId, employeesByName, employeesByPayGroup, 0);
+        }
+
+        State(PersistentMap<String, Employee> employees, PersistentMap<String, Employee> employeesByUnionId,
+              PersistentMap<String, List<String>> employeesByName,
+              PersistentMap<Object, PersistentMap<String, Employee>> employeesByPayGroup, long version) {
+            this.employees = employees;
+            this.employeesByUnionId = employeesByUnionId;
+            this.employeesByName = employeesByName;
+            this.employeesByPayGroup = employeesByPayGroup;
+            this.version = version;
+        }
+
+        State at(long atVersion) {
+            return new State(employees, employeesByUnionId, employeesByName, employeesByPayGroup, atVersion);
+        }
+
+        List<String> idsByName(String name) {
+            List<String> ids = employeesByName.get(name);
+            return ids == null ? Collections.emptyList() : ids;
+        }
+
+        State with(Employee e) {
+            PersistentMap<String, Employee> union = employeesByUnionId;
+            UnionMembership m = e.getUnionMembership();
+            if (m != null && m.getUnionId() != null) union = union.plus(m.getUnionId(), e);
+            PersistentMap<String, List<String>> names = employeesByName;
+            if (e.getName() != null) names = names.plus(e.getName(), insertSorted(names.get(e.getName()), e.getId()));
+            Object key = payGroupOf(e);
+            PersistentMap<String, Employee> group = employeesByPayGroup.get(key);
+            group = (group == null ? PersistentMap.<String, Employee>empty() : group).plus(e.getId(), e);
+            return new State(employees.plus(e.getId(), e), union, names, employeesByPayGroup.plus(key, group), version);
+        }
+
+        State without(Employee e) {
+            PersistentMap<String, Employee> union = employeesByUnionId;
+            UnionMembership m = e.getUnionMembership();
+            if (m != null && m.getUnionId() != null && union.get(m.getUnionId()) == e) union = union.minus(m.getUnionId());
+            PersistentMap<String, List<String>> names = employeesByName;
+            if (e.getName() != null) {
+                List<String> ids = removeSorted(names.get(e.getName()), e.getId());
+                names = ids == null ? names.minus(e.getName()) : names.plus(e.getName(), ids);
+            }
+            Object key = payGroupOf(e);
+            PersistentMap<Object, PersistentMap<String, Employee>> groups = employeesByPayGroup;
+            PersistentMap<String, Employee> group = groups.get(key);
+            if (group != null && group.get(e.getId()) == e) {
+                group = group.minus(e.getId());
+                groups = group.isEmpty() ? groups.minus(key) : groups.plus(key, group);
+            }
+            return new State(employees.minus(e.getId()), union, names, groups, version);
+        }
+
+        // Bulk version of with(e) for each employee, updating nodes in place through builders
+        State withAll(Collection<? extends Employee> added) {
+            if (this == EMPTY) {
+                State built = build(added);
+                if (built != null) return built;
+            }
+            Edit edit = new Edit(this);
+            for (Employee e : added) {
+                Employee previous = edit.all.get(e.getId());
+                if (previous != null) edit.remove(previous);
+                edit.add(e);
+            }
+            return edit.build();
+        }
+
+        // See PayrollDatabase.applyAll; null if the changes do not apply to this state
+        State applyAll(List<Employee> before, List<Employee> after) {
+            Edit edit = new Edit(this);
+            // removals first, so an id or union id given up in the batch can be taken in it
+            for (int i = 0; i < before.size(); i++) {
+                Employee b = before.get(i);
+                if (b == null) continue;
+                if (employees.get(b.getId()) != b) return null;
+                if (after.get(i) != b) edit.remove(b);
+            }
+            for (int i = 0; i < after.size(); i++) {
+                Employee a = after.get(i);
+                if (a == null || a == before.get(i)) continue;
+                if (edit.all.get(a.getId()) != null) return null;
+                UnionMembership m = a.getUnionMembership();
+                if (m != null && m.getUnionId() != null && edit.union.get(m.getUnionId()) != null) return null;
+                edit.add(a);
+            }
+            return edit.build();
+        }
+
+        // The state holding exactly these employees, each map built in one pass (PersistentMap.of);
+        // null if an id repeats, which needs the replacing semantics of with(e)
+        private static State build(Collection<? extends Employee> added) {
+            int n = added.size();
+            List<String> ids = new ArrayList<>(n);
+            List<String> unionIds = new ArrayList<>();
+            List<Employee> members = new ArrayList<>();
+            List<String> names = new ArrayList<>(n);
+            List<List<String>> nameIds = new ArrayList<>(n);
+            Map<Object, List<Employee>> groups = new HashMap<>();
+            for (Employee e : added) {
+                ids.add(e.getId());
+                UnionMembership m = e.getUnionMembership();
+                if (m != null && m.getUnionId() != null) {
+                    unionIds.add(m.getUnionId());
+                    members.add(e);
+                }
+                if (e.getName() != null) {
+                    names.add(e.getName());
+                    nameIds.add(Collections.singletonList(e.getId()));
+                }
+                groups.computeIfAbsent(payGroupOf(e), k -> new ArrayList<>()).add(e);
+            }
+            List<? extends Employee> values = added instanceof List ? (List<? extends Employee>) added : new ArrayList<>(added);
+            PersistentMap<String, Employee> employees = PersistentMap.of(ids, values, (a, b) -> b);
+            if (employees.size() != ids.size()) return null;
+            PersistentMap.Builder<Object, PersistentMap<String, Employee>> byGroup = PersistentMap.<Object, PersistentMap<String, Employee>>empty().builder();
+            for (Map.Entry<Object, List<Employee>> g : groups.entrySet()) {
+                List<String> groupIds = new ArrayList<>(g.getValue().size());
+                for (Employee e : g.getValue()) groupIds.add(e.getId());
+                byGroup.put(g.getKey(), PersistentMap.of(groupIds, g.getValue(), (a, b) -> b));
+            }
+            return new State(employees,
+                    // a union id claimed twice keeps the later claimant, as with(e) would
+                    PersistentMap.of(unionIds, members, (a, b) -> b),
+                    PersistentMap.of(names, nameIds, (a, b) -> insertSorted(a, b.get(0))),
+                    byGroup.build());
+        }
+
+        // Changes to a state through builders: the touched nodes are copied once and then updated in
+        // place, so a batch costs about one path copy per key instead of one per change
+        private static final class Edit {
+            final PersistentMap.Builder<String, Employee> all;
+            final PersistentMap.Builder<String, Employee> union;
+            final PersistentMap.Builder<String, List<String>> names;
+            final PersistentMap.Builder<Object, PersistentMap<String, Employee>> groups;
+            // groups touched so far, stored back into groups by build()
+            final Map<Object, PersistentMap.Builder<String, Employee>> touched = new HashMap<>();
+            final long version;
+
+            Edit(State s) {
+                version = s.version;
+                all = s.employees.builder();
+                union = s.employeesByUnionId.builder();
+                names = s.employeesByName.builder();
+                groups = s.employeesByPayGroup.builder();
+            }
+
+            void add(Employee e) {
+                all.put(e.getId(), e);
+                UnionMembership m = e.getUnionMembership();
+                if (m != null && m.getUnionId() != null) union.put(m.getUnionId(), e);
+                if (e.getName() != null) names.put(e.getName(), insertSorted(names.get(e.getName()), e.getId()));
+                group(payGroupOf(e)).put(e.getId(), e);
+            }
+
+            void remove(Employee e) {
+                all.remove(e.getId());
+                UnionMembership m = e.getUnionMembership();
+                if (m != null && m.getUnionId() != null && union.get(m.getUnionId()) == e) union.remove(m.getUnionId());
+                if (e.getName() != null) {
+                    List<String> ids = removeSorted(names.get(e.getName()), e.getId());
+                    if (ids == null) names.remove(e.getName());
+                    else names.put(e.getName(), ids);
+                }
+                PersistentMap.Builder<String, Employee> group = group(payGroupOf(e));
+                if (group.get(e.getId()) == e) group.remove(e.getId());
+            }
+
+            private PersistentMap.Builder<String, Employee> group(Object key) {
+                PersistentMap.Builder<String, Employee> group = touched.get(key);
+                if (group == null) {
+                    PersistentMap<String, Employee> existing = groups.get(key);
+                    group = (existing == null ? PersistentMap.<String, Employee>empty() : existing).builder();
+                    touched.put(key, group);
+                }
+                return group;
+            }
+
+            State build() {
+                for (Map.Entry<Object, PersistentMap.Builder<String, Employee>> g : touched.entrySet()) {
+                    if (g.getValue().size() == 0) groups.remove(g.getKey());
+                    else groups.put(g.getKey(), g.getValue().build());
+                }
+                return new State(all.build(), union.build(), names.build(), groups.build(), version);
+            }
+        }
+
+        private static List<String> insertSorted(List<String> ids, String id) {
+            if (ids == null) return Collections.singletonList(id);
+            int pos = Collections.binarySearch(ids, id);
+            if (pos >= 0) return ids;
+            List<String> grown = new ArrayList<>(ids.size() + 1);
+            grown.addAll(ids);
+            grown.add(-pos - 1, id);
+            return Collections.unmodifiableList(grown);
+        }
+
+        // null when the id was the only one
+        private static List<String> removeSorted(List<String> ids, String id) {
+            if (ids == null) return null;
+            int pos = Collections.binarySearch(ids, id);
+            if (pos < 0) return ids;
+            if (ids.size() == 1) return null;
+            List<String> shrunk = new ArrayList<>(ids);
+            shrunk.remove(pos);
+            return Collections.unmodifiableList(shrunk);
+        }
     }
 }
@@ -1,170 +1,414 @@
 package wepayu.service;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Collectors;
+import wepayu.metrics.Counter;
+import wepayu.metrics.LatencyHistogram;
+import wepayu.metrics.Metrics;
+import wepayu.metrics.PayrollRunEvent;
 import wepayu.model.*;
+import wepayu.util.Money;
+import wepayu.util.PersistentMap;
 
 public class PayrollService {
 
-    private static final BigDecimal WEEKS_IN_MONTH = new BigDecimal("4.333333333333333");
+    private static final double WEEKS_IN_MONTH = 4.333333333333333;
 
-    private static BigDecimal roundMoney(BigDecimal v) {
-        return v.setScale(2, RoundingMode.HALF_UP);
+    // Runs with fewer paid employees than this stay on the calling thread
+    private static final int PARALLEL_THRESHOLD = 1024;
+
+    // run latency, per-phase latency and volume counters (see wepayu.metrics.Metrics)
+    private static final LatencyHistogram RUN = Metrics.histogram("payroll.run");
+    private static final LatencyHistogram RANGE = Metrics.histogram("payroll.range");
+    private static final LatencyHistogram PHASE_SCHEDULE = Metrics.histogram("payroll.phase.schedule");
+    private static final LatencyHistogram PHASE_GROSS = Metrics.histogram("payroll.phase.gross");
+    private static final LatencyHistogram PHASE_DEDUCTIONS = Metrics.histogram("payroll.phase.deductions");
+    private static final Counter EMPLOYEES = Metrics.counter("payroll.employees.total");
+    private static final Counter PAID = Metrics.counter("payroll.employees.paid");
+    private static final Counter GROUPS_VISITED = Metrics.counter("payroll.groups.visited");
+    private static final Counter GROUPS_PAID = Metrics.counter("payroll.groups.paid");
+    private static final Counter RECORDS = Metrics.counter("payroll.records.scanned");
+    private static final Counter RANGE_DAYS = Metrics.counter("payroll.range.days");
+
+    // Degree of parallelism of the payroll engine; 1 = sequential (default)
+    private static int parallelism = Math.max(1, Integer.getInteger("wepayu.payroll.parallelism", 1));
+    private static ForkJoinPool pool;
+
+    public static synchronized void setParallelism(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("parallelism must be >= 1");
+        if (threads == parallelism) return;
+        parallelism = threads;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
     }
 
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    // Payroll over the current state
     public static List<Paycheck> runPayroll(String date) {
-        // Write a lightweight snapshot of the employee database for debugging
-        try {
-            writeEmployeeSnapshot(date);
-        } catch (Exception ex) {
-            // swallow any errors - this is only diagnostic
-        }
-        List<Paycheck> checks = new ArrayList<>();
-        for (Employee e : PayrollDatabase.getAllEmployees().values()) {
-            // Skip internal schedule placeholders which are stored as special Employee entries
-            // with ids like "__SCHEDULE__::mensal $". They must not be considered for payroll.
-            if (e.getId() != null && e.getId().startsWith("__SCHEDULE__::")) continue;
-            boolean payDate = false;
+        return runPayroll(PayrollDatabase.snapshot(), date);
+    }
+
+    // Payroll over a pinned snapshot: employees, their fields and their histories as of one instant,
+    // whatever is edited or posted while the run goes on
+    public static List<Paycheck> runPayroll(PayrollDatabase.Snapshot view, String date) {
+        long t0 = System.nanoTime();
+        // Flight Recorder event, created only while a recording has it enabled
+        PayrollRunEvent event = PayrollRunEvent.PROBE.isEnabled() ? new PayrollRunEvent() : null;
+        if (event != null) event.begin();
+        // snapshot of the employee database for debugging, written in the background when sampled
+        if (Diagnostics.sample()) writeEmployeeSnapshot(view, date);
+        // parse the run date once; everything below works on the parsed value
+        java.time.LocalDate runDate = wepayu.util.DateUtils.parseLocalDate(date);
+        int runDay = wepayu.util.DateUtils.toEpochDay(runDate);
+        // snapshot of the employees paid today, in group order; each entry is computed
+        // independently so the list can be processed in parallel without changing the result
+        List<PayJob> jobs = new ArrayList<>();
+        int groups = 0, paidGroups = 0;
+        // only groups whose pay rule fires today are visited; a non-pay day costs O(groups)
+        for (Map.Entry<Object, PersistentMap<String, Employee>> group : view.getPayGroups().entrySet()) {
+            groups++;
+            Collection<Employee> members = group.getValue().asMap().values();
+            wepayu.util.CompiledSchedule schedule = null;
             wepayu.util.ScheduleUtils.PayPeriod period = null;
-            if (e.getPaymentScheduleDescription() != null && !e.getPaymentScheduleDescription().isBlank()) {
-                payDate = wepayu.util.ScheduleUtils.isPayDateForDescriptor(e.getPaymentScheduleDescription(), date);
-                if (payDate) {
-                    period = wepayu.util.ScheduleUtils.getPayPeriodForDescriptor(e.getPaymentScheduleDescription(), date);
-                }
+            if (group.getKey() instanceof wepayu.util.CompiledSchedule) {
+                schedule = (wepayu.util.CompiledSchedule) group.getKey();
+                if (!schedule.isPayDate(runDay)) continue;
+                period = schedule.periodFor(runDay);
             } else {
-                payDate = e.isPayDate(date);
+                // type default pay day: every member of the group shares its class, hence the answer
+                if (!members.iterator().next().isPayDate(runDate)) continue;
             }
-            if (payDate) {
-                // compute gross and deductions for the pay period (if available) or whole history if not
-                BigDecimal gross = BigDecimal.ZERO;
-                BigDecimal deductions = BigDecimal.ZERO;
-                String startStr = null, endStr = null;
-                if (period != null) {
-                    startStr = period.start.getDayOfMonth() + "/" + period.start.getMonthValue() + "/" + period.start.getYear();
-                    endStr = period.end.getDayOfMonth() + "/" + period.end.getMonthValue() + "/" + period.end.getYear();
-                }
+            paidGroups++;
+            for (Employee e : members) {
+                jobs.add(new PayJob(e, schedule, period, view.getVersion()));
+            }
+        }
+        long t1 = System.nanoTime();
+        PHASE_SCHEDULE.record(t1 - t0);
+        int employees = view.getAllEmployees().size();
+        EMPLOYEES.add(employees);
+        PAID.add(jobs.size());
+        GROUPS_VISITED.add(groups);
+        GROUPS_PAID.add(paidGroups);
 
-                // Salaried (non-commissioned)
-                if (e instanceof wepayu.model.SalariedEmployee && !(e instanceof wepayu.model.CommissionedEmployee)) {
-                    BigDecimal monthly = BigDecimal.valueOf(((wepayu.model.SalariedEmployee) e).getMonthlySalary());
-                    if (period != null) {
-                        String desc = e.getPaymentScheduleDescription() == null ? "" : e.getPaymentScheduleDescription().toLowerCase();
-                        String[] descParts = desc.split("\\s+");
-                        if (descParts.length == 2 && descParts[0].equals("semanal")) {
-                            double weeksDouble = period.multiplier * 4.333333333333333;
-                            int weeks = (int) Math.round(weeksDouble);
-                            BigDecimal weekly = monthly.divide(WEEKS_IN_MONTH, 10, RoundingMode.HALF_UP);
-                            BigDecimal weeklyRounded = roundMoney(weekly);
-                            gross = gross.add(weeklyRounded.multiply(BigDecimal.valueOf(weeks)));
-                        } else {
-                            BigDecimal raw = monthly.multiply(BigDecimal.valueOf(period.multiplier));
-                            gross = gross.add(roundMoney(raw));
-                        }
-                    } else {
-                        gross = gross.add(roundMoney(monthly));
-                    }
-                } else if (e instanceof wepayu.model.CommissionedEmployee) {
-                    // Commissioned: base monthly prorated + commissions
-                    BigDecimal base = BigDecimal.valueOf(((wepayu.model.CommissionedEmployee) e).getMonthlySalary());
-                    if (period != null) {
-                        String desc = e.getPaymentScheduleDescription() == null ? "" : e.getPaymentScheduleDescription().toLowerCase();
-                        String[] descParts = desc.split("\\s+");
-                        if (descParts.length == 2 && descParts[0].equals("semanal")) {
-                            double weeksDouble = period.multiplier * 4.333333333333333;
-                            int weeks = (int) Math.round(weeksDouble);
-                            BigDecimal weekly = base.divide(WEEKS_IN_MONTH, 10, RoundingMode.HALF_UP);
-                            BigDecimal weeklyRounded = roundMoney(weekly);
-                            gross = gross.add(weeklyRounded.multiply(BigDecimal.valueOf(weeks)));
-                        } else {
-                            BigDecimal raw = base.multiply(BigDecimal.valueOf(period.multiplier));
-                            gross = gross.add(roundMoney(raw));
-                        }
-                    } else {
-                        gross = gross.add(roundMoney(base));
-                    }
-                    // commissions: sum sales within period
-                    BigDecimal commissions = BigDecimal.ZERO;
-                    double commissionRate = ((wepayu.model.CommissionedEmployee) e).getCommissionRate();
-                    for (wepayu.model.SalesReceipt sr : ((wepayu.model.CommissionedEmployee) e).sales) {
-                        if (period == null || wepayu.util.DateUtils.isBetweenExclusiveEnd(sr.getDate(), startStr, endStr)) {
-                            BigDecimal amt = BigDecimal.valueOf(sr.getAmount());
-                            commissions = commissions.add(amt.multiply(BigDecimal.valueOf(commissionRate)));
-                        }
-                    }
-                    gross = gross.add(roundMoney(commissions));
-                } else if (e instanceof wepayu.model.HourlyEmployee) {
-                    // Hourly: compute hours in period
-                    BigDecimal total = BigDecimal.ZERO;
-                    if (period != null) {
-                        double normalHours = ((wepayu.model.HourlyEmployee) e).getHorasTrabalhadas(startStr, endStr, false);
-                        double extraHours = ((wepayu.model.HourlyEmployee) e).getHorasTrabalhadas(startStr, endStr, true);
-                        BigDecimal rate = BigDecimal.valueOf(((wepayu.model.HourlyEmployee) e).getHourlyRate());
-                        BigDecimal normal = BigDecimal.valueOf(normalHours).multiply(rate);
-                        BigDecimal extra = BigDecimal.valueOf(extraHours).multiply(rate).multiply(BigDecimal.valueOf(1.5d));
-                        total = total.add(normal).add(extra);
-                        total = roundMoney(total);
-                    } else {
-                        double calc = ((wepayu.model.HourlyEmployee) e).calculatePay();
-                        total = roundMoney(BigDecimal.valueOf(calc));
-                    }
-                    gross = gross.add(total);
-                }
+        // gross and deductions run as two passes so each phase is timed once per run, not per employee
+        List<Paycheck> checks;
+        long t2;
+        if (parallelism == 1 || jobs.size() < PARALLEL_THRESHOLD) {
+            for (PayJob job : jobs) job.computeGross();
+            t2 = System.nanoTime();
+            checks = new ArrayList<>(jobs.size());
+            for (PayJob job : jobs) checks.add(job.computeDeductions());
+        } else {
+            runInPool(() -> jobs.parallelStream().forEach(PayJob::computeGross));
+            t2 = System.nanoTime();
+            // ordered parallel stream: collect() keeps the encounter order, so output is deterministic
+            checks = inPool(() -> jobs.parallelStream()
+                    .map(PayJob::computeDeductions)
+                    .collect(Collectors.toCollection(ArrayList::new)));
+        }
+        long t3 = System.nanoTime();
+        PHASE_GROSS.record(t2 - t1);
+        PHASE_DEDUCTIONS.record(t3 - t2);
+        long scanned = 0;
+        for (PayJob job : jobs) scanned += job.records;
+        RECORDS.add(scanned);
+        RUN.record(t3 - t0);
+        if (event != null && event.shouldCommit()) {
+            event.date = date;
+            event.employees = employees;
+            event.paid = jobs.size();
+            event.recordsScanned = scanned;
+            event.parallelism = parallelism;
+            event.commit();
+        }
+        return checks;
+    }
+
+    // Payroll of every day in [inicio, fim) (epoch days) over one snapshot: each day that pays someone
+    // goes to the consumer, in date order, with the paychecks runPayroll gives for that day. A calendar
+    // of the groups' next pay dates replaces testing every group on every day; each employee's cards,
+    // daily sales and daily charges in the range are read once and walked by cursors as its periods
+    // move forward; type default
+    // groups are paid over the whole history, so their paychecks are computed once. Runs on the calling
+    // thread: the work per day is small once the histories are not rescanned.
+    public static void runPayrollRange(PayrollDatabase.Snapshot view, int inicio, int fim, ObjIntConsumer<List<Paycheck>> out) {
+        long t0 = System.nanoTime();
+        long asOf = view.getVersion();
+        PriorityQueue<GroupCursor> calendar = new PriorityQueue<>();
+        int order = 0;
+        for (Map.Entry<Object, PersistentMap<String, Employee>> group : view.getPayGroups().entrySet()) {
+            Collection<Employee> members = group.getValue().asMap().values();
+            if (members.isEmpty()) continue;
+            wepayu.util.CompiledSchedule schedule = group.getKey() instanceof wepayu.util.CompiledSchedule
+                    ? (wepayu.util.CompiledSchedule) group.getKey() : null;
+            GroupCursor g = new GroupCursor(order++, schedule, members, fim);
+            g.next = g.nextPayDay(inicio - 1);
+            if (g.next < fim) calendar.add(g);
+        }
+        int days = 0;
+        long paid = 0, scanned = 0;
+        while (!calendar.isEmpty()) {
+            int day = calendar.peek().next;
+            List<Paycheck> checks = new ArrayList<>();
+            // groups paying on the day come out in group order, the order runPayroll visits them
+            while (!calendar.isEmpty() && calendar.peek().next == day) {
+                GroupCursor g = calendar.poll();
+                scanned += g.pay(day, asOf, checks);
+                g.next = g.nextPayDay(day);
+                if (g.next < fim) calendar.add(g);
+            }
+            days++;
+            paid += checks.size();
+            out.accept(checks, day);
+        }
+        PAID.add(paid);
+        RECORDS.add(scanned);
+        RANGE_DAYS.add(days);
+        RANGE.recordSince(t0);
+    }
+
+    // A pay group in the range run, ordered by its next pay day and then by group order
+    private static final class GroupCursor implements Comparable<GroupCursor> {
+        final int order;
+        // null: type default pay day, shared by every member (see runPayroll)
+        final wepayu.util.CompiledSchedule schedule;
+        final List<MemberCursor> members = new ArrayList<>();
+        // end of the range (exclusive)
+        final int fim;
+        int next;
+
+        GroupCursor(int order, wepayu.util.CompiledSchedule schedule, Collection<Employee> employees, int fim) {
+            this.order = order;
+            this.schedule = schedule;
+            this.fim = fim;
+            for (Employee e : employees) members.add(new MemberCursor(e, fim));
+        }
+
+        // First pay day after the given day, or Integer.MAX_VALUE if none before the end of the range
+        int nextPayDay(int after) {
+            if (schedule != null) return schedule.nextPayDate(after);
+            Employee first = members.get(0).employee;
+            for (int day = after + 1; day < fim; day++) {
+                if (first.isPayDate(java.time.LocalDate.ofEpochDay(day))) return day;
+            }
+            return Integer.MAX_VALUE;
+        }
 
-                // deductions: union service charges in period + prorated monthly fee
-                if (e.getUnionMembership() != null) {
-                    if (period != null) {
-                        double monthlyFee = e.getUnionMembership().getMonthlyFee();
-                        String desc = e.getPaymentScheduleDescription() == null ? "" : e.getPaymentScheduleDescription().toLowerCase();
-                        String[] descParts = desc.split("\\s+");
-                        if (descParts.length == 2 && descParts[0].equals("semanal")) {
-                            double weeksDouble = period.multiplier * 4.333333333333333;
-                            int weeks = (int) Math.round(weeksDouble);
-                            BigDecimal weeklyFee = BigDecimal.valueOf(monthlyFee).divide(WEEKS_IN_MONTH, 10, RoundingMode.HALF_UP);
-                            BigDecimal weeklyFeeRounded = roundMoney(weeklyFee);
-                            deductions = deductions.add(weeklyFeeRounded.multiply(BigDecimal.valueOf(weeks)));
-                        } else {
-                            BigDecimal rawFee = BigDecimal.valueOf(monthlyFee).multiply(BigDecimal.valueOf(period.multiplier));
-                            deductions = deductions.add(roundMoney(rawFee));
-                        }
-                        for (wepayu.model.ServiceCharge sc : e.getUnionMembership().getServiceCharges()) {
-                            if (wepayu.util.DateUtils.isBetweenExclusiveEnd(sc.getDate(), startStr, endStr)) {
-                                deductions = deductions.add(BigDecimal.valueOf(sc.getAmount()));
-                            }
-                        }
-                    } else {
-                        deductions = deductions.add(BigDecimal.valueOf(e.getUnionMembership().getTotalCharges()));
+        // Adds the paychecks of the day to the list; returns the history records scanned
+        int pay(int day, long asOf, List<Paycheck> checks) {
+            int scanned = 0;
+            if (schedule == null) {
+                for (MemberCursor m : members) {
+                    if (m.fixed == null) {
+                        PayJob job = new PayJob(m.employee, null, null, asOf);
+                        job.computeGross();
+                        m.fixed = job.computeDeductions();
+                        scanned += job.records;
                     }
+                    checks.add(m.fixed);
                 }
+                return scanned;
+            }
+            wepayu.util.ScheduleUtils.PayPeriod period = schedule.periodFor(day);
+            int startDay = wepayu.util.DateUtils.toEpochDay(period.start);
+            int endDay = wepayu.util.DateUtils.toEpochDay(period.end);
+            for (MemberCursor m : members) {
+                PayJob job = new PayJob(m.employee, schedule, period, asOf);
+                m.fill(job, startDay, endDay);
+                job.computeGross();
+                checks.add(job.computeDeductions());
+                scanned += job.records;
+            }
+            return scanned;
+        }
+
+        @Override
+        public int compareTo(GroupCursor o) {
+            if (next != o.next) return Integer.compare(next, o.next);
+            return Integer.compare(order, o.order);
+        }
+    }
+
+    // One employee of a group in the range run
+    private static final class MemberCursor {
+        final Employee employee;
+        // read at the first period, up to the end of the range: hourly cards in date order (with the
+        // bounds of the last period), daily sales and daily service charges
+        List<TimeCard> cards;
+        int lo, hi;
+        AppendOnlyList.DailySums sales, charges;
+        // type default group: the paycheck, the same on every pay day of the range
+        Paycheck fixed;
+        // end of the range (exclusive)
+        final int until;
+
+        MemberCursor(Employee employee, int until) {
+            this.employee = employee;
+            this.until = until;
+        }
 
-                Paycheck pc = new Paycheck(e.getId(), roundMoney(gross).doubleValue(), roundMoney(deductions).doubleValue());
-                checks.add(pc);
+        // Fills the job's period totals from the cursors; periods come in order, so no bound moves
+        // back. A period ends the day after its pay day, so nothing past the range is ever needed
+        void fill(PayJob job, int inicio, int fim) {
+            Employee e = employee;
+            if (e instanceof HourlyEmployee) {
+                if (cards == null) cards = ((HourlyEmployee) e).getTimeCards(inicio, until, job.asOf);
+                int n = cards.size();
+                while (lo < n && cards.get(lo).getEpochDay() < inicio) lo++;
+                if (hi < lo) hi = lo;
+                while (hi < n && cards.get(hi).getEpochDay() < fim) hi++;
+                // summed in the order getHorasNoPeriodo uses, which keeps the doubles identical
+                job.hours = HourlyEmployee.HoursSummary.of(cards.subList(lo, hi));
+            } else if (e instanceof CommissionedEmployee) {
+                if (sales == null) sales = ((CommissionedEmployee) e).getDailySales(inicio, until, job.asOf);
+                job.sold = sales.next(inicio, fim);
             }
+            UnionMembership union = e.getUnionMembership();
+            if (union != null) {
+                if (charges == null) charges = union.getDailyCharges(inicio, until, job.asOf);
+                job.charged = charges.next(inicio, fim);
+            }
+            job.prefetched = true;
         }
-        return checks;
     }
 
-    private static void writeEmployeeSnapshot(String date) {
-        Map<String, Employee> all = PayrollDatabase.getAllEmployees();
-        File dir = new File("debug-snapshots");
-        if (!dir.exists()) dir.mkdirs();
-        String fname = "debug-snapshot-" + date.replace('/', '-') + "-" + System.currentTimeMillis() + ".txt";
-        File out = new File(dir, fname);
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(out))) {
-            w.write("Snapshot for date: " + date);
-            w.newLine();
-            for (Employee e : all.values()) {
-                w.write(e.getId() + " | " + e.getName() + " | " + (e.getPaymentScheduleDescription() == null ? "" : e.getPaymentScheduleDescription()));
-                w.newLine();
+    private static <T> T inPool(java.util.concurrent.Callable<T> task) {
+        try {
+            return pool().submit(task).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    private static void runInPool(Runnable task) {
+        inPool(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // One employee paid on the run date together with its group's schedule and period
+    private static class PayJob {
+        final Employee employee;
+        final wepayu.util.CompiledSchedule schedule;
+        final wepayu.util.ScheduleUtils.PayPeriod period;
+        // history version the run is pinned to
+        final long asOf;
+        // period totals filled in by the caller (range run) instead of being read from the histories
+        boolean prefetched;
+        HourlyEmployee.HoursSummary hours;
+        long sold, charged;
+        long gross;
+        // history records scanned for this employee (time cards; sales and charges come from running totals)
+        int records;
+
+        PayJob(Employee employee, wepayu.util.CompiledSchedule schedule, wepayu.util.ScheduleUtils.PayPeriod period, long asOf) {
+            this.employee = employee;
+            this.schedule = schedule;
+            this.period = period;
+            this.asOf = asOf;
+        }
+
+        void computeGross() {
+            gross = grossPay(this);
+        }
+
+        Paycheck computeDeductions() {
+            return new Paycheck(employee.getId(), gross, deductions(this));
+        }
+    }
+
+    // Gross pay of one employee for the job's period; a null period (type default schedule) uses the
+    // whole history. All amounts are cents; rounding is HALF_UP via Money
+    private static long grossPay(PayJob job) {
+        Employee e = job.employee;
+        wepayu.util.ScheduleUtils.PayPeriod period = job.period;
+        long gross = 0;
+        int startDay = 0, endDay = 0;
+        if (period != null) {
+            startDay = wepayu.util.DateUtils.toEpochDay(period.start);
+            endDay = wepayu.util.DateUtils.toEpochDay(period.end);
+        }
+
+        // Salaried (non-commissioned)
+        if (e instanceof wepayu.model.SalariedEmployee && !(e instanceof wepayu.model.CommissionedEmployee)) {
+            long monthly = ((wepayu.model.SalariedEmployee) e).getMonthlySalary();
+            gross += period != null ? prorate(monthly, job.schedule, period) : monthly;
+        } else if (e instanceof wepayu.model.CommissionedEmployee) {
+            // Commissioned: base monthly prorated + commissions
+            long base = ((wepayu.model.CommissionedEmployee) e).getMonthlySalary();
+            gross += period != null ? prorate(base, job.schedule, period) : base;
+            // commissions: sales within the period from the running totals, then the rate once
+            wepayu.model.CommissionedEmployee c = (wepayu.model.CommissionedEmployee) e;
+            long sold = job.prefetched ? job.sold
+                    : period != null ? c.getSalesTotal(startDay, endDay, job.asOf) : c.getSalesTotal(job.asOf);
+            gross += Money.times(sold, c.getCommissionRate());
+        } else if (e instanceof wepayu.model.HourlyEmployee) {
+            // Hourly: compute hours in period
+            if (period != null) {
+                HourlyEmployee.HoursSummary hours = job.prefetched ? job.hours
+                        : ((wepayu.model.HourlyEmployee) e).getHorasNoPeriodo(startDay, endDay, job.asOf);
+                job.records += hours.cards;
+                long rate = ((wepayu.model.HourlyEmployee) e).getHourlyRate();
+                gross += Money.times(rate, hours.normal + hours.extra * 1.5);
+            } else {
+                gross += ((wepayu.model.HourlyEmployee) e).calculatePay(job.asOf);
+                job.records += ((wepayu.model.HourlyEmployee) e).getTimeCardCount();
             }
-        } catch (IOException ex) {
-            // ignore
         }
+        return gross;
+    }
+
+    // Deductions of one employee for the job's period: union service charges in the period plus the
+    // prorated monthly fee (the whole history and one fee without a period)
+    private static long deductions(PayJob job) {
+        UnionMembership union = job.employee.getUnionMembership();
+        if (union == null) return 0;
+        wepayu.util.ScheduleUtils.PayPeriod period = job.period;
+        if (period == null) return union.getTotalCharges(job.asOf);
+        if (job.prefetched) return prorate(union.getMonthlyFee(), job.schedule, period) + job.charged;
+        int startDay = wepayu.util.DateUtils.toEpochDay(period.start);
+        int endDay = wepayu.util.DateUtils.toEpochDay(period.end);
+        return prorate(union.getMonthlyFee(), job.schedule, period) + union.getChargesTotal(startDay, endDay, job.asOf);
+    }
+
+    // Share of a monthly amount (cents) for the period: weekly schedules pay the rounded weekly
+    // value once per week, the others apply the period multiplier
+    private static long prorate(long monthly, wepayu.util.CompiledSchedule schedule, wepayu.util.ScheduleUtils.PayPeriod period) {
+        if (schedule.isWeekly()) {
+            long weeks = Math.round(period.multiplier * WEEKS_IN_MONTH);
+            return Money.divide(monthly, WEEKS_IN_MONTH) * weeks;
+        }
+        return Money.times(monthly, period.multiplier);
+    }
+
+    // Restorable binary snapshot (same format as the persistence checkpoints), not synced to disk.
+    // Only references are captured here; the file is written by the diagnostics thread.
+    private static void writeEmployeeSnapshot(PayrollDatabase.Snapshot view, String date) {
+        SnapshotStore.Capture state = SnapshotStore.capture(Persistence.lastSequence(), view);
+        String fname = "debug-snapshot-" + date.replace('/', '-') + "-" + System.currentTimeMillis() + ".bin";
+        Diagnostics.submit(fname, file -> SnapshotStore.write(file, state, false));
     }
 }
@@ -0,0 +1,491 @@
+package wepayu.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import wepayu.model.Employee;
+
+/**
+ * Durable state for PayrollDatabase: every successful mutating facade call is journaled (and the
+ * call only returns once its entry is on disk), and every {@code checkpointEvery} entries the whole
+ * database is written to a snapshot and the journal restarts. Opening loads the latest snapshot and
+ * replays only the journal entries written after it. Off unless enabled (wepayu.persistence=true or
+ * setEnabled before the first call); the files go to wepayu.data.dir.
+ *
+ * Journaling is write-ahead as far as other calls can tell: a mutating call runs between
+ * {@link #begin} and {@link #end}, which hold the apply lock exclusively while the call applies its
+ * change and appends its entry, so calls are journaled in the order they were applied. A call whose
+ * entry cannot be appended (the journal failed, or an argument cannot be encoded) is taken back
+ * through the undo history and fails. Postings (cards, sales, service charges) only touch the history
+ * they are posted to, so they run between {@link #beginPosting} and {@link #end}, sharing the apply
+ * lock with each other: {@link #post} applies one under the stripe of its employee, so the postings
+ * of one history keep the journal's order, and only its append and undo entry go under this class'
+ * lock. Only the wait for the disk happens outside the locks; if that write fails the call fails but
+ * stays applied in memory, and the journal takes no further entries.
+ *
+ * The undo/redo history is not part of the snapshot, so every checkpoint discards it: after the
+ * automatic one every {@code checkpointEvery} entries, after encerrarSistema (which checkpoints on
+ * close) and after loading a journal tail, an undo or redo that would reach before that point fails
+ * (CommandManager.discard). A bulk import never triggers the automatic checkpoint itself, so it stays
+ * undoable until the next journaled call.
+ *
+ * Properties: wepayu.persistence (false), wepayu.data.dir (data), wepayu.journal.sync (fsync|write),
+ * wepayu.journal.checkpointEvery (10000).
+ */
+public class Persistence {
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+
+    // Re-executes a journaled call (implemented by the facade)
+    public interface Replayer {
+        void replay(String op, Object[] args) throws Exception;
+    }
+
+    private static volatile boolean enabled = "true".equalsIgnoreCase(System.getProperty("wepayu.persistence"));
+    private static Path dir = Paths.get(System.getProperty("wepayu.data.dir", "data"));
+    private static boolean fsync = !"write".equalsIgnoreCase(System.getProperty("wepayu.journal.sync", "fsync"));
+    private static int checkpointEvery = Math.max(1, Integer.getInteger("wepayu.journal.checkpointEvery", 10_000));
+
+    private static Journal journal;
+    private static boolean open;
+    private static boolean replaying;
+    private static long nextSeq = 1;
+    private static long sinceCheckpoint;
+    // held by a mutating call while it applies and journals its change (shared by postings) and by the
+    // checkpoint; taken before the stripes and this class' lock
+    private static final ReentrantReadWriteLock APPLY = new ReentrantReadWriteLock();
+    // postings to the same employee take the same stripe
+    private static final Object[] STRIPES = new Object[64];
+    static {
+        for (int i = 0; i < STRIPES.length; i++) STRIPES[i] = new Object();
+    }
+    // the mutating call running on this thread (one object per thread, reused)
+    private static final ThreadLocal<Mutation> CURRENT = new ThreadLocal<>();
+
+    // What a mutating call did: the id sequence and undo history when it started, what it journaled
+    private static final class Mutation {
+        // begin calls not yet ended on this thread
+        int depth;
+        // a posting: holds the apply lock shared and has no undo mark to revert to
+        boolean shared;
+        boolean marked;
+        long idSequence;
+        CommandManager.Mark history;
+        boolean failed;
+        Journal journal;
+        long lastSeq;
+        int entries;
+        // leave the automatic checkpoint (which discards undo) to the next call
+        boolean deferCheckpoint;
+
+        void reset() {
+            marked = false;
+            history = null;
+            failed = false;
+            journal = null;
+            entries = 0;
+            deferCheckpoint = false;
+        }
+    }
+
+    public static synchronized void setEnabled(boolean on) {
+        if (open) throw new IllegalStateException("Persistencia ja esta aberta.");
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static synchronized void setDataDir(Path dataDir) {
+        if (open) throw new IllegalStateException("Persistencia ja esta aberta.");
+        dir = dataDir;
+    }
+
+    public static synchronized Path getDataDir() {
+        return dir;
+    }
+
+    public static synchronized boolean isReplaying() {
+        return replaying;
+    }
+
+    // Sequence of the last journaled call (0 before anything was journaled)
+    public static synchronized long lastSequence() {
+        return nextSeq - 1;
+    }
+
+    // Loads the durable state (snapshot + journal tail) unless it is already loaded
+    public static synchronized void ensureOpen(Replayer replayer) {
+        if (!enabled || open || replaying) return;
+        replaying = true;
+        // the replayed calls ride on this one: their begin and end take no lock
+        Mutation loader = CURRENT.get();
+        if (loader == null) CURRENT.set(loader = new Mutation());
+        loader.depth++;
+        try {
+            Files.createDirectories(dir);
+            PayrollDatabase.clear();
+            ScheduleRegistry.reset();
+            CommandManager.clear();
+            long lastSeq = SnapshotStore.load(dir.resolve(SNAPSHOT));
+            long replayed = 0;
+            List<Path> files = journalFiles();
+            for (int i = 0; i < files.size(); i++) {
+                Path f = files.get(i);
+                Journal.ReadResult r = Journal.read(f);
+                if (r.torn) {
+                    // only the last file can end in a torn write; anything else means lost entries
+                    if (i != files.size() - 1) throw new IOException("Journal corrompido: " + f);
+                    try (FileChannel ch = FileChannel.open(f, StandardOpenOption.WRITE)) {
+                        ch.truncate(r.validLength);
+                    }
+                }
+                for (Journal.Entry e : r.entries) {
+                    if (e.seq <= lastSeq) continue;
+                    Employee.setNextSequence(e.idSequence);
+                    try {
+                        replayer.replay(e.op, e.args);
+                    } catch (Exception ex) {
+                        throw new IllegalStateException("Falha ao reaplicar o journal na entrada " + e.seq + " (" + e.op + ")", ex);
+                    }
+                    lastSeq = e.seq;
+                    replayed++;
+                }
+            }
+            // a journal that ends inside a transaction was torn before its commit: it never happened
+            Transaction.abandon();
+            nextSeq = lastSeq + 1;
+            open = true;
+            if (replayed > 0) {
+                checkpoint();
+            } else {
+                deleteJournals();
+                journal = new Journal(journalFile(nextSeq), fsync);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Falha ao abrir os dados em " + dir, ex);
+        } finally {
+            loader.depth--;
+            replaying = false;
+        }
+    }
+
+    // Starts a mutating facade call (see the class comment); every begin is paired with an end in a
+    // finally. Calls made inside another one (or by the replay) ride on the outer call
+    public static void begin() {
+        begin(false);
+    }
+
+    // Starts a posting, which goes through post; paired with end like begin
+    public static void beginPosting() {
+        begin(true);
+    }
+
+    private static void begin(boolean shared) {
+        if (!enabled) return;
+        Mutation m = CURRENT.get();
+        if (m == null) CURRENT.set(m = new Mutation());
+        if (m.depth++ > 0) return;
+        if (shared) APPLY.readLock().lock();
+        else APPLY.writeLock().lock();
+        m.reset();
+        m.shared = shared;
+    }
+
+    // Ends the call begun on this thread. On success it waits until what the call journaled is
+    // durable; a call that failed because its entry could not be appended is taken back first
+    public static void end(RuntimeException failure) {
+        Mutation m = CURRENT.get();
+        if (m == null || m.depth == 0 || --m.depth > 0) return;
+        try {
+            if (failure != null && m.failed && m.history != null && !CommandManager.revert(m.history)) {
+                throw new IllegalStateException("Falha ao gravar o journal; a operacao nao pode ser desfeita", failure);
+            }
+        } finally {
+            if (m.shared) APPLY.readLock().unlock();
+            else APPLY.writeLock().unlock();
+        }
+        if (failure == null && m.journal != null) awaitDurable(m.journal, m.lastSeq, m.entries, m.deferCheckpoint);
+    }
+
+    // Marks the start of a facade call, once its state is loaded. A mutating call remembers the id
+    // sequence it starts from and where the undo history stands, and fails here if the journal cannot
+    // take its entry; other calls have nothing to remember
+    public static void markCall() {
+        Mutation m = CURRENT.get();
+        // no begin on this thread: not a mutating call
+        if (m == null || m.depth == 0) return;
+        // this thread holds the apply lock
+        if (m.marked || replaying || !open) return;
+        m.marked = true;
+        m.idSequence = Employee.getNextSequence();
+        // other postings push to the history meanwhile; a posting takes itself back in post
+        m.history = m.shared ? null : CommandManager.mark();
+        try {
+            journal.check();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Falha ao gravar o journal", ex);
+        }
+    }
+
+    // Journals a successful mutating call; end waits until it is durable. Inside a transaction
+    // the call is held by it and written by recordTransaction at commit
+    public static synchronized void record(String op, Object... args) {
+        if (!enabled || !open || replaying) return;
+        Mutation m = running();
+        Transaction tx = Transaction.current();
+        if (tx != null) {
+            tx.journal(m.idSequence, op, args);
+            return;
+        }
+        append(m, Collections.singletonList(new Journal.Entry(nextSeq, m.idSequence, op, args)));
+    }
+
+    // Applies a posting and records it for undo, journaled like record (see the class comment). A
+    // posting that cannot be journaled is taken back and fails
+    public static void post(String employeeId, Command posting, String op, Object... args) {
+        if (!enabled) {
+            posting.execute();
+            CommandManager.record(posting);
+            return;
+        }
+        synchronized (STRIPES[Math.floorMod(employeeId.hashCode(), STRIPES.length)]) {
+            posting.execute();
+            synchronized (Persistence.class) {
+                if (open && !replaying) {
+                    Mutation m = running();
+                    try {
+                        append(m, Collections.singletonList(new Journal.Entry(nextSeq, m.idSequence, op, args)));
+                    } catch (RuntimeException ex) {
+                        posting.undo();
+                        throw ex;
+                    }
+                }
+                CommandManager.record(posting);
+            }
+        }
+    }
+
+    // Journals a committed transaction: its calls, framed by iniciarTransacao and confirmarTransacao
+    // entries so that a journal torn inside the group replays as a transaction never committed
+    public static void recordTransaction(Transaction tx) {
+        recordGroup(tx.journaled());
+    }
+
+    // Makes a bulk import, already applied, durable: journaled as a group like a transaction, whatever
+    // its size, through the returned Group (null if nothing is journaled). The checkpoint it may bring
+    // the journal to waits for the next journaled call, so the import can still be undone right after it
+    public static synchronized Group recordImport() {
+        if (!enabled || !open || replaying) return null;
+        Mutation m = running();
+        m.deferCheckpoint = true;
+        return new Group(m);
+    }
+
+    // A group being journaled by the call that holds the apply lock exclusively: its calls are appended
+    // in batches of GROUP_BATCH as they come, so neither the calls nor their frames pile up for a big
+    // import. The first batch opens the group (iniciarTransacao); commit closes it (confirmarTransacao)
+    // and abort, or a batch that cannot be appended, cancels it (cancelarTransacao) so that the entries
+    // after it do not replay inside the group
+    public static final class Group {
+        private static final int GROUP_BATCH = 1024;
+
+        private final Mutation m;
+        private final List<Transaction.Call> batch = new ArrayList<>();
+        private boolean started;
+        private boolean closed;
+
+        private Group(Mutation m) {
+            this.m = m;
+        }
+
+        public void add(String op, Object... args) {
+            batch.add(new Transaction.Call(Employee.getNextSequence(), op, args));
+            if (batch.size() == GROUP_BATCH) flush(null);
+        }
+
+        public void commit() {
+            flush("confirmarTransacao");
+            closed = true;
+        }
+
+        // Cancels the group if it is still open (no-op after commit or a failed batch); the call must
+        // then fail, and end takes the import back
+        public void abort() {
+            if (closed) return;
+            closed = true;
+            m.failed = true;
+            batch.clear();
+            if (started) cancel();
+        }
+
+        private void flush(String closing) {
+            synchronized (Persistence.class) {
+                List<Journal.Entry> entries = new ArrayList<>(batch.size() + 2);
+                long seq = nextSeq;
+                if (!started) entries.add(new Journal.Entry(seq++, m.idSequence, "iniciarTransacao", new Object[0]));
+                for (Transaction.Call c : batch) entries.add(new Journal.Entry(seq++, c.idSequence, c.op, c.args));
+                if (closing != null) entries.add(new Journal.Entry(seq, m.idSequence, closing, new Object[0]));
+                batch.clear();
+                try {
+                    append(m, entries);
+                } catch (RuntimeException ex) {
+                    closed = true;
+                    if (started) cancel();
+                    throw ex;
+                }
+                started = true;
+            }
+        }
+
+        // Best effort: a journal that failed takes nothing more, and its tail is an unfinished group
+        private void cancel() {
+            synchronized (Persistence.class) {
+                try {
+                    journal.appendAll(Collections.singletonList(new Journal.Entry(nextSeq, m.idSequence, "cancelarTransacao", new Object[0])));
+                    nextSeq++;
+                } catch (IOException | RuntimeException ex) {
+                    // the call fails anyway (m.failed) and is taken back
+                }
+            }
+        }
+    }
+
+    private static synchronized void recordGroup(List<Transaction.Call> calls) {
+        if (!enabled || !open || replaying) return;
+        Mutation m = running();
+        List<Journal.Entry> entries = new ArrayList<>(calls.size() + 2);
+        long seq = nextSeq;
+        long idSequence = calls.isEmpty() ? m.idSequence : calls.get(0).idSequence;
+        entries.add(new Journal.Entry(seq++, idSequence, "iniciarTransacao", new Object[0]));
+        for (Transaction.Call c : calls) entries.add(new Journal.Entry(seq++, c.idSequence, c.op, c.args));
+        entries.add(new Journal.Entry(seq, m.idSequence, "confirmarTransacao", new Object[0]));
+        append(m, entries);
+    }
+
+    // The mutating call running on this thread, marked by markCall
+    private static Mutation running() {
+        Mutation m = CURRENT.get();
+        if (m == null || !m.marked) throw new IllegalStateException("Chamada journaled fora de Persistence.begin");
+        return m;
+    }
+
+    // Appends the entries of the running mutating call, all or none; the sequence numbers are only
+    // taken once they are in
+    private static void append(Mutation m, List<Journal.Entry> entries) {
+        try {
+            journal.appendAll(entries);
+        } catch (IOException ex) {
+            m.failed = true;
+            throw new UncheckedIOException("Falha ao gravar o journal", ex);
+        } catch (RuntimeException ex) {
+            m.failed = true;
+            throw ex;
+        }
+        nextSeq += entries.size();
+        m.journal = journal;
+        m.lastSeq = nextSeq - 1;
+        m.entries += entries.size();
+    }
+
+    private static void awaitDurable(Journal target, long seq, int entries, boolean deferCheckpoint) {
+        // wait outside the lock so concurrent callers share the same sync (group commit)
+        try {
+            target.awaitDurable(seq);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Falha ao gravar o journal", ex);
+        }
+        APPLY.writeLock().lock();
+        try {
+            synchronized (Persistence.class) {
+                sinceCheckpoint += entries;
+                if (open && !deferCheckpoint && sinceCheckpoint >= checkpointEvery) checkpoint();
+            }
+        } finally {
+            APPLY.writeLock().unlock();
+        }
+    }
+
+    // Writes a snapshot of the current state and restarts the journal after it. No call may be applying
+    // a change meanwhile: callers hold the apply lock exclusively, or are loading
+    public static synchronized void checkpoint() {
+        if (!open) return;
+        long lastSeq = nextSeq - 1;
+        try {
+            if (journal != null) journal.close();
+            journal = null;
+            SnapshotStore.write(dir.resolve(SNAPSHOT), lastSeq);
+            deleteJournals();
+            journal = new Journal(journalFile(nextSeq), fsync);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Falha no checkpoint em " + dir, ex);
+        }
+        sinceCheckpoint = 0;
+        // commands undone after this point would not be replayable from the snapshot
+        CommandManager.discard();
+    }
+
+    // Checkpoints and releases the files; the next ensureOpen loads the state again
+    public static synchronized void close() {
+        if (!open) return;
+        checkpoint();
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Falha ao fechar o journal", ex);
+        } finally {
+            journal = null;
+            open = false;
+        }
+    }
+
+    // Releases the files without a checkpoint, as if the process stopped here: the next ensureOpen
+    // loads the snapshot and replays the journal after it (the recovery acceptance test, us16)
+    public static void release() {
+        APPLY.writeLock().lock();
+        try {
+            synchronized (Persistence.class) {
+                if (!open) return;
+                try {
+                    journal.close();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Falha ao fechar o journal", ex);
+                } finally {
+                    journal = null;
+                    open = false;
+                }
+            }
+        } finally {
+            APPLY.writeLock().unlock();
+        }
+    }
+
+    private static Path journalFile(long firstSeq) {
+        return dir.resolve(String.format("%s%020d%s", JOURNAL_PREFIX, firstSeq, JOURNAL_SUFFIX));
+    }
+
+    // Journal files in sequence order (the zero-padded first sequence sorts by name)
+    private static List<Path> journalFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path p : ds) files.add(p);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static void deleteJournals() throws IOException {
+        for (Path p : journalFiles()) Files.deleteIfExists(p);
+    }
+}
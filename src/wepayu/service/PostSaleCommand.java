@@ -0,0 +1,31 @@
+package wepayu.service;
+
+import java.util.Set;
+import wepayu.model.CommissionedEmployee;
+import wepayu.model.SalesReceipt;
+
+// Posting of a sales receipt; undo retracts that same receipt from the history
+public class PostSaleCommand implements Command {
+    private final CommissionedEmployee employee;
+    private final SalesReceipt receipt;
+
+    public PostSaleCommand(CommissionedEmployee employee, SalesReceipt receipt) {
+        this.employee = employee;
+        this.receipt = receipt;
+    }
+
+    @Override
+    public void execute() {
+        employee.addSalesReceipt(receipt);
+    }
+
+    @Override
+    public void undo() {
+        employee.retractSalesReceipt(receipt);
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return receipt.getEpochDay() < cutoff;
+    }
+}
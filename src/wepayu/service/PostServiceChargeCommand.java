@@ -0,0 +1,31 @@
+package wepayu.service;
+
+import java.util.Set;
+import wepayu.model.ServiceCharge;
+import wepayu.model.UnionMembership;
+
+// Posting of a union service charge; undo retracts that same charge from the history
+public class PostServiceChargeCommand implements Command {
+    private final UnionMembership membership;
+    private final ServiceCharge charge;
+
+    public PostServiceChargeCommand(UnionMembership membership, ServiceCharge charge) {
+        this.membership = membership;
+        this.charge = charge;
+    }
+
+    @Override
+    public void execute() {
+        membership.addServiceCharge(charge);
+    }
+
+    @Override
+    public void undo() {
+        membership.retractServiceCharge(charge);
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return charge.getEpochDay() < cutoff;
+    }
+}
@@ -0,0 +1,31 @@
+package wepayu.service;
+
+import java.util.Set;
+import wepayu.model.HourlyEmployee;
+import wepayu.model.TimeCard;
+
+// Posting of a time card; undo retracts that same card from the history
+public class PostTimeCardCommand implements Command {
+    private final HourlyEmployee employee;
+    private final TimeCard card;
+
+    public PostTimeCardCommand(HourlyEmployee employee, TimeCard card) {
+        this.employee = employee;
+        this.card = card;
+    }
+
+    @Override
+    public void execute() {
+        employee.addTimeCard(card);
+    }
+
+    @Override
+    public void undo() {
+        employee.retractTimeCard(card);
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return card.getEpochDay() < cutoff;
+    }
+}
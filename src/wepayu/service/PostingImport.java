@@ -0,0 +1,303 @@
+package wepayu.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import wepayu.metrics.Counter;
+import wepayu.metrics.Metrics;
+import wepayu.model.CommissionedEmployee;
+import wepayu.model.Employee;
+import wepayu.model.HourlyEmployee;
+import wepayu.model.SalesReceipt;
+import wepayu.model.ServiceCharge;
+import wepayu.model.TimeCard;
+import wepayu.model.UnionMembership;
+import wepayu.util.Money;
+
+/**
+ * Bulk posting of time cards, sales and service charges from a text file, one record per line:
+ * <pre>
+ *   cartao;&lt;id do empregado&gt;;&lt;data&gt;;&lt;horas&gt;
+ *   venda;&lt;id do empregado&gt;;&lt;data&gt;;&lt;valor&gt;
+ *   taxa;&lt;id de sindicato&gt;;&lt;data&gt;;&lt;valor&gt;
+ * </pre>
+ * (';' separates the fields because numbers use a decimal comma; blank lines and lines starting with
+ * '#' are skipped.)
+ *
+ * The file is streamed in chunks of lines; chunks are parsed, validated against one snapshot of the
+ * directory and grouped by history on the pool while the next ones are read, and merged in file order.
+ * Validation is PostingValidation, which throws nothing, so a file full of bad lines costs no
+ * exceptions. Valid records are then appended group by group, each group in one operation, as a
+ * single undo entry (ImportPostingsCommand), and streamed to the journal in batches (Persistence.Group);
+ * invalid lines are reported with their number and the Rejection the matching lanca* call would have
+ * failed with, and do not stop the import.
+ *
+ * Properties: wepayu.import.parallelism (available processors), wepayu.import.chunkLines (8192).
+ */
+public class PostingImport {
+    private static final Counter LINES = Metrics.counter("import.lines");
+    private static final Counter ACCEPTED = Metrics.counter("import.records.accepted");
+    private static final Counter REJECTED = Metrics.counter("import.records.rejected");
+
+    private static int parallelism = Math.max(1, Integer.getInteger("wepayu.import.parallelism", Runtime.getRuntime().availableProcessors()));
+    private static int chunkLines = Math.max(1, Integer.getInteger("wepayu.import.chunkLines", 8192));
+    private static ForkJoinPool pool;
+
+    public static synchronized void setParallelism(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("parallelism must be >= 1");
+        if (threads == parallelism) return;
+        parallelism = threads;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    // A line that was not imported
+    public static final class LineError {
+        public final long line;
+        public final Rejection reason;
+
+        LineError(long line, Rejection reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "linha " + line + ": " + reason.getMessage();
+        }
+    }
+
+    public static final class Report {
+        // records read (skipped lines not counted)
+        public final long records;
+        public final long accepted;
+        // in line order
+        public final List<LineError> errors;
+
+        Report(long records, long accepted, List<LineError> errors) {
+            this.records = records;
+            this.accepted = accepted;
+            this.errors = errors;
+        }
+
+        // Summary followed by the errors, on one line (EasyAccept compares single-line results)
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Lancamentos importados: ").append(accepted).append(". Linhas com erro: ").append(errors.size()).append('.');
+            for (LineError e : errors) sb.append(' ').append(e);
+            return sb.toString();
+        }
+    }
+
+    // One chunk of the file: its lines in, its groups and errors out
+    private static final class Chunk {
+        final long firstLine;
+        final String[] lines;
+        final int count;
+        final Map<HourlyEmployee, List<TimeCard>> cards = new LinkedHashMap<>();
+        final Map<CommissionedEmployee, List<SalesReceipt>> sales = new LinkedHashMap<>();
+        final Map<UnionMembership, List<ServiceCharge>> charges = new LinkedHashMap<>();
+        final List<LineError> errors = new ArrayList<>();
+        long records;
+        long accepted;
+
+        Chunk(long firstLine, String[] lines, int count) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+            this.count = count;
+        }
+    }
+
+    // Imports the file; an unreadable file fails before anything is posted
+    public static Report run(Path file) {
+        PayrollDatabase.Snapshot view = PayrollDatabase.snapshot();
+        Map<HourlyEmployee, List<TimeCard>> cards = new LinkedHashMap<>();
+        Map<CommissionedEmployee, List<SalesReceipt>> sales = new LinkedHashMap<>();
+        Map<UnionMembership, List<ServiceCharge>> charges = new LinkedHashMap<>();
+        List<LineError> errors = new ArrayList<>();
+        long records = 0, accepted = 0;
+        int threads = parallelism;
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        List<Chunk> done = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            long lineNo = 0;
+            while (true) {
+                String[] lines = new String[chunkLines];
+                int n = 0;
+                String line;
+                while (n < lines.length && (line = in.readLine()) != null) lines[n++] = line;
+                if (n == 0) break;
+                Chunk chunk = new Chunk(lineNo + 1, lines, n);
+                lineNo += n;
+                if (threads == 1) {
+                    parse(chunk, view);
+                    done.add(chunk);
+                } else {
+                    // at most two chunks per thread read ahead: the raw lines held stay bounded on any file size
+                    if (inFlight.size() == 2 * threads) done.add(inFlight.removeFirst().get());
+                    inFlight.addLast(pool().submit(() -> parse(chunk, view)));
+                }
+                for (Chunk c : done) {
+                    records += c.records;
+                    accepted += c.accepted;
+                    merge(c, cards, sales, charges, errors);
+                }
+                done.clear();
+                if (n < lines.length) break;
+            }
+            while (!inFlight.isEmpty()) {
+                Chunk c = inFlight.removeFirst().get();
+                records += c.records;
+                accepted += c.accepted;
+                merge(c, cards, sales, charges, errors);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Falha ao ler " + file, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Importacao interrompida", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<Chunk> f : inFlight) f.cancel(true);
+        }
+        LINES.add(records);
+        ACCEPTED.add(accepted);
+        REJECTED.add(errors.size());
+        if (accepted > 0) {
+            CommandManager.executeCommand(new ImportPostingsCommand(cards, sales, charges));
+            Persistence.Group group = Persistence.recordImport();
+            if (group != null) journal(group, cards, sales, charges);
+        }
+        return new Report(records, accepted, errors);
+    }
+
+    private static Chunk parse(Chunk chunk, PayrollDatabase.Snapshot view) {
+        Function<String, Employee> employees = view::getEmployee;
+        Function<String, Employee> members = view::getEmployeeByUnionId;
+        PostingValidation.Posting p = new PostingValidation.Posting();
+        String[] fields = new String[4];
+        for (int i = 0; i < chunk.count; i++) {
+            String line = chunk.lines[i];
+            // the text is not needed past this point
+            chunk.lines[i] = null;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.charAt(0) == '#') continue;
+            chunk.records++;
+            Rejection r = parseLine(trimmed, fields, employees, members, p, chunk);
+            if (r == null) chunk.accepted++;
+            else chunk.errors.add(new LineError(chunk.firstLine + i, r));
+        }
+        return chunk;
+    }
+
+    // Validates one record and adds it to its group; null if it was accepted
+    private static Rejection parseLine(String line, String[] fields, Function<String, Employee> employees,
+                                       Function<String, Employee> members, PostingValidation.Posting p, Chunk chunk) {
+        if (split(line, fields) != fields.length) return Rejection.MALFORMED_LINE;
+        String kind = fields[0];
+        Rejection r;
+        if ("cartao".equalsIgnoreCase(kind)) {
+            r = PostingValidation.timeCard(fields[1], fields[2], fields[3], employees, p);
+            if (r == null) chunk.cards.computeIfAbsent((HourlyEmployee) p.employee, k -> new ArrayList<>()).add(new TimeCard(p.epochDay, p.hours));
+        } else if ("venda".equalsIgnoreCase(kind)) {
+            r = PostingValidation.sale(fields[1], fields[2], fields[3], employees, p);
+            if (r == null) chunk.sales.computeIfAbsent((CommissionedEmployee) p.employee, k -> new ArrayList<>()).add(new SalesReceipt(p.epochDay, p.amount));
+        } else if ("taxa".equalsIgnoreCase(kind)) {
+            r = PostingValidation.serviceCharge(fields[1], fields[2], fields[3], members, p);
+            if (r == null) chunk.charges.computeIfAbsent(p.employee.getUnionMembership(), k -> new ArrayList<>()).add(new ServiceCharge(p.epochDay, p.amount));
+        } else {
+            r = Rejection.UNKNOWN_POSTING;
+        }
+        return r;
+    }
+
+    // Splits at ';' into at most fields.length trimmed fields; the number of fields found
+    private static int split(String line, String[] fields) {
+        int n = 0, from = 0;
+        while (true) {
+            int at = line.indexOf(';', from);
+            if (n == fields.length) return n + 1;
+            fields[n++] = (at < 0 ? line.substring(from) : line.substring(from, at)).trim();
+            if (at < 0) return n;
+            from = at + 1;
+        }
+    }
+
+    // Appends a chunk's groups after the earlier chunks', keeping file order within each history
+    private static void merge(Chunk c, Map<HourlyEmployee, List<TimeCard>> cards,
+                              Map<CommissionedEmployee, List<SalesReceipt>> sales,
+                              Map<UnionMembership, List<ServiceCharge>> charges, List<LineError> errors) {
+        mergeGroups(c.cards, cards);
+        mergeGroups(c.sales, sales);
+        mergeGroups(c.charges, charges);
+        errors.addAll(c.errors);
+    }
+
+    private static <K, T> void mergeGroups(Map<K, List<T>> from, Map<K, List<T>> into) {
+        for (Map.Entry<K, List<T>> g : from.entrySet()) {
+            List<T> earlier = into.putIfAbsent(g.getKey(), g.getValue());
+            if (earlier != null) earlier.addAll(g.getValue());
+        }
+    }
+
+    // Journals the imported records as the lanca* calls that post them, streamed into the group
+    private static void journal(Persistence.Group group, Map<HourlyEmployee, List<TimeCard>> cards,
+                                Map<CommissionedEmployee, List<SalesReceipt>> sales,
+                                Map<UnionMembership, List<ServiceCharge>> charges) {
+        try {
+            for (Map.Entry<HourlyEmployee, List<TimeCard>> g : cards.entrySet()) {
+                for (TimeCard c : g.getValue()) {
+                    group.add("lancaCartao", g.getKey().getId(), date(c.getEpochDay()), Double.toString(c.getHours()));
+                }
+            }
+            for (Map.Entry<CommissionedEmployee, List<SalesReceipt>> g : sales.entrySet()) {
+                for (SalesReceipt s : g.getValue()) {
+                    group.add("lancaVenda", g.getKey().getId(), date(s.getEpochDay()), Money.format(s.getAmount()));
+                }
+            }
+            for (Map.Entry<UnionMembership, List<ServiceCharge>> g : charges.entrySet()) {
+                for (ServiceCharge sc : g.getValue()) {
+                    group.add("lancaTaxaServico", g.getKey().getUnionId(), date(sc.getEpochDay()), Money.format(sc.getAmount()));
+                }
+            }
+            group.commit();
+        } catch (RuntimeException ex) {
+            group.abort();
+            throw ex;
+        }
+    }
+
+    static String date(int epochDay) {
+        LocalDate d = LocalDate.ofEpochDay(epochDay);
+        return d.getDayOfMonth() + "/" + d.getMonthValue() + "/" + d.getYear();
+    }
+}
@@ -0,0 +1,81 @@
+package wepayu.service;
+
+import java.util.function.Function;
+import wepayu.model.CommissionedEmployee;
+import wepayu.model.Employee;
+import wepayu.model.HourlyEmployee;
+import wepayu.util.DateUtils;
+import wepayu.util.Money;
+import wepayu.util.Numbers;
+
+/**
+ * Validation of time cards, sales and service charges without exceptions: each check returns null
+ * when the input is accepted, with the parsed fields left in a {@link Posting}, or the Rejection that
+ * applies. Dates and numbers are read by scanning (DateUtils.toEpochDayOrInvalid, Numbers.isDecimal),
+ * so a rejected record builds no exception at any level.
+ *
+ * The checks run in the order the facade has always applied them, so the first failing one gives
+ * the same message the lanca* methods throw. The employee source is the caller's: the facade reads
+ * through its transaction, a bulk import through one snapshot.
+ */
+public final class PostingValidation {
+    private PostingValidation() {
+    }
+
+    // Fields of an accepted posting; batch callers reuse one per thread
+    public static final class Posting {
+        public Employee employee;
+        public int epochDay;
+        public double hours;
+        public long amount;
+    }
+
+    public static Rejection timeCard(String id, String data, String horas, Function<String, Employee> employees, Posting out) {
+        if (id == null || id.isBlank() || data == null || horas == null) return Rejection.EMPLOYEE_ID_MISSING;
+        if (!Numbers.isDecimal(horas)) return Rejection.HOURS_NOT_NUMERIC;
+        double h = Numbers.parseDecimal(horas);
+        // NaN is not positive either
+        if (!(h > 0)) return Rejection.HOURS_NOT_POSITIVE;
+        int day = DateUtils.toEpochDayOrInvalid(data);
+        if (day == DateUtils.INVALID_DAY) return Rejection.INVALID_DATE;
+        Employee e = employees.apply(id);
+        if (e == null) return Rejection.EMPLOYEE_NOT_FOUND;
+        if (!(e instanceof HourlyEmployee)) return Rejection.NOT_HOURLY;
+        out.employee = e;
+        out.epochDay = day;
+        out.hours = h;
+        return null;
+    }
+
+    public static Rejection sale(String id, String data, String valor, Function<String, Employee> employees, Posting out) {
+        if (id == null || id.isBlank() || data == null || valor == null) return Rejection.EMPLOYEE_ID_MISSING;
+        int day = DateUtils.toEpochDayOrInvalid(data);
+        if (day == DateUtils.INVALID_DAY) return Rejection.INVALID_DATE;
+        long amount = Money.parseOrInvalid(valor);
+        if (amount == Money.INVALID) return Rejection.VALUE_NOT_NUMERIC;
+        if (amount <= 0) return Rejection.VALUE_NOT_POSITIVE;
+        Employee e = employees.apply(id);
+        if (e == null) return Rejection.EMPLOYEE_NOT_FOUND;
+        if (!(e instanceof CommissionedEmployee)) return Rejection.NOT_COMMISSIONED;
+        out.employee = e;
+        out.epochDay = day;
+        out.amount = amount;
+        return null;
+    }
+
+    // members maps a union id to the employee holding it
+    public static Rejection serviceCharge(String unionId, String data, String valor, Function<String, Employee> members, Posting out) {
+        if (unionId == null || unionId.isBlank() || data == null || valor == null) return Rejection.MEMBER_ID_MISSING;
+        int day = DateUtils.toEpochDayOrInvalid(data);
+        if (day == DateUtils.INVALID_DAY) return Rejection.INVALID_DATE;
+        long amount = Money.parseOrInvalid(valor);
+        if (amount == Money.INVALID) return Rejection.VALUE_NOT_NUMERIC;
+        if (amount <= 0) return Rejection.VALUE_NOT_POSITIVE;
+        Employee e = members.apply(unionId);
+        if (e == null) return Rejection.MEMBER_NOT_FOUND;
+        out.employee = e;
+        out.epochDay = day;
+        out.amount = amount;
+        return null;
+    }
+}
@@ -0,0 +1,34 @@
+package wepayu.service;
+
+import java.util.Map;
+import java.util.Set;
+import wepayu.service.exceptions.InvalidDataException;
+import wepayu.util.CompiledSchedule;
+
+// Creation of a payment schedule; undo puts back the registry as it was (an O(1) snapshot)
+public class RegisterScheduleCommand implements Command {
+    private final CompiledSchedule schedule;
+    private Map<String, CompiledSchedule> previous;
+
+    public RegisterScheduleCommand(CompiledSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    @Override
+    public void execute() {
+        Map<String, CompiledSchedule> before = ScheduleRegistry.snapshot();
+        // an equivalent descriptor (lookup is case-insensitive) is a duplicate
+        if (!ScheduleRegistry.register(schedule)) throw new InvalidDataException("Agenda de pagamentos ja existe");
+        previous = before;
+    }
+
+    @Override
+    public void undo() {
+        if (previous != null) ScheduleRegistry.restore(previous);
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return false;
+    }
+}
@@ -0,0 +1,49 @@
+package wepayu.service;
+
+import wepayu.service.exceptions.EmployeeNotFoundException;
+import wepayu.service.exceptions.InvalidDataException;
+
+/**
+ * Why an input was rejected, as a value: the validation layer (PostingValidation) returns one instead
+ * of throwing, so a batch caller pays nothing per bad record. The facade turns it into the exception
+ * and message the interactive calls have always thrown (see toException).
+ */
+public enum Rejection {
+    EMPLOYEE_ID_MISSING("Identificacao do empregado nao pode ser nula."),
+    MEMBER_ID_MISSING("Identificacao do membro nao pode ser nula."),
+    INVALID_DATE("Data invalida."),
+    HOURS_NOT_NUMERIC("Horas deve ser numerica."),
+    HOURS_NOT_POSITIVE("Horas devem ser positivas."),
+    // a plain RuntimeException whose message quotes the value (see toException)
+    VALUE_NOT_NUMERIC("Valor deve ser numerico."),
+    VALUE_NOT_POSITIVE("Valor deve ser positivo."),
+    EMPLOYEE_NOT_FOUND("Empregado nao existe."),
+    MEMBER_NOT_FOUND("Membro nao existe."),
+    NOT_HOURLY("Empregado nao eh horista."),
+    NOT_COMMISSIONED("Empregado nao eh comissionado."),
+    MALFORMED_LINE("Linha mal formada."),
+    UNKNOWN_POSTING("Tipo de lancamento invalido.");
+
+    private final String message;
+
+    Rejection(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    // The exception the facade throws for it; value is the rejected text, quoted by VALUE_NOT_NUMERIC
+    public RuntimeException toException(String value) {
+        switch (this) {
+            case EMPLOYEE_NOT_FOUND:
+                return new EmployeeNotFoundException(message);
+            case VALUE_NOT_NUMERIC:
+                // the text the acceptance tests expect for a value that does not convert
+                return new RuntimeException("Problems during Type Conversion - " + value + " to class java.lang.Double");
+            default:
+                return new InvalidDataException(message);
+        }
+    }
+}
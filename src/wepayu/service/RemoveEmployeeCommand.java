@@ -1,5 +1,6 @@
 package wepayu.service;
 
+import java.util.Set;
 import wepayu.model.Employee;
 
 public class RemoveEmployeeCommand implements Command {
@@ -22,4 +23,14 @@ public class RemoveEmployeeCommand implements Command {
             PayrollDatabase.addEmployee(backup);
         }
     }
+
+    @Override
+    public long retainedBytes() {
+        return backup == null ? 0 : ClearSystemCommand.BYTES_PER_EMPLOYEE;
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return employeeIds.contains(employeeId);
+    }
 }
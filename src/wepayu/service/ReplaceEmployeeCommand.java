@@ -0,0 +1,44 @@
+package wepayu.service;
+
+import java.util.Set;
+import wepayu.model.Employee;
+
+/**
+ * An edit of an employee kept as a delta: the stored version it replaced and the version that replaced
+ * it. Both share the histories and the union membership (see Employee.copy), so the history holds two
+ * small objects instead of a backup of the employee's records.
+ */
+public class ReplaceEmployeeCommand implements Command {
+    // the version not in the directory: a shallow employee object
+    private static final long VERSION_BYTES = 96;
+
+    private final Employee before;
+    private final Employee after;
+
+    public ReplaceEmployeeCommand(Employee before, Employee after) {
+        this.before = before;
+        this.after = after;
+    }
+
+    // Throws IllegalStateException, changing nothing, if before is no longer the stored version or
+    // another employee holds after's union id
+    @Override
+    public void execute() {
+        if (!PayrollDatabase.replace(before, after)) throw new IllegalStateException("employee " + before.getId() + " changed");
+    }
+
+    @Override
+    public void undo() {
+        if (!PayrollDatabase.replace(after, before)) throw new IllegalStateException("employee " + after.getId() + " changed");
+    }
+
+    @Override
+    public long retainedBytes() {
+        return VERSION_BYTES;
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        return employeeIds.contains(before.getId());
+    }
+}
@@ -0,0 +1,59 @@
+package wepayu.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import wepayu.util.CompiledSchedule;
+
+/**
+ * Registry of the payment schedules available to employees, keyed by the normalized descriptor
+ * (lower case, single spaces) so lookups are case-insensitive and O(1). Lookups read the current map
+ * without locking; changes (rare) copy it under the class lock and publish the copy.
+ */
+public class ScheduleRegistry {
+    private static final String[] DEFAULTS = {"mensal $", "semanal 5", "semanal 2 5"};
+    // normalized key -> schedule compiled at creation; never modified once published
+    private static volatile Map<String, CompiledSchedule> schedules = new LinkedHashMap<>();
+
+    static {
+        reset();
+    }
+
+    public static boolean contains(String descriptor) {
+        return get(descriptor) != null;
+    }
+
+    // Compiled schedule for the descriptor, or null if it was never registered
+    public static CompiledSchedule get(String descriptor) {
+        if (descriptor == null) return null;
+        return schedules.get(CompiledSchedule.normalize(descriptor));
+    }
+
+    // Registers a compiled schedule; returns false if an equivalent one already exists
+    public static synchronized boolean register(CompiledSchedule schedule) {
+        if (schedules.containsKey(schedule.getDescriptor())) return false;
+        Map<String, CompiledSchedule> copy = new LinkedHashMap<>(schedules);
+        copy.put(schedule.getDescriptor(), schedule);
+        schedules = copy;
+        return true;
+    }
+
+    public static Map<String, CompiledSchedule> getAll() {
+        return Collections.unmodifiableMap(schedules);
+    }
+
+    // Back to the default schedules only
+    public static synchronized void reset() {
+        schedules = new LinkedHashMap<>();
+        for (String d : DEFAULTS) register(CompiledSchedule.compile(d));
+    }
+
+    // The published map itself (it is never modified), so taking a snapshot is O(1)
+    public static Map<String, CompiledSchedule> snapshot() {
+        return Collections.unmodifiableMap(schedules);
+    }
+
+    public static synchronized void restore(Map<String, CompiledSchedule> snapshot) {
+        schedules = new LinkedHashMap<>(snapshot);
+    }
+}
@@ -0,0 +1,621 @@
+package wepayu.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import wepayu.model.*;
+import wepayu.util.CompiledSchedule;
+
+/**
+ * Binary checkpoint of PayrollDatabase and ScheduleRegistry. The file is written to a temporary name,
+ * synced and renamed over the previous one, so a crash leaves either the old or the new snapshot.
+ *
+ * Version 2 layout, built to be memory-mapped:
+ * <pre>
+ *   header (64 bytes): magic, version, last journal seq, id sequence, schedule count, employee count,
+ *                      meta offset, meta crc32
+ *   history blocks:    per employee and kind, fixed-size records (int day + 8-byte value) and a crc32
+ *   meta:              schedule table (descriptor, registered flag), then one record per employee with
+ *                      its fields, the index of its schedule in the table and the offset/count of each
+ *                      of its history blocks
+ * </pre>
+ * Loading reads the header and the meta section and creates the employees; their histories stay in
+ * the mapping and are decoded (and checked) the first time each one is accessed. Version 1 files
+ * (sequential stream, eager) are still readable.
+ */
+public class SnapshotStore {
+    private static final int MAGIC_V1 = 0x57505931; // "WPY1"
+    private static final int MAGIC = 0x57505932;    // "WPY2"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 12;
+
+    // files larger than a ByteBuffer are mapped in segments that overlap by more than any single read
+    private static final long SEGMENT = 1L << 30;
+    private static final int OVERLAP = 1 << 16;
+
+    private static final byte HOURLY = 'H';
+    private static final byte SALARIED = 'S';
+    private static final byte COMMISSIONED = 'C';
+
+    private static final PaymentMethod[] PAYMENT_METHODS = PaymentMethod.values();
+    private static final PaymentSchedule[] PAYMENT_SCHEDULES = PaymentSchedule.values();
+
+    // What a snapshot is written from: the pinned (immutable) directory, whose version the histories are
+    // written at, the schedule references, plus the sequences
+    public static final class Capture {
+        final long lastSeq;
+        final long idSequence;
+        final PayrollDatabase.Snapshot view;
+        final List<CompiledSchedule> schedules;
+
+        private Capture(long lastSeq, PayrollDatabase.Snapshot view) {
+            this.lastSeq = lastSeq;
+            this.idSequence = Employee.getNextSequence();
+            this.view = view;
+            this.schedules = new ArrayList<>(ScheduleRegistry.getAll().values());
+        }
+    }
+
+    // Captures the current state (references only, O(schedules)) so it can be written on another thread
+    public static Capture capture(long lastSeq) {
+        return capture(lastSeq, PayrollDatabase.snapshot());
+    }
+
+    // Captures a pinned snapshot; records posted after it are left out of the file
+    public static Capture capture(long lastSeq, PayrollDatabase.Snapshot view) {
+        return new Capture(lastSeq, view);
+    }
+
+    // Writes the current state, synced to disk; lastSeq is the last journal entry already reflected in it
+    public static void write(Path file, long lastSeq) throws IOException {
+        write(file, capture(lastSeq), true);
+    }
+
+    public static void write(Path file, Capture state, boolean sync) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long lastSeq = state.lastSeq;
+        long version = state.view.getVersion();
+        // the pinned directory never changes, so both passes below see its employees in the same order
+        Collection<Employee> employees = state.view.getAllEmployees().values();
+        int n = state.view.size();
+        // registered schedules first, then any an employee uses without it being registered
+        Map<CompiledSchedule, Integer> scheduleIndex = new IdentityHashMap<>();
+        List<CompiledSchedule> schedules = new ArrayList<>(state.schedules);
+        int registered = schedules.size();
+        for (CompiledSchedule s : schedules) scheduleIndex.put(s, scheduleIndex.size());
+        for (Employee e : employees) {
+            CompiledSchedule s = e.getCompiledSchedule();
+            if (s != null && !scheduleIndex.containsKey(s)) {
+                scheduleIndex.put(s, scheduleIndex.size());
+                schedules.add(s);
+            }
+        }
+        long[] cardsAt = new long[n], salesAt = new long[n], chargesAt = new long[n];
+        int[] cardsCount = new int[n], salesCount = new int[n], chargesCount = new int[n];
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            Out out = new Out(ch, HEADER_SIZE);
+            int i = 0;
+            for (Employee e : employees) {
+                if (e instanceof HourlyEmployee) {
+                    HourlyEmployee h = (HourlyEmployee) e;
+                    cardsAt[i] = out.position();
+                    cardsCount[i] = writeCards(out, h, version);
+                } else if (e instanceof CommissionedEmployee) {
+                    CommissionedEmployee c = (CommissionedEmployee) e;
+                    salesAt[i] = out.position();
+                    salesCount[i] = writeSales(out, c, version);
+                }
+                if (e.getUnionMembership() != null) {
+                    chargesAt[i] = out.position();
+                    chargesCount[i] = writeCharges(out, e.getUnionMembership(), version);
+                }
+                i++;
+            }
+
+            long metaOffset = out.position();
+            out.beginCrc();
+            for (i = 0; i < schedules.size(); i++) {
+                out.putString(schedules.get(i).getDescriptor());
+                out.putByte(i < registered ? 1 : 0);
+            }
+            i = 0;
+            for (Employee e : employees) {
+                writeEmployee(out, e, scheduleIndex, cardsAt[i], cardsCount[i], salesAt[i], salesCount[i],
+                        chargesAt[i], chargesCount[i]);
+                i++;
+            }
+            int metaCrc = out.endCrc();
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(lastSeq).putLong(state.idSequence)
+                    .putInt(schedules.size()).putInt(n).putLong(metaOffset).putInt(metaCrc);
+            header.clear();
+            while (header.hasRemaining()) ch.write(header, header.position());
+            if (sync) ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads a snapshot into the (empty) database; returns its last journal sequence, or 0 if there is none
+    public static long load(Path file) throws IOException {
+        if (!Files.exists(file)) return 0;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 8) throw new IOException("Snapshot truncado: " + file);
+            ByteBuffer head = ByteBuffer.allocate(4);
+            ch.read(head, 0);
+            int magic = head.getInt(0);
+            if (magic == MAGIC_V1) return loadV1(Files.readAllBytes(file), file);
+            if (magic != MAGIC || size < HEADER_SIZE) throw new IOException("Arquivo nao eh um snapshot: " + file);
+            // the mapping stays valid after the channel is closed, for as long as a loader references it
+            return loadMapped(new Mapped(ch, size), file);
+        }
+    }
+
+    private static long loadMapped(Mapped m, Path file) throws IOException {
+        int version = m.getInt(4);
+        if (version != VERSION) throw new IOException("Versao de snapshot nao suportada: " + version);
+        long lastSeq = m.getLong(8);
+        long idSequence = m.getLong(16);
+        int schedules = m.getInt(24);
+        int employees = m.getInt(28);
+        long metaOffset = m.getLong(32);
+        int metaCrc = m.getInt(40);
+        if (m.crc(metaOffset, m.size - metaOffset) != metaCrc) throw new IOException("Snapshot corrompido: " + file);
+
+        long[] pos = {metaOffset};
+        ScheduleRegistry.reset();
+        CompiledSchedule[] table = new CompiledSchedule[schedules];
+        for (int i = 0; i < schedules; i++) {
+            CompiledSchedule s = CompiledSchedule.compile(m.getString(pos));
+            boolean isRegistered = m.getByte(pos) != 0;
+            if (s == null) throw new IOException("Agenda invalida no snapshot: " + file);
+            if (isRegistered && !ScheduleRegistry.register(s)) s = ScheduleRegistry.get(s.getDescriptor());
+            table[i] = s;
+        }
+        List<Employee> loaded = new ArrayList<>(employees);
+        for (int i = 0; i < employees; i++) loaded.add(readEmployee(m, pos, table));
+        PayrollDatabase.addEmployees(loaded);
+        Employee.setNextSequence(idSequence);
+        return lastSeq;
+    }
+
+    // A history still pending holds only loaded (version 0) records, so its block is copied as is
+    private static int writeCards(Out out, HourlyEmployee h, long version) throws IOException {
+        HistoryLoader<TimeCard> pending = h.getPendingTimeCards();
+        if (pending instanceof MappedBlock) return ((MappedBlock<TimeCard>) pending).copyTo(out);
+        List<TimeCard> cards = h.getTimeCards(version);
+        out.beginCrc();
+        for (TimeCard c : cards) {
+            out.putInt(c.getEpochDay());
+            out.putDouble(c.getHours());
+        }
+        out.putInt(out.endCrc());
+        return cards.size();
+    }
+
+    private static int writeSales(Out out, CommissionedEmployee c, long version) throws IOException {
+        HistoryLoader<SalesReceipt> pending = c.getPendingSales();
+        if (pending instanceof MappedBlock) return ((MappedBlock<SalesReceipt>) pending).copyTo(out);
+        List<SalesReceipt> sales = c.getSales(version);
+        out.beginCrc();
+        for (SalesReceipt s : sales) {
+            out.putInt(s.getEpochDay());
+            out.putLong(s.getAmount());
+        }
+        out.putInt(out.endCrc());
+        return sales.size();
+    }
+
+    private static int writeCharges(Out out, UnionMembership u, long version) throws IOException {
+        HistoryLoader<ServiceCharge> pending = u.getPendingServiceCharges();
+        if (pending instanceof MappedBlock) return ((MappedBlock<ServiceCharge>) pending).copyTo(out);
+        List<ServiceCharge> charges = u.getServiceCharges(version);
+        out.beginCrc();
+        for (ServiceCharge sc : charges) {
+            out.putInt(sc.getEpochDay());
+            out.putLong(sc.getAmount());
+        }
+        out.putInt(out.endCrc());
+        return charges.size();
+    }
+
+    private static void writeEmployee(Out out, Employee e, Map<CompiledSchedule, Integer> scheduleIndex, long cardsAt, int cards, long salesAt, int sales,
+                                      long chargesAt, int charges) throws IOException {
+        if (e instanceof HourlyEmployee) {
+            out.putByte(HOURLY);
+        } else if (e instanceof CommissionedEmployee) {
+            out.putByte(COMMISSIONED);
+        } else {
+            out.putByte(SALARIED);
+        }
+        out.putString(e.getId());
+        out.putString(e.getName());
+        out.putString(e.getAddress());
+        out.putByte(e.getPaymentMethod() == null ? -1 : e.getPaymentMethod().ordinal());
+        out.putByte(e.getPaymentSchedule() == null ? -1 : e.getPaymentSchedule().ordinal());
+        out.putString(e.getBankName());
+        out.putString(e.getAgency());
+        out.putString(e.getAccount());
+        out.putInt(e.getCompiledSchedule() == null ? -1 : scheduleIndex.get(e.getCompiledSchedule()));
+        if (e instanceof HourlyEmployee) {
+            out.putLong(((HourlyEmployee) e).getHourlyRate());
+            out.putLong(cardsAt);
+            out.putInt(cards);
+        } else if (e instanceof CommissionedEmployee) {
+            CommissionedEmployee c = (CommissionedEmployee) e;
+            out.putLong(c.getMonthlySalary());
+            out.putDouble(c.getCommissionRate());
+            out.putLong(salesAt);
+            out.putInt(sales);
+        } else {
+            out.putLong(((SalariedEmployee) e).getMonthlySalary());
+        }
+        UnionMembership u = e.getUnionMembership();
+        out.putByte(u == null ? 0 : 1);
+        if (u != null) {
+            out.putString(u.getUnionId());
+            out.putLong(u.getMonthlyFee());
+            out.putLong(chargesAt);
+            out.putInt(charges);
+        }
+    }
+
+    private static Employee readEmployee(Mapped m, long[] pos, CompiledSchedule[] table) throws IOException {
+        byte type = m.getByte(pos);
+        String id = m.getString(pos);
+        String name = m.getString(pos);
+        String address = m.getString(pos);
+        int method = m.getByte(pos);
+        int legacySchedule = m.getByte(pos);
+        String bank = m.getString(pos);
+        String agency = m.getString(pos);
+        String account = m.getString(pos);
+        int schedule = m.getInt(pos);
+
+        Employee e;
+        if (type == HOURLY) {
+            HourlyEmployee h = new HourlyEmployee(id, name, address, m.getLong(pos));
+            long at = m.getLong(pos);
+            int count = m.getInt(pos);
+            if (count > 0) h.setPendingTimeCards(new MappedBlock<>(m, at, count, (b, p) -> new TimeCard(b.getInt(p), b.getDouble(p + 4))));
+            e = h;
+        } else if (type == COMMISSIONED) {
+            CommissionedEmployee c = new CommissionedEmployee(id, name, address, m.getLong(pos), m.getDouble(pos));
+            long at = m.getLong(pos);
+            int count = m.getInt(pos);
+            if (count > 0) c.setPendingSales(new MappedBlock<>(m, at, count, (b, p) -> new SalesReceipt(b.getInt(p), b.getLong(p + 4))));
+            e = c;
+        } else if (type == SALARIED) {
+            e = new SalariedEmployee(id, name, address, m.getLong(pos));
+        } else {
+            throw new IOException("Tipo de empregado desconhecido no snapshot: " + type);
+        }
+        applyCommonFields(e, method, legacySchedule, bank, agency, account);
+        e.setCompiledSchedule(schedule < 0 ? null : table[schedule]);
+
+        if (m.getByte(pos) != 0) {
+            UnionMembership u = new UnionMembership(m.getString(pos), m.getLong(pos));
+            long at = m.getLong(pos);
+            int count = m.getInt(pos);
+            if (count > 0) u.setPendingServiceCharges(new MappedBlock<>(m, at, count, (b, p) -> new ServiceCharge(b.getInt(p), b.getLong(p + 4))));
+            e.setUnionMembership(u);
+        }
+        return e;
+    }
+
+    private static void applyCommonFields(Employee e, int method, int legacySchedule, String bank, String agency,
+                                          String account) {
+        e.setPaymentMethod(method < 0 ? null : PAYMENT_METHODS[method]);
+        e.setPaymentSchedule(legacySchedule < 0 ? null : PAYMENT_SCHEDULES[legacySchedule]);
+        e.setBankName(bank);
+        e.setAgency(agency);
+        e.setAccount(account);
+    }
+
+    // Decodes one record of a history block at an absolute position of a buffer
+    private interface RecordDecoder<T> {
+        T decode(ByteBuffer b, int pos);
+    }
+
+    // History block still in the mapping: count fixed-size records followed by their crc32
+    private static final class MappedBlock<T> implements HistoryLoader<T> {
+        private final Mapped m;
+        private final long at;
+        private final int count;
+        private final RecordDecoder<T> decoder;
+
+        MappedBlock(Mapped m, long at, int count, RecordDecoder<T> decoder) {
+            this.m = m;
+            this.at = at;
+            this.count = count;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void loadInto(Consumer<T> sink) {
+            long length = (long) count * RECORD_SIZE;
+            if (m.crc(at, length) != m.getInt(at + length)) {
+                throw new UncheckedIOException(new IOException("Historico corrompido no snapshot (offset " + at + ")"));
+            }
+            for (int i = 0; i < count; i++) {
+                long p = at + (long) i * RECORD_SIZE;
+                sink.accept(decoder.decode(m.segment(p), m.local(p)));
+            }
+        }
+
+        // Copies the encoded block (records and crc) into a new snapshot without decoding it
+        int copyTo(Out out) throws IOException {
+            long length = (long) count * RECORD_SIZE + 4;
+            for (long done = 0; done < length; ) {
+                int chunk = (int) Math.min(OVERLAP, length - done);
+                ByteBuffer src = m.segment(at + done).duplicate();
+                int local = m.local(at + done);
+                src.limit(local + chunk).position(local);
+                out.put(src);
+                done += chunk;
+            }
+            return count;
+        }
+    }
+
+    // Read-only mapping of a whole snapshot, in overlapping segments when it exceeds 2GB
+    private static final class Mapped {
+        final long size;
+        private final ByteBuffer[] segments;
+
+        Mapped(FileChannel ch, long size) throws IOException {
+            this.size = size;
+            int n = (int) ((size + SEGMENT - 1) / SEGMENT);
+            segments = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long start = i * SEGMENT;
+                segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, SEGMENT + OVERLAP));
+            }
+        }
+
+        ByteBuffer segment(long p) {
+            return segments[(int) (p / SEGMENT)];
+        }
+
+        int local(long p) {
+            return (int) (p % SEGMENT);
+        }
+
+        int getInt(long p) {
+            return segment(p).getInt(local(p));
+        }
+
+        long getLong(long p) {
+            return segment(p).getLong(local(p));
+        }
+
+        // Sequential reads: pos[0] is advanced past the value
+        byte getByte(long[] pos) {
+            byte v = segment(pos[0]).get(local(pos[0]));
+            pos[0] += 1;
+            return v;
+        }
+
+        int getInt(long[] pos) {
+            int v = getInt(pos[0]);
+            pos[0] += 4;
+            return v;
+        }
+
+        long getLong(long[] pos) {
+            long v = getLong(pos[0]);
+            pos[0] += 8;
+            return v;
+        }
+
+        double getDouble(long[] pos) {
+            double v = segment(pos[0]).getDouble(local(pos[0]));
+            pos[0] += 8;
+            return v;
+        }
+
+        String getString(long[] pos) {
+            short len = segment(pos[0]).getShort(local(pos[0]));
+            pos[0] += 2;
+            if (len < 0) return null;
+            byte[] bytes = new byte[len];
+            segment(pos[0]).get(local(pos[0]), bytes);
+            pos[0] += len;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int crc(long from, long length) {
+            CRC32 crc = new CRC32();
+            for (long done = 0; done < length; ) {
+                long p = from + done;
+                int chunk = (int) Math.min(SEGMENT - local(p), length - done);
+                ByteBuffer b = segment(p).duplicate();
+                b.limit(local(p) + chunk).position(local(p));
+                crc.update(b);
+                done += chunk;
+            }
+            return (int) crc.getValue();
+        }
+    }
+
+    // Buffered positional writer that can checksum a range of what it writes
+    private static final class Out {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        private long flushed;
+        private CRC32 crc;
+        private int crcMark;
+
+        Out(FileChannel ch, long start) {
+            this.ch = ch;
+            this.flushed = start;
+        }
+
+        long position() {
+            return flushed + buf.position();
+        }
+
+        void beginCrc() {
+            crc = new CRC32();
+            crcMark = buf.position();
+        }
+
+        int endCrc() {
+            updateCrc();
+            int v = (int) crc.getValue();
+            crc = null;
+            return v;
+        }
+
+        private void updateCrc() {
+            ByteBuffer d = buf.duplicate();
+            d.limit(buf.position()).position(crcMark);
+            crc.update(d);
+            crcMark = buf.position();
+        }
+
+        void flush() throws IOException {
+            if (crc != null) updateCrc();
+            buf.flip();
+            while (buf.hasRemaining()) flushed += ch.write(buf, flushed);
+            buf.clear();
+            crcMark = 0;
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() < n) flush();
+        }
+
+        void putByte(int v) throws IOException {
+            ensure(1);
+            buf.put((byte) v);
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        void putDouble(double v) throws IOException {
+            ensure(8);
+            buf.putDouble(v);
+        }
+
+        void putString(String s) throws IOException {
+            if (s == null) {
+                ensure(2);
+                buf.putShort((short) -1);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > Short.MAX_VALUE) throw new IOException("Texto longo demais para o snapshot");
+            ensure(2 + bytes.length);
+            buf.putShort((short) bytes.length);
+            buf.put(bytes);
+        }
+
+        void put(ByteBuffer src) throws IOException {
+            ensure(src.remaining());
+            buf.put(src);
+        }
+    }
+
+    // ---------------------------------------------------------------
+    // Version 1: sequential stream, histories decoded eagerly
+    // ---------------------------------------------------------------
+    private static long loadV1(byte[] data, Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        if (crc.getValue() != ByteBuffer.wrap(data, data.length - 8, 8).getLong()) {
+            throw new IOException("Snapshot corrompido: " + file);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 4, data.length - 12));
+        int version = in.readInt();
+        if (version != 1) throw new IOException("Versao de snapshot nao suportada: " + version);
+        long lastSeq = in.readLong();
+        long idSequence = in.readLong();
+        ScheduleRegistry.reset();
+        int schedules = in.readInt();
+        for (int i = 0; i < schedules; i++) {
+            CompiledSchedule s = CompiledSchedule.compile(in.readUTF());
+            if (s != null) ScheduleRegistry.register(s);
+        }
+        int employees = in.readInt();
+        List<Employee> loaded = new ArrayList<>(employees);
+        for (int i = 0; i < employees; i++) loaded.add(readEmployeeV1(in));
+        PayrollDatabase.addEmployees(loaded);
+        Employee.setNextSequence(idSequence);
+        return lastSeq;
+    }
+
+    private static Employee readEmployeeV1(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String id = readStringV1(in);
+        String name = readStringV1(in);
+        String address = readStringV1(in);
+        int method = in.readByte();
+        int legacySchedule = in.readByte();
+        String bank = readStringV1(in);
+        String agency = readStringV1(in);
+        String account = readStringV1(in);
+        String schedule = readStringV1(in);
+
+        Employee e;
+        if (type == HOURLY) {
+            HourlyEmployee h = new HourlyEmployee(id, name, address, in.readLong());
+            int cards = in.readInt();
+            for (int i = 0; i < cards; i++) h.addTimeCard(new TimeCard(in.readInt(), in.readDouble()));
+            e = h;
+        } else if (type == COMMISSIONED) {
+            CommissionedEmployee c = new CommissionedEmployee(id, name, address, in.readLong(), in.readDouble());
+            int sales = in.readInt();
+            for (int i = 0; i < sales; i++) c.addSalesReceipt(new SalesReceipt(in.readInt(), in.readLong()));
+            e = c;
+        } else if (type == SALARIED) {
+            e = new SalariedEmployee(id, name, address, in.readLong());
+        } else {
+            throw new IOException("Tipo de empregado desconhecido no snapshot: " + type);
+        }
+        applyCommonFields(e, method, legacySchedule, bank, agency, account);
+        if (schedule != null) {
+            CompiledSchedule s = ScheduleRegistry.get(schedule);
+            e.setCompiledSchedule(s != null ? s : CompiledSchedule.compile(schedule));
+        }
+
+        if (in.readBoolean()) {
+            UnionMembership m = new UnionMembership(readStringV1(in), in.readLong());
+            int charges = in.readInt();
+            for (int i = 0; i < charges; i++) m.addServiceCharge(new ServiceCharge(in.readInt(), in.readLong()));
+            e.setUnionMembership(m);
+        }
+        return e;
+    }
+
+    private static String readStringV1(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,138 @@
+package wepayu.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import wepayu.model.Employee;
+import wepayu.model.UnionMembership;
+import wepayu.service.exceptions.InvalidDataException;
+
+/**
+ * Changes staged by the facade between iniciarTransacao and confirmarTransacao on one thread. Each
+ * call is validated as it is made, but nothing is published: employee versions are staged here and
+ * postings wait. Commit checks union ids for the whole batch, then publishes every employee change
+ * as a single directory state (PayrollDatabase.applyAll), makes the postings and records one undo
+ * entry. The journal entries of the calls are held as well and written together at commit.
+ *
+ * Calls inside the transaction see its staged employees; queries keep reading the directory.
+ */
+public final class Transaction {
+    private static final ThreadLocal<Transaction> CURRENT = new ThreadLocal<>();
+
+    // id -> stored version when the transaction first touched the employee (null: created here)
+    private final Map<String, Employee> base = new LinkedHashMap<>();
+    // id -> staged version (null: removed here); ids only read are staged as their base
+    private final Map<String, Employee> staged = new HashMap<>();
+    // union id -> staged employee that took it (may be stale: check the staged version's id)
+    private final Map<String, Employee> stagedByUnionId = new HashMap<>();
+    private final List<Command> postings = new ArrayList<>();
+    private final List<Call> journal = new ArrayList<>();
+
+    // A journaled facade call held until commit
+    static final class Call {
+        final long idSequence;
+        final String op;
+        final Object[] args;
+
+        Call(long idSequence, String op, Object[] args) {
+            this.idSequence = idSequence;
+            this.op = op;
+            this.args = args;
+        }
+    }
+
+    private Transaction() {
+    }
+
+    // Opens a transaction on this thread; fails if one is open already
+    public static Transaction begin() {
+        if (CURRENT.get() != null) throw new InvalidDataException("Ja existe uma transacao aberta.");
+        Transaction tx = new Transaction();
+        CURRENT.set(tx);
+        return tx;
+    }
+
+    // The transaction open on this thread, or null
+    public static Transaction current() {
+        return CURRENT.get();
+    }
+
+    // Drops the transaction open on this thread, if any (a journal that ends inside one was torn)
+    static void abandon() {
+        CURRENT.remove();
+    }
+
+    public Employee getEmployee(String id) {
+        if (staged.containsKey(id)) return staged.get(id);
+        return PayrollDatabase.getEmployee(id);
+    }
+
+    public Employee getEmployeeByUnionId(String unionId) {
+        Employee e = stagedByUnionId.get(unionId);
+        if (e != null && staged.get(e.getId()) == e) return e;
+        e = PayrollDatabase.getEmployeeByUnionId(unionId);
+        if (e == null || !staged.containsKey(e.getId())) return e;
+        // the stored holder has a staged version: it holds the id only if that version still does
+        Employee now = staged.get(e.getId());
+        UnionMembership m = now == null ? null : now.getUnionMembership();
+        return m != null && unionId.equals(m.getUnionId()) ? now : null;
+    }
+
+    // Stages after (null: removal) in place of the version the caller read with getEmployee (null:
+    // a new employee)
+    public void stage(Employee before, Employee after) {
+        String id = before != null ? before.getId() : after.getId();
+        if (!staged.containsKey(id)) base.put(id, before);
+        staged.put(id, after);
+        UnionMembership m = after == null ? null : after.getUnionMembership();
+        if (m != null && m.getUnionId() != null) stagedByUnionId.put(m.getUnionId(), after);
+    }
+
+    // Queues a posting to be executed at commit on an employee read through getEmployee
+    public void post(Employee owner, Command posting) {
+        // the owner must still be the stored version at commit
+        if (!staged.containsKey(owner.getId())) stage(owner, owner);
+        postings.add(posting);
+    }
+
+    void journal(long idSequence, String op, Object[] args) {
+        journal.add(new Call(idSequence, op, args));
+    }
+
+    List<Call> journaled() {
+        return journal;
+    }
+
+    // Validates the batch, publishes it and records it as one undo entry; the transaction is closed
+    // whether or not it succeeds
+    public void commit() {
+        CURRENT.remove();
+        List<Employee> before = new ArrayList<>(base.size());
+        List<Employee> after = new ArrayList<>(base.size());
+        Map<String, String> unionHolders = new HashMap<>();
+        for (Map.Entry<String, Employee> b : base.entrySet()) {
+            Employee a = staged.get(b.getKey());
+            before.add(b.getValue());
+            after.add(a);
+            UnionMembership m = a == null ? null : a.getUnionMembership();
+            if (m == null || m.getUnionId() == null) continue;
+            // one pass for the whole batch: taken twice in it, or held by an employee it leaves alone
+            Employee holder = PayrollDatabase.getEmployeeByUnionId(m.getUnionId());
+            boolean heldOutside = holder != null && !holder.getId().equals(a.getId()) && !staged.containsKey(holder.getId());
+            if (unionHolders.put(m.getUnionId(), a.getId()) != null || heldOutside) {
+                throw new InvalidDataException("Ha outro empregado com esta identificacao de sindicato");
+            }
+        }
+        try {
+            CommandManager.executeCommand(new TransactionCommand(before, after, postings));
+        } catch (IllegalStateException conflito) {
+            throw new InvalidDataException("Empregado alterado por outra operacao.");
+        }
+    }
+
+    public void rollback() {
+        CURRENT.remove();
+    }
+}
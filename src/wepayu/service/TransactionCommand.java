@@ -0,0 +1,80 @@
+package wepayu.service;
+
+import java.util.List;
+import java.util.Set;
+import wepayu.model.Employee;
+import wepayu.model.Versions;
+
+/**
+ * A committed transaction as one undo entry: the employee versions it replaced and published (see
+ * PayrollDatabase.applyAll) and the postings it made, undone together and seen together.
+ */
+public class TransactionCommand implements Command {
+    private final List<Employee> before;
+    private final List<Employee> after;
+    private final List<Command> postings;
+    // employees actually changed (the others were only checked)
+    private final int changed;
+
+    public TransactionCommand(List<Employee> before, List<Employee> after, List<Command> postings) {
+        this.before = before;
+        this.after = after;
+        this.postings = postings;
+        int n = 0;
+        for (int i = 0; i < before.size(); i++) {
+            if (before.get(i) != after.get(i)) n++;
+        }
+        this.changed = n;
+    }
+
+    // Throws IllegalStateException, changing nothing, if the employee changes no longer apply. The
+    // postings are made in a batch of hidden versions and published with the employee changes, so
+    // a pinned reader sees the whole transaction or none of it
+    @Override
+    public void execute() {
+        Versions.beginBatch();
+        try {
+            for (Command p : postings) p.execute();
+            if (!PayrollDatabase.applyAll(before, after, Versions.last())) {
+                for (int i = postings.size() - 1; i >= 0; i--) postings.get(i).undo();
+                throw new IllegalStateException("transaction conflicts with the directory");
+            }
+        } finally {
+            Versions.endBatch();
+        }
+    }
+
+    @Override
+    public void undo() {
+        Versions.beginBatch();
+        try {
+            for (int i = postings.size() - 1; i >= 0; i--) postings.get(i).undo();
+            if (!PayrollDatabase.applyAll(after, before, Versions.last())) {
+                for (Command p : postings) p.execute();
+                throw new IllegalStateException("transaction conflicts with the directory");
+            }
+        } finally {
+            Versions.endBatch();
+        }
+    }
+
+    @Override
+    public long retainedBytes() {
+        // one version of each changed employee is out of the directory, either way
+        return changed * ClearSystemCommand.BYTES_PER_EMPLOYEE;
+    }
+
+    @Override
+    public boolean holdsCompacted(int cutoff, Set<String> employeeIds) {
+        for (Employee e : before) {
+            if (e != null && employeeIds.contains(e.getId())) return true;
+        }
+        for (Employee e : after) {
+            if (e != null && employeeIds.contains(e.getId())) return true;
+        }
+        for (Command p : postings) {
+            if (p.holdsCompacted(cutoff, employeeIds)) return true;
+        }
+        return false;
+    }
+}
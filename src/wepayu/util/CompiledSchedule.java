@@ -0,0 +1,217 @@
+package wepayu.util;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Locale;
+
+/**
+ * Immutable payment schedule compiled once from its descriptor ("mensal $", "mensal N",
+ * "semanal D", "semanal X D"). All queries work on epoch days, with no string parsing.
+ */
+public abstract class CompiledSchedule {
+    private static final double WEEKS_IN_MONTH = 4.333333333333333;
+
+    private final String descriptor;
+
+    private CompiledSchedule(String descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    // Compiles a descriptor; returns null if it is not a valid schedule
+    public static CompiledSchedule compile(String descriptor) {
+        if (descriptor == null || descriptor.isBlank()) return null;
+        String desc = normalize(descriptor);
+        String[] parts = desc.split(" ");
+        try {
+            if (parts[0].equals("mensal")) {
+                if (parts.length != 2) return null;
+                if (parts[1].equals("$")) return new LastWorkDayOfMonth(desc);
+                int dia = Integer.parseInt(parts[1]);
+                if (dia < 1 || dia > 28) return null;
+                return new DayOfMonth(desc, dia);
+            } else if (parts[0].equals("semanal")) {
+                if (parts.length == 2) {
+                    int dia = Integer.parseInt(parts[1]);
+                    if (dia < 1 || dia > 7) return null;
+                    return new Weekly(desc, dia);
+                } else if (parts.length == 3) {
+                    int intervalo = Integer.parseInt(parts[1]);
+                    int dia = Integer.parseInt(parts[2]);
+                    if (intervalo < 1 || intervalo > 52 || dia < 1 || dia > 7) return null;
+                    return new EveryNWeeks(desc, intervalo, dia);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return null;
+    }
+
+    // Descriptors compare case-insensitively and ignore extra spaces
+    public static String normalize(String descriptor) {
+        return descriptor.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    // Normalized descriptor (lower case, single spaces)
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public abstract boolean isPayDate(int epochDay);
+
+    // Pay period (start inclusive, end exclusive) ending on the given pay date
+    public abstract ScheduleUtils.PayPeriod periodFor(int payDay);
+
+    // First pay date strictly after the given day
+    public abstract int nextPayDate(int after);
+
+    // Plain "semanal D" schedules prorate monthly amounts by whole weeks
+    public boolean isWeekly() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return descriptor;
+    }
+
+    // ISO day of week (1=Mon..7=Sun); epoch day 0 (1970-01-01) was a Thursday
+    static int dayOfWeek(int epochDay) {
+        return Math.floorMod(epochDay + 3, 7) + 1;
+    }
+
+    private static int epochDay(LocalDate d) {
+        return DateUtils.toEpochDay(d);
+    }
+
+    // "mensal $": last workday of the month, whole month period
+    private static final class LastWorkDayOfMonth extends CompiledSchedule {
+        LastWorkDayOfMonth(String descriptor) {
+            super(descriptor);
+        }
+
+        @Override
+        public boolean isPayDate(int epochDay) {
+            return DateUtils.isLastWorkDayOfMonth(LocalDate.ofEpochDay(epochDay));
+        }
+
+        @Override
+        public ScheduleUtils.PayPeriod periodFor(int payDay) {
+            LocalDate payDate = LocalDate.ofEpochDay(payDay);
+            return new ScheduleUtils.PayPeriod(payDate.withDayOfMonth(1), payDate.plusDays(1), 1.0);
+        }
+
+        @Override
+        public int nextPayDate(int after) {
+            LocalDate month = LocalDate.ofEpochDay(after).withDayOfMonth(1);
+            int candidate = epochDay(lastWorkDay(month));
+            if (candidate > after) return candidate;
+            return epochDay(lastWorkDay(month.plusMonths(1)));
+        }
+
+        private static LocalDate lastWorkDay(LocalDate anyDayOfMonth) {
+            LocalDate last = anyDayOfMonth.withDayOfMonth(anyDayOfMonth.lengthOfMonth());
+            while (last.getDayOfWeek().getValue() > 5) last = last.minusDays(1);
+            return last;
+        }
+    }
+
+    // "mensal N": day N of every month, period since day N of the previous month
+    private static final class DayOfMonth extends CompiledSchedule {
+        private final int dia;
+
+        DayOfMonth(String descriptor, int dia) {
+            super(descriptor);
+            this.dia = dia;
+        }
+
+        @Override
+        public boolean isPayDate(int epochDay) {
+            return LocalDate.ofEpochDay(epochDay).getDayOfMonth() == dia;
+        }
+
+        @Override
+        public ScheduleUtils.PayPeriod periodFor(int payDay) {
+            LocalDate payDate = LocalDate.ofEpochDay(payDay);
+            LocalDate start = payDate.minusMonths(1).withDayOfMonth(dia);
+            LocalDate end = payDate.withDayOfMonth(dia).plusDays(1);
+            // monthly schedules pay the full salary
+            return new ScheduleUtils.PayPeriod(start, end, 1.0);
+        }
+
+        @Override
+        public int nextPayDate(int after) {
+            LocalDate d = LocalDate.ofEpochDay(after);
+            if (d.getDayOfMonth() < dia) return epochDay(d.withDayOfMonth(dia));
+            return epochDay(d.plusMonths(1).withDayOfMonth(dia));
+        }
+    }
+
+    // "semanal D": every week on day D, one week period
+    private static final class Weekly extends CompiledSchedule {
+        private final int dia;
+
+        Weekly(String descriptor, int dia) {
+            super(descriptor);
+            this.dia = dia;
+        }
+
+        @Override
+        public boolean isPayDate(int epochDay) {
+            return dayOfWeek(epochDay) == dia;
+        }
+
+        @Override
+        public ScheduleUtils.PayPeriod periodFor(int payDay) {
+            LocalDate end = LocalDate.ofEpochDay(payDay + 1L);
+            return new ScheduleUtils.PayPeriod(end.minusWeeks(1), end, 1.0 / WEEKS_IN_MONTH);
+        }
+
+        @Override
+        public int nextPayDate(int after) {
+            return after + Math.floorMod(dia - dayOfWeek(after) - 1, 7) + 1;
+        }
+
+        @Override
+        public boolean isWeekly() {
+            return true;
+        }
+    }
+
+    // "semanal X D": every X weeks on day D; the first payment is X-1 weeks after
+    // the first day D of January 2005
+    private static final class EveryNWeeks extends CompiledSchedule {
+        private final int intervalo;
+        private final int firstPay;
+
+        EveryNWeeks(String descriptor, int intervalo, int dia) {
+            super(descriptor);
+            this.intervalo = intervalo;
+            LocalDate firstWeekday = LocalDate.of(2005, 1, 1).with(TemporalAdjusters.nextOrSame(DayOfWeek.of(dia)));
+            this.firstPay = epochDay(firstWeekday.plusWeeks(intervalo - 1));
+        }
+
+        @Override
+        public boolean isPayDate(int epochDay) {
+            int days = epochDay - firstPay;
+            return days >= 0 && days % (7 * intervalo) == 0;
+        }
+
+        @Override
+        public ScheduleUtils.PayPeriod periodFor(int payDay) {
+            // most recent pay date <= payDay on the cadence (truncating like ChronoUnit.WEEKS)
+            int cycles = ((payDay - firstPay) / 7) / intervalo;
+            int currentPay = firstPay + cycles * intervalo * 7;
+            LocalDate end = LocalDate.ofEpochDay(currentPay + 1L);
+            return new ScheduleUtils.PayPeriod(end.minusWeeks(intervalo), end, intervalo / WEEKS_IN_MONTH);
+        }
+
+        @Override
+        public int nextPayDate(int after) {
+            if (after < firstPay) return firstPay;
+            int step = 7 * intervalo;
+            return firstPay + ((after - firstPay) / step + 1) * step;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package wepayu.util;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
-import java.time.format.DateTimeParseException;
 import java.time.format.ResolverStyle;
 import java.time.temporal.ChronoField;
 
@@ -32,16 +31,57 @@ public class DateUtils {
                 return LocalDate.parse(dateStr.trim(), FLEXIBLE_FORMATTER);
             }
 
+    // ---------------------------------------------------------------
+    // Faz o parse uma unica vez; retorna null se a data for invalida
+    // ---------------------------------------------------------------
+    public static LocalDate parseOrNull(String dateStr) {
+        int day = toEpochDayOrInvalid(dateStr);
+        return day == INVALID_DAY ? null : LocalDate.ofEpochDay(day);
+    }
+
+    // returned by toEpochDayOrInvalid for a text that is not a date
+    public static final int INVALID_DAY = Integer.MIN_VALUE;
+
+    // Epoch day of d/M/yyyy (the format of FLEXIBLE_FORMATTER, strict), read by hand: an invalid date
+    // costs no DateTimeParseException
+    public static int toEpochDayOrInvalid(String dateStr) {
+        if (dateStr == null) return INVALID_DAY;
+        String s = dateStr.trim();
+        int n = s.length();
+        int i = 0;
+        int day = 0, month = 0, year = 0;
+        int digits = 0;
+        while (i < n && digits < 2 && isDigit(s.charAt(i))) { day = day * 10 + (s.charAt(i++) - '0'); digits++; }
+        if (digits == 0 || i == n || s.charAt(i++) != '/') return INVALID_DAY;
+        digits = 0;
+        while (i < n && digits < 2 && isDigit(s.charAt(i))) { month = month * 10 + (s.charAt(i++) - '0'); digits++; }
+        if (digits == 0 || i == n || s.charAt(i++) != '/') return INVALID_DAY;
+        digits = 0;
+        while (i < n && digits < 4 && isDigit(s.charAt(i))) { year = year * 10 + (s.charAt(i++) - '0'); digits++; }
+        if (digits != 4 || i != n) return INVALID_DAY;
+        if (month < 1 || month > 12 || day < 1) return INVALID_DAY;
+        if (day > java.time.Month.of(month).length(java.time.Year.isLeap(year))) return INVALID_DAY;
+        return Math.toIntExact(LocalDate.of(year, month, day).toEpochDay());
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Day number (days since 1970-01-01) of a date string, used as a sortable index key
+    public static int toEpochDay(String dateStr) {
+        return toEpochDay(parseLocalDate(dateStr));
+    }
+
+    public static int toEpochDay(LocalDate date) {
+        return Math.toIntExact(date.toEpochDay());
+    }
+
     // ---------------------------------------------------------------
     // Verifica se uma data é válida (aceita 1/1/2005 e 01/01/2005)
     // ---------------------------------------------------------------
     public static boolean isValidDate(String dateStr) {
-        try {
-            LocalDate.parse(dateStr.trim(), FLEXIBLE_FORMATTER);
-            return true;
-        } catch (DateTimeParseException e) {
-            return false;
-        }
+        return parseOrNull(dateStr) != null;
     }
 
     // ---------------------------------------------------------------
@@ -57,27 +97,32 @@ public class DateUtils {
     // Entre duas datas (inclusivo)
     // ---------------------------------------------------------------
     public static boolean isBetweenInclusive(String date, String start, String end) {
-        LocalDate d = LocalDate.parse(date.trim(), FLEXIBLE_FORMATTER);
-        LocalDate s = LocalDate.parse(start.trim(), FLEXIBLE_FORMATTER);
-        LocalDate e = LocalDate.parse(end.trim(), FLEXIBLE_FORMATTER);
-        return (!d.isBefore(s)) && (!d.isAfter(e));
+        return isBetweenInclusive(toEpochDay(date), toEpochDay(start), toEpochDay(end));
+    }
+
+    public static boolean isBetweenInclusive(int day, int start, int end) {
+        return day >= start && day <= end;
     }
 
     // ---------------------------------------------------------------
     // Entre duas datas (exclusivo no final)
     // ---------------------------------------------------------------
     public static boolean isBetweenExclusiveEnd(String date, String start, String end) {
-        LocalDate d = LocalDate.parse(date.trim(), FLEXIBLE_FORMATTER);
-        LocalDate s = LocalDate.parse(start.trim(), FLEXIBLE_FORMATTER);
-        LocalDate e = LocalDate.parse(end.trim(), FLEXIBLE_FORMATTER);
-        return (!d.isBefore(s)) && d.isBefore(e);
+        return isBetweenExclusiveEnd(toEpochDay(date), toEpochDay(start), toEpochDay(end));
+    }
+
+    public static boolean isBetweenExclusiveEnd(int day, int start, int end) {
+        return day >= start && day < end;
     }
 
     // ---------------------------------------------------------------
     // Sexta-feira simples
     // ---------------------------------------------------------------
     public static boolean isFriday(String dateStr) {
-        LocalDate d = LocalDate.parse(dateStr.trim(), FLEXIBLE_FORMATTER);
+        return isFriday(parseLocalDate(dateStr));
+    }
+
+    public static boolean isFriday(LocalDate d) {
         return d.getDayOfWeek().getValue() == 5;
     }
 
@@ -85,7 +130,10 @@ public class DateUtils {
     // Último dia útil do mês (sexta ou antes)
     // ---------------------------------------------------------------
     public static boolean isLastWorkDayOfMonth(String dateStr) {
-        LocalDate d = LocalDate.parse(dateStr.trim(), FLEXIBLE_FORMATTER);
+        return isLastWorkDayOfMonth(parseLocalDate(dateStr));
+    }
+
+    public static boolean isLastWorkDayOfMonth(LocalDate d) {
         LocalDate lastDay = d.withDayOfMonth(d.lengthOfMonth());
         while (lastDay.getDayOfWeek().getValue() > 5) {
             lastDay = lastDay.minusDays(1);
@@ -97,7 +145,10 @@ public class DateUtils {
     // Sexta-feira a cada duas semanas (bi-semanal)
     // ---------------------------------------------------------------
     public static boolean isBiweeklyFriday(String dateStr) {
-        LocalDate d = LocalDate.parse(dateStr.trim(), FLEXIBLE_FORMATTER);
+        return isBiweeklyFriday(parseLocalDate(dateStr));
+    }
+
+    public static boolean isBiweeklyFriday(LocalDate d) {
         LocalDate base = LocalDate.of(2005, 1, 7); // sexta base
         long weeksBetween = java.time.temporal.ChronoUnit.WEEKS.between(base, d);
         return d.getDayOfWeek().getValue() == 5 && (weeksBetween % 2 == 0);
@@ -0,0 +1,77 @@
+package wepayu.util;
+
+import java.util.Locale;
+
+/**
+ * Money in cents held in a {@code long}. Amounts entered by the user become cents once, at parse time;
+ * the payroll works on integers and only products by a non-monetary factor (hours, commission rate,
+ * period multiplier) go through {@link #round(double)}, which applies HALF_UP like the old BigDecimal code.
+ */
+public final class Money {
+    // products are snapped to a millionth of a cent before rounding, so binary noise of the double
+    // factor (7.3 h = 7.2999...) does not turn a decimal tie into a round-down
+    private static final long SNAP = 1_000_000L;
+    // largest amount (in cents, 90 billion reais) round takes: snapped to millionths it still fits in a
+    // long with room for the half added by the rounding
+    private static final double MAX_CENTS = 9e12;
+
+    // returned by parseOrInvalid for a text that is not a finite number
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private Money() {
+    }
+
+    // Rounds an amount in cents to whole cents, HALF_UP (ties away from zero); throws
+    // ArithmeticException past MAX_CENTS instead of saturating
+    public static long round(double cents) {
+        if (!Double.isFinite(cents)) throw new ArithmeticException("Valor monetario invalido: " + cents);
+        if (Math.abs(cents) > MAX_CENTS) throw new ArithmeticException("Valor monetario fora do limite: " + cents);
+        long micro = Math.round(Math.abs(cents) * SNAP);
+        long whole = (micro + SNAP / 2) / SNAP;
+        return cents < 0 ? -whole : whole;
+    }
+
+    // cents * factor, rounded HALF_UP
+    public static long times(long cents, double factor) {
+        return round(cents * factor);
+    }
+
+    // cents / divisor, rounded HALF_UP
+    public static long divide(long cents, double divisor) {
+        return round(cents / divisor);
+    }
+
+    // Value in reais (as typed by the user) to cents
+    public static long ofUnits(double units) {
+        return round(units * 100);
+    }
+
+    // Parses "1234,56" or "1234.56"; throws NumberFormatException like Double.parseDouble, also for an
+    // amount past what round takes
+    public static long parse(String valor) {
+        double d = Numbers.parseDecimal(valor);
+        if (!Double.isFinite(d)) throw new NumberFormatException("Valor nao finito: " + valor);
+        if (!(Math.abs(d * 100) <= MAX_CENTS)) throw new NumberFormatException("Valor fora do limite: " + valor);
+        return ofUnits(d);
+    }
+
+    // Same as parse, but returns INVALID instead of throwing (see Numbers.isDecimal)
+    public static long parseOrInvalid(String valor) {
+        if (!Numbers.isDecimal(valor)) return INVALID;
+        double d = Numbers.parseDecimal(valor);
+        // too big to hold in cents is not a value either (parse throws ArithmeticException there)
+        if (!(Math.abs(d * 100) <= MAX_CENTS)) return INVALID;
+        return ofUnits(d);
+    }
+
+    // Cents back to reais, for the "R$" lines of the payroll output
+    public static double toUnits(long cents) {
+        return cents / 100.0;
+    }
+
+    // Same text as DecimalFormat("#0.00") in pt-BR: no grouping, comma separator
+    public static String format(long cents) {
+        long abs = Math.abs(cents);
+        return String.format(Locale.ROOT, "%s%d,%02d", cents < 0 ? "-" : "", abs / 100, abs % 100);
+    }
+}
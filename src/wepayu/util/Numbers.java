@@ -0,0 +1,66 @@
+package wepayu.util;
+
+/**
+ * Number text as the facade reads it: what Double.parseDouble accepts once ',' is taken as the
+ * decimal point. {@link #isDecimal(String)} decides by scanning the text, so a bad value is rejected
+ * without building a NumberFormatException.
+ */
+public final class Numbers {
+    private Numbers() {
+    }
+
+    // Whether parseDecimal accepts the text
+    public static boolean isDecimal(String text) {
+        if (text == null) return false;
+        // Double.parseDouble ignores the same surrounding whitespace
+        String s = text.trim();
+        int n = s.length();
+        int i = 0;
+        if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+        if (s.startsWith("NaN", i)) return i + 3 == n;
+        if (s.startsWith("Infinity", i)) return i + 8 == n;
+        if (i + 1 < n && s.charAt(i) == '0' && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X')) {
+            // hexadecimal floating point: never seen in our inputs, left to the JDK
+            try {
+                parseDecimal(s);
+                return true;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }
+        int digits = 0;
+        while (i < n && isDigit(s.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < n && (s.charAt(i) == '.' || s.charAt(i) == ',')) {
+            i++;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) return false;
+        if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) i++;
+            int exponent = 0;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+                exponent++;
+            }
+            if (exponent == 0) return false;
+        }
+        if (i < n && "fFdD".indexOf(s.charAt(i)) >= 0) i++;
+        return i == n;
+    }
+
+    // "8,5" or "8.5"; throws NumberFormatException like Double.parseDouble
+    public static double parseDecimal(String text) {
+        return Double.parseDouble(text.replace(",", "."));
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,528 @@
+package wepayu.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+
+/**
+ * Immutable hash map (hash array mapped trie). plus/minus return a new map that shares every node
+ * off the changed path with the old one, so an update costs O(log32 n) and keeping old versions
+ * around costs only the nodes that changed. Null keys and values are not supported.
+ *
+ * A {@link Builder} applies many updates in place to nodes it created itself (bulk loads), and
+ * copies nodes it does not own, so maps already built from it are never modified.
+ */
+public final class PersistentMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+    private static final Object NOT_FOUND = new Object();
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null) return null;
+        Object v = root.find(0, hash(key), key);
+        return v == NOT_FOUND ? null : (V) v;
+    }
+
+    public boolean containsKey(Object key) {
+        return root != null && root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    public PersistentMap<K, V> plus(K key, V value) {
+        if (value == null) throw new NullPointerException("value");
+        boolean[] added = new boolean[1];
+        Node r = (root == null ? BitmapNode.EMPTY : root).assoc(null, 0, hash(key), key, value, added);
+        if (r == root) return this;
+        return new PersistentMap<>(r, added[0] ? size + 1 : size);
+    }
+
+    public PersistentMap<K, V> minus(Object key) {
+        if (root == null) return this;
+        boolean[] removed = new boolean[1];
+        Node r = root.without(null, 0, hash(key), key, removed);
+        if (!removed[0]) return this;
+        return r == null ? empty() : new PersistentMap<>(r, size - 1);
+    }
+
+    // Read-only java.util.Map view; get/containsKey/size are O(log32 n)/O(1)
+    public Map<K, V> asMap() {
+        return new View<>(this);
+    }
+
+    public Builder<K, V> builder() {
+        return new Builder<>(root, size);
+    }
+
+    /**
+     * Map of keys.get(i) -> values.get(i) built in one pass: the entries are sorted by hash and the
+     * nodes are created bottom-up, each exactly once, instead of walking the trie per entry. Values
+     * of a repeated key are combined with merge, the earlier value first.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> of(List<? extends K> keys, List<? extends V> values, BinaryOperator<V> merge) {
+        int n = keys.size();
+        if (n != values.size()) throw new IllegalArgumentException("keys and values differ in size");
+        if (n == 0) return empty();
+        Object[] k = keys.toArray();
+        Object[] v = values.toArray();
+        int[] h = new int[n];
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (v[i] == null) throw new NullPointerException("value");
+            h[i] = hash(k[i]);
+            // trie order (lowest 5 bits first) in the high half, as unsigned; input order in the low half
+            order[i] = ((long) (trieOrder(h[i]) ^ Integer.MIN_VALUE) << 32) | i;
+        }
+        Arrays.sort(order);
+        // permuted into sorted order in place (cycle by cycle), so building reads them sequentially
+        for (int i = 0; i < n; i++) {
+            if (order[i] == -1) continue;
+            Object key = k[i], value = v[i];
+            int hash = h[i];
+            int j = i;
+            while (true) {
+                int from = (int) order[j];
+                order[j] = -1;
+                if (from == i) break;
+                k[j] = k[from];
+                v[j] = v[from];
+                h[j] = h[from];
+                j = from;
+            }
+            k[j] = key;
+            v[j] = value;
+            h[j] = hash;
+        }
+        int[] count = new int[1];
+        Node root;
+        if (h[0] == h[n - 1]) {
+            Object[] kv = collide(k, v, 0, n, (BinaryOperator<Object>) merge);
+            count[0] = kv.length / 2;
+            root = kv.length == 2 ? new BitmapNode(null, 1 << (h[0] & 31), kv) : new CollisionNode(null, h[0], kv);
+        } else {
+            root = bulk(k, v, h, 0, n, 0, (BinaryOperator<Object>) merge, count);
+        }
+        return new PersistentMap<>(root, count[0]);
+    }
+
+    // The 5-bit chunks of the hash in the order the trie consumes them, most significant first
+    private static int trieOrder(int h) {
+        int r = 0;
+        for (int shift = 0; shift < 30; shift += 5) r = (r << 5) | ((h >>> shift) & 31);
+        return (r << 2) | (h >>> 30);
+    }
+
+    // Node for the sorted entries [lo, hi), which share the hash chunks below shift but not all of
+    // the hash; counts the distinct keys it stores
+    private static Node bulk(Object[] k, Object[] v, int[] h, int lo, int hi, int shift,
+                             BinaryOperator<Object> merge, int[] count) {
+        int bitmap = 0;
+        for (int i = lo; i < hi; i++) bitmap |= 1 << ((h[i] >>> shift) & 31);
+        Object[] array = new Object[2 * Integer.bitCount(bitmap)];
+        int slot = 0;
+        for (int a = lo; a < hi; slot += 2) {
+            int chunk = (h[a] >>> shift) & 31;
+            int b = a + 1;
+            while (b < hi && ((h[b] >>> shift) & 31) == chunk) b++;
+            if (b - a == 1) {
+                // single entry: stored inline
+                array[slot] = k[a];
+                array[slot + 1] = v[a];
+                count[0]++;
+            } else if (h[a] == h[b - 1]) {
+                // one full hash: keys that collide (or repeat)
+                Object[] kv = collide(k, v, a, b, merge);
+                count[0] += kv.length / 2;
+                if (kv.length == 2) {
+                    array[slot] = kv[0];
+                    array[slot + 1] = kv[1];
+                } else {
+                    array[slot + 1] = new CollisionNode(null, h[a], kv);
+                }
+            } else {
+                array[slot + 1] = bulk(k, v, h, a, b, shift + 5, merge, count);
+            }
+            a = b;
+        }
+        return new BitmapNode(null, bitmap, array);
+    }
+
+    // Distinct keys (in input order) with merged values, as key/value pairs
+    private static Object[] collide(Object[] k, Object[] v, int lo, int hi, BinaryOperator<Object> merge) {
+        List<Object> kv = new ArrayList<>(2 * (hi - lo));
+        for (int i = lo; i < hi; i++) {
+            int at = -1;
+            for (int j = 0; j < kv.size(); j += 2) {
+                if (k[i].equals(kv.get(j))) at = j;
+            }
+            if (at < 0) {
+                kv.add(k[i]);
+                kv.add(v[i]);
+            } else {
+                kv.set(at + 1, merge.apply(kv.get(at + 1), v[i]));
+            }
+        }
+        return kv.toArray();
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    public static final class Builder<K, V> {
+        private Object edit = new Object();
+        private Node root;
+        private int size;
+
+        private Builder(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public Builder<K, V> put(K key, V value) {
+            if (value == null) throw new NullPointerException("value");
+            boolean[] added = new boolean[1];
+            root = (root == null ? BitmapNode.EMPTY : root).assoc(edit, 0, hash(key), key, value, added);
+            if (added[0]) size++;
+            return this;
+        }
+
+        public Builder<K, V> remove(Object key) {
+            if (root == null) return this;
+            boolean[] removed = new boolean[1];
+            root = root.without(edit, 0, hash(key), key, removed);
+            if (removed[0]) size--;
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(Object key) {
+            if (root == null) return null;
+            Object v = root.find(0, hash(key), key);
+            return v == NOT_FOUND ? null : (V) v;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // The builder stays usable; later updates copy the nodes the returned map shares
+        public PersistentMap<K, V> build() {
+            edit = new Object();
+            return size == 0 ? empty() : new PersistentMap<>(root, size);
+        }
+    }
+
+    // Entries are kept in key/value pairs; in a BitmapNode a null key marks a child node in the value slot
+    private abstract static class Node {
+        Object[] array;
+        final Object edit;
+
+        Node(Object edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node assoc(Object edit, int shift, int hash, Object key, Object value, boolean[] added);
+
+        // null when the node becomes empty
+        abstract Node without(Object edit, int shift, int hash, Object key, boolean[] removed);
+
+        boolean ownedBy(Object edit) {
+            return edit != null && edit == this.edit;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit, array);
+            this.bitmap = bitmap;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return NOT_FOUND;
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            return key.equals(k) ? array[i + 1] : NOT_FOUND;
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = value;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                if (ownedBy(edit)) {
+                    array = grown;
+                    bitmap |= bit;
+                    return this;
+                }
+                return new BitmapNode(edit, bitmap | bit, grown);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).assoc(edit, shift + 5, hash, key, value, added);
+                return child == v ? this : set(edit, i, null, child);
+            }
+            if (key.equals(k)) return v == value ? this : set(edit, i, k, value);
+            added[0] = true;
+            return set(edit, i, null, pair(edit, shift + 5, hash(k), k, v, hash, key, value));
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, Object key, boolean[] removed) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return this;
+            int i = 2 * index(bit);
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).without(edit, shift + 5, hash, key, removed);
+                if (child == v) return this;
+                if (child != null) return set(edit, i, null, child);
+            } else if (!key.equals(k)) {
+                return this;
+            } else {
+                removed[0] = true;
+            }
+            if (bitmap == bit) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (ownedBy(edit)) {
+                array = shrunk;
+                bitmap ^= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, shrunk);
+        }
+
+        private Node set(Object edit, int i, Object key, Object value) {
+            if (ownedBy(edit)) {
+                array[i] = key;
+                array[i + 1] = value;
+                return this;
+            }
+            Object[] copy = array.clone();
+            copy[i] = key;
+            copy[i + 1] = value;
+            return new BitmapNode(edit, bitmap, copy);
+        }
+
+        // Node holding two entries whose hashes agree on the bits below shift
+        private static Node pair(Object edit, int shift, int h1, Object k1, Object v1, int h2, Object k2, Object v2) {
+            if (h1 == h2) return new CollisionNode(edit, h1, new Object[] {k1, v1, k2, v2});
+            int b1 = (h1 >>> shift) & 31;
+            int b2 = (h2 >>> shift) & 31;
+            if (b1 == b2) {
+                return new BitmapNode(edit, 1 << b1, new Object[] {null, pair(edit, shift + 5, h1, k1, v1, h2, k2, v2)});
+            }
+            Object[] a = b1 < b2 ? new Object[] {k1, v1, k2, v2} : new Object[] {k2, v2, k1, v1};
+            return new BitmapNode(edit, (1 << b1) | (1 << b2), a);
+        }
+    }
+
+    // Keys with the same full hash
+    private static final class CollisionNode extends Node {
+        final int hash;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit, array);
+            this.hash = hash;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                Node parent = new BitmapNode(edit, 1 << ((this.hash >>> shift) & 31), new Object[] {null, this});
+                return parent.assoc(edit, shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            Object[] a;
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                a = ownedBy(edit) ? array : array.clone();
+                a[i + 1] = value;
+            } else {
+                added[0] = true;
+                a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, array.length);
+                a[array.length] = key;
+                a[array.length + 1] = value;
+            }
+            if (ownedBy(edit)) {
+                array = a;
+                return this;
+            }
+            return new CollisionNode(edit, hash, a);
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, Object key, boolean[] removed) {
+            int i = indexOf(key);
+            if (i < 0) return this;
+            removed[0] = true;
+            if (array.length == 2) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (ownedBy(edit)) {
+                array = shrunk;
+                return this;
+            }
+            return new CollisionNode(edit, hash, shrunk);
+        }
+    }
+
+    // Depth-first walk over the entries; 7 bitmap levels cover the 32 hash bits, plus a collision node
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Object[][] arrays = new Object[9][];
+        private final int[] positions = new int[9];
+        private int depth = -1;
+        private Object nextKey;
+        private Object nextValue;
+
+        EntryIterator(Node root) {
+            if (root != null) push(root);
+            advance();
+        }
+
+        private void push(Node node) {
+            depth++;
+            arrays[depth] = node.array;
+            positions[depth] = 0;
+        }
+
+        private void advance() {
+            nextKey = null;
+            while (depth >= 0) {
+                Object[] a = arrays[depth];
+                int p = positions[depth];
+                if (p >= a.length) {
+                    arrays[depth--] = null;
+                    continue;
+                }
+                positions[depth] = p + 2;
+                if (a[p] == null) {
+                    push((Node) a[p + 1]);
+                } else {
+                    nextKey = a[p];
+                    nextValue = a[p + 1];
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            if (nextKey == null) throw new NoSuchElementException();
+            Map.Entry<K, V> e = new AbstractMap.SimpleImmutableEntry<>((K) nextKey, (V) nextValue);
+            advance();
+            return e;
+        }
+    }
+
+    private static final class View<K, V> extends AbstractMap<K, V> {
+        private final PersistentMap<K, V> map;
+
+        View(PersistentMap<K, V> map) {
+            this.map = map;
+        }
+
+        @Override
+        public V get(Object key) {
+            return key == null ? null : map.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key != null && map.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return map.size;
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator<>(map.root);
+                }
+
+                @Override
+                public int size() {
+                    return map.size;
+                }
+            };
+        }
+    }
+}